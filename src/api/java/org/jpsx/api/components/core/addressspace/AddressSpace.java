@@ -18,6 +18,9 @@
  */
 package org.jpsx.api.components.core.addressspace;
 
+import org.apache.bcel.generic.ConstantPoolGen;
+import org.apache.bcel.generic.InstructionList;
+
 
 public interface AddressSpace {
     // we use this when determining addresses as the offset from the prefix (top 16 bits)...
@@ -46,6 +49,9 @@ public interface AddressSpace {
     int BIOS_SIZE = 0x80000;
     int BIOS_END = BIOS_BASE + BIOS_SIZE;
 
+    // granularity of RAM write watching
+    int RAM_PAGE_SHIFT = 12;
+
     // Markers for the type of RAM access that an instruction at a particular addresses does
     byte TAG_RAM = 0x01;
     byte TAG_SCRATCH = 0x02;
@@ -84,6 +90,11 @@ public interface AddressSpace {
 
     void orTag(int pc, byte val);
 
+    /**
+     * Clear the specified tag bits for all words in the address range
+     */
+    void clearTags(int address, int size, byte mask);
+
     /**
      * Return the array and index in a ResolveResult based on a given address
      * @param address
@@ -108,6 +119,18 @@ public interface AddressSpace {
      */
     int[] getMainRAM();
 
+    /**
+     * Start watching for writes to the page of RAM containing the specified address; the first write
+     * to the page (by the CPU, compiled code, or a DMA transfer) marks it as written, and stops the watch
+     */
+    void watchRAMPage(int address);
+
+    /**
+     * @return true if the page of RAM containing the specified address has been written since it was last watched
+     * (or if it has never been watched)
+     */
+    boolean isRAMPageWritten(int address);
+
     void tagAddressAccessWrite(int pc, int address);
 
     void tagAddressAccessRead8(int pc, int address);
@@ -135,6 +158,37 @@ public interface AddressSpace {
      */
     public String getHardwareStaticInterfaceClassName();
 
+    /**
+     * Emit code for a hardware read from a constant address which binds directly to the registered callback
+     * (or to the backing register if there is no callback), rather than calling the read method of the hardware
+     * static interface, which must dispatch on the address every time.
+     * <p/>
+     * The emitted code leaves the same value on the stack as the hardware static interface method would.
+     *
+     * @param size size in bytes (1, 2 or 4)
+     * @return false if no code was emitted, in which case the caller should call the hardware static interface
+     */
+    public boolean emitHardwareRead(ConstantPoolGen cp, InstructionList il, int address, int size);
+
+    /**
+     * Emit code for a 32 bit hardware write to a constant address which binds directly to the registered callback
+     * (or to the backing register if there is no callback), rather than calling the write32 method of the hardware
+     * static interface.
+     *
+     * @param value code which pushes the value to be written
+     * @return false if no code was emitted (and value was not used), in which case the caller should call the
+     *         hardware static interface
+     */
+    public boolean emitHardwareWrite(ConstantPoolGen cp, InstructionList il, int address, InstructionList value);
+
+    /**
+     * Since the code emitted by {@link #emitHardwareRead} and {@link #emitHardwareWrite} names the callback
+     * methods directly, generated classes which are kept across runs are only valid for the same callbacks.
+     *
+     * @return a digest of the registered callbacks (and anything else which affects the emitted code)
+     */
+    public String getHardwareCallbackDigest();
+
     static class ResolveResult {
         public int address;        // the original address
         public int[] mem;
@@ -131,6 +131,23 @@ public class CPUInstruction {
         return false;
     }
 
+    /**
+     * Coprocessor result state (a bit mask whose meaning is private to the coprocessor) which the
+     * instruction reads, and which must therefore have been fully computed by any earlier instruction.
+     * <p/>
+     * Used by the compiler for liveness analysis; see {@link CompilationContext#getLiveCoprocessorState}
+     */
+    public int getCoprocessorStateRead(int ci) {
+        return 0;
+    }
+
+    /**
+     * Coprocessor result state which the instruction completely overwrites without reading
+     */
+    public int getCoprocessorStateWritten(int ci) {
+        return 0;
+    }
+
     public String getInterpretMethodName() {
         return "interpret_" + getName();
     }
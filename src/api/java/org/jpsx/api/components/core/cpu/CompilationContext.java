@@ -119,5 +119,11 @@ public interface CompilationContext {
 
     public int getTempLocal(int index);
 
+    /**
+     * @return the coprocessor result state (as returned by {@link CPUInstruction#getCoprocessorStateRead})
+     * which may be read after the current instruction; state which isn't live need not be computed
+     */
+    public int getLiveCoprocessorState();
+
     public InstructionHandle getBranchTarget(int address);
 }
@@ -51,6 +51,25 @@ public interface NativeCompiler {
      */
     public boolean jumpAndLink(int address, int returnAddress);
 
+    /**
+     * Enter compiler at the target of a frequently taken backward branch (typically
+     * the top of a loop).
+     * <p/>
+     * This method is called by the interpreter after the delay slot of the branch
+     * has been executed, once it has taken backward branches to the address enough times.
+     * <p/>
+     * Unlike {@link #jumpAndLink}, there is no return address; the interpreter can't tell
+     * whether r31 still holds the enclosing function's return address. The compiler should
+     * therefore only continue execution until the first jump (e.g. a JR) out of the compiled
+     * code, and set the PC to its target before returning.
+     *
+     * @return true - if the compiler executed code, and the PC has been set to where the interpreter should continue
+     *         false - if the compiler did not execute any code.
+     * @throws org.jpsx.api.components.core.ContinueExecutionException
+     *          if the compiler wishes the interpeter to take over execution
+     */
+    public boolean enterAtBranchTarget(int address);
+
     /**
      * Method called whenever the R3000 instruction cache is flushed.
      * The compiler should assume that any instructions in RAM may have been
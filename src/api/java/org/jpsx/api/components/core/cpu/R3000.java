@@ -96,6 +96,42 @@ public interface R3000 {
 
     void executeFromPC();
 
+    /**
+     * Have compiled code maintain the instruction count as well as the interpreter; this must be called
+     * before the machine starts, since it affects the code generated by the compiler
+     */
+    void enableInstructionCounting();
+
+    boolean isInstructionCountingEnabled();
+
+    /**
+     * @return the number of R3000 instructions executed since the machine started; this is only accurate
+     *         when called from the execution thread (other threads see the count as of the CPU's last interrupt
+     *         check), and only includes compiled code if instruction counting is enabled
+     */
+    long getInstructionCount();
+
+    /**
+     * Add to the instruction count without executing anything, e.g. to skip time the CPU would otherwise spend idle;
+     * this must be called on the execution thread
+     */
+    void advanceInstructionCount(long count);
+
+    /**
+     * Arrange for the execution thread to run the specified action, once the instruction count reaches the specified
+     * value. The action is run at the next point the CPU checks for interrupts. Each action has at most one
+     * deadline, so this replaces any deadline previously set for the same action, but not those of other actions
+     *
+     * @param count  the instruction count
+     * @param action the action to run
+     */
+    void setInstructionDeadline(long count, Runnable action);
+
+    /**
+     * Clear the deadline (if any) set for the specified action by {@link #setInstructionDeadline}
+     */
+    void clearInstructionDeadline(Runnable action);
+
     public static class Util {
 
         public static int bits_rs(final int ci) {
@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2003, 2014 Graham Sanderson
+ *
+ * This file is part of JPSX.
+ *
+ * JPSX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JPSX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JPSX.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpsx.api.components.core.scheduler;
+
+/**
+ * A {@link Quartz} whose time is derived from the work done by the emulated CPU rather than from a real clock,
+ * so that the same input always produces the same sequence of events.
+ * <p/>
+ * Since time only advances while the CPU is executing, a scheduler can't simply wait for a given time to arrive;
+ * instead it sets an alarm, which is raised on the CPU execution thread once that time is reached.
+ */
+public interface DeterministicQuartz extends Quartz {
+    /**
+     * Set the alarm, replacing any previous one. The alarm is raised once, on the execution thread, when
+     * {@link #nanoTime()} reaches the specified time; the CPU does not continue until the alarm returns.
+     *
+     * @param time  the time at which to raise the alarm, or Long.MAX_VALUE for no alarm
+     * @param alarm the alarm
+     */
+    void setAlarm(long time, Runnable alarm);
+
+    /**
+     * Called on the execution thread when the CPU has nothing useful to do until the alarm is raised. Rather than
+     * wait for time which will never pass, the time jumps straight to that of the alarm.
+     *
+     * @return false if no alarm is set, in which case the caller will have to wait for some external event
+     */
+    boolean skipToAlarm();
+}
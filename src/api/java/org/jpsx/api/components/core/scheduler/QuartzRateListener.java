@@ -0,0 +1,30 @@
+/*
+ * Copyright (C) 2003, 2014 Graham Sanderson
+ *
+ * This file is part of JPSX.
+ *
+ * JPSX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JPSX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JPSX.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpsx.api.components.core.scheduler;
+
+/**
+ * Connection interface to be implemented by any component which cares when the rate of a {@link VariableRateQuartz}
+ * changes, e.g. because it is sleeping for a real time calculated from the old rate.
+ */
+public interface QuartzRateListener {
+    /**
+     * The rate of the quartz has changed; this may be called from any thread
+     */
+    void quartzRateChanged();
+}
@@ -74,6 +74,14 @@ public interface Scheduler {
      */
     boolean isScheduled(ScheduledAction action);
 
+    /**
+     * Removes all future schedulings of the action. If the action is currently being called back, then the time
+     * it returns is ignored, so it will not be re-scheduled automatically
+     *
+     * @param action
+     */
+    void cancel(ScheduledAction action);
+
     /**
      * This method may be called by the cpu thread to indicate that it is in a busy-wait loop, and has no further useful
      * work to do in the absence of some external force.
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2003, 2014 Graham Sanderson
+ *
+ * This file is part of JPSX.
+ *
+ * JPSX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JPSX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JPSX.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpsx.api.components.core.scheduler;
+
+/**
+ * A {@link Quartz} which runs at an adjustable multiple of real time; a rate below 1 gives slow motion, and a
+ * rate above 1 fast forward.
+ * <p/>
+ * Time changes rate smoothly, i.e. {@link #nanoTime()} carries on from its current value at the new rate.
+ */
+public interface VariableRateQuartz extends Quartz {
+    /**
+     * The slowest supported rate
+     */
+    public static final double MIN_RATE = 0.25;
+    /**
+     * The fastest supported rate
+     */
+    public static final double MAX_RATE = 8.0;
+
+    /**
+     * @return the number of emulated nanoseconds which pass per real nanosecond
+     */
+    double getRate();
+
+    /**
+     * Change the rate of the quartz; this may be called from any thread
+     *
+     * @param rate the number of emulated nanoseconds which should pass per real nanosecond
+     * @throws IllegalArgumentException if the rate is outside the range {@link #MIN_RATE} to {@link #MAX_RATE}
+     */
+    void setRate(double rate);
+
+    public static class Util {
+        /**
+         * Convert a duration in quartz time to real time, e.g. for sleeping until a quartz time; a caller which
+         * sleeps should also be a {@link QuartzRateListener}, so that it can be woken to sleep again at the new rate
+         *
+         * @param quartz the quartz; the duration is returned unchanged unless it is a {@link VariableRateQuartz}
+         * @param delay  the duration in quartz nanoseconds
+         * @return the duration in real nanoseconds, which is at least 1
+         */
+        public static long realDelay(Quartz quartz, long delay) {
+            if (!(quartz instanceof VariableRateQuartz)) return delay;
+            return Math.max(1L, (long) (delay / ((VariableRateQuartz) quartz).getRate()));
+        }
+    }
+}
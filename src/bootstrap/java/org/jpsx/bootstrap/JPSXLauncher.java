@@ -41,13 +41,11 @@ public class JPSXLauncher {
     private static final Logger log = Logger.getLogger("Bootstrap");
 
     public static void main(String args[]) {
-        // fix for Mac OSX which requires that we load AWT in the main classloader
-        new Frame();
-
         Properties vars = new Properties();
         String configFile = "jpsx.xml";
         String machineId = "default";
         String log4jFile = "log4j.properties";
+        boolean headless = false;
 
         for (int i = 0; i < args.length; i++) {
             if (args[i].equals("-config")) {
@@ -62,6 +60,8 @@ public class JPSXLauncher {
                     return;
                 }
                 log4jFile = args[++i];
+            } else if (args[i].equals("-headless")) {
+                headless = true;
             } else if (args[i].indexOf("=") > 0) {
                 int split = args[i].indexOf("=");
                 vars.put(args[i].substring(0, split), args[i].substring(split + 1));
@@ -73,6 +73,13 @@ public class JPSXLauncher {
             }
         }
 
+        if (headless) {
+            System.setProperty("java.awt.headless", "true");
+        } else if (!GraphicsEnvironment.isHeadless()) {
+            // fix for Mac OSX which requires that we load AWT in the main classloader
+            new Frame();
+        }
+
         // init log4j
         PropertyConfigurator.configure(log4jFile);
 
@@ -101,8 +108,9 @@ public class JPSXLauncher {
     }
 
     private static void usage() {
-        System.err.println("Usage: JPSXLauncher (-log <log4jproperties>) (-config <xmlfile>) (<machineId>) (var=value)*\n" +
+        System.err.println("Usage: JPSXLauncher (-log <log4jproperties>) (-config <xmlfile>) (-headless) (<machineId>) (var=value)*\n" +
                 "  The default log4j properties file is 'log4j.properties'\n" +
+                "  -headless runs without touching the window system; the machine must not use a window either\n" +
                 "  The default xmlfile is 'jpsx.xml'\n" +
                 "  The default machineId is 'default'");
     }
@@ -33,4 +33,9 @@ public interface JPSXMachine {
     void addInitializer(int priority, Runnable initializer);
 
     void close();
+
+    /**
+     * Close the machine, exiting the VM with the specified status
+     */
+    void close(int exitCode);
 }
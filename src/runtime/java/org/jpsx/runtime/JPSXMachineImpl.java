@@ -142,9 +142,13 @@ public class JPSXMachineImpl implements JPSXMachine, JPSXMachineLifecycle {
     }
 
     public void close() {
+        close(0);
+    }
+
+    public void close(int exitCode) {
         log.info("Closing...\n");
         // todo something other than this!
-        System.exit(0);
+        System.exit(exitCode);
     }
 
     public boolean settingsFrozen() {
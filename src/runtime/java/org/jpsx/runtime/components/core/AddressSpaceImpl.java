@@ -37,6 +37,9 @@ import org.jpsx.runtime.util.ClassUtil;
 import org.jpsx.runtime.util.MiscUtil;
 
 import java.lang.reflect.Method;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.SortedMap;
@@ -76,6 +79,21 @@ public final class AddressSpaceImpl extends SingletonJPSXComponent implements Cl
     private static int lastPoll32Count = 0;
     private static boolean writeEnabled = true;
 
+    // non zero for each watched page of RAM (see watchRAMPage); this is tested on every RAM store, including those by
+    // compiled code, so is kept as simple as possible. Pages are watched both on behalf of the caller of watchRAMPage,
+    // and so that we know whose tags to clear on the next instruction cache flush; the first write after either
+    // watch sets both of the following flags
+    public static final byte[] ramPagesWatched = new byte[RAM_SIZE >> RAM_PAGE_SHIFT];
+    private static final boolean[] ramPagesWritten = new boolean[RAM_SIZE >> RAM_PAGE_SHIFT];
+    private static final boolean[] ramPagesTagsStale = new boolean[RAM_SIZE >> RAM_PAGE_SHIFT];
+    // the pages whose ramPagesTagsStale flag is set, so that a flush only visits those; DMA may write RAM from other
+    // threads, so this is guarded by staleRAMPagesLock (which is only taken on the first write to a watched page)
+    private static final int[] staleRAMPages = new int[RAM_SIZE >> RAM_PAGE_SHIFT];
+    private static int staleRAMPageCount;
+    private static final Object staleRAMPagesLock = new Object();
+
+    private static final byte COMPILER_TAGS = TAG_RESERVED_FOR_COMPILER | TAG_RESERVED_FOR_COMPILER_2;
+
     private static final int SCRATCH_MASK = SCRATCH_SIZE - 1;
     private static final int PAR_MASK = PAR_SIZE - 1;
     private static final int BIOS_MASK = BIOS_SIZE - 1;
@@ -106,6 +124,13 @@ public final class AddressSpaceImpl extends SingletonJPSXComponent implements Cl
         bios = new int[BIOS_SIZE >> 2];
         hw = new int[HW_SIZE >> 2];
         par = new int[PAR_SIZE >> 2];
+        // nothing is watched to start with, so we must assume everything has been written
+        Arrays.fill(ramPagesWritten, true);
+        Arrays.fill(ramPagesTagsStale, true);
+        for (int page = 0; page < staleRAMPages.length; page++) {
+            staleRAMPages[page] = page;
+        }
+        staleRAMPageCount = staleRAMPages.length;
     }
 
     public AddressSpaceImpl() {
@@ -528,6 +553,136 @@ public final class AddressSpaceImpl extends SingletonJPSXComponent implements Cl
         return cgen;
     }
 
+    // The following two methods must emit exactly what the switch case (or default method) generated
+    // by modifyClass for the same address would do. Only cases which call a callback with the original
+    // address are bound directly; the cases for the upper parts of a sub-register are left to the switch.
+
+    public boolean emitHardwareRead(ConstantPoolGen cp, InstructionList il, int address, int size) {
+        Method m = null;
+        int mask = 0;
+        switch (size) {
+            case 4:
+                m = getCallback(address, subRead32Callbacks, read32Callbacks, null);
+                break;
+            case 2:
+                if (0 != (address & 1) || (2 == (address & 3) && null != subRead32Callbacks.get(address - 2))) {
+                    return false;
+                }
+                m = getCallback(address, subRead32Callbacks, subRead16Callbacks, read16Callbacks);
+                mask = 0xffff;
+                break;
+            case 1:
+                if ((0 != (address & 1) && null != subRead16Callbacks.get(address & ~1)) ||
+                        (0 != (address & 3) && null != subRead32Callbacks.get(address & ~3))) {
+                    return false;
+                }
+                m = getCallback(address, subRead32Callbacks, subRead16Callbacks, read8Callbacks);
+                mask = 0xff;
+                break;
+            default:
+                return false;
+        }
+        if (m != null) {
+            il.append(new PUSH(cp, address));
+            il.append(new INVOKESTATIC(cp.addMethodref(m.getDeclaringClass().getName(), m.getName(), "(I)I")));
+            if (mask != 0) {
+                il.append(new PUSH(cp, mask));
+                il.append(new IAND());
+            }
+            return true;
+        }
+        if (Settings.checkHWOverlap || logUnknownDebug || 0 != (address & (size - 1))) {
+            return false;
+        }
+        il.append(new GETSTATIC(cp.addFieldref(AddressSpaceImpl.class.getName(), "hw", "[I")));
+        il.append(new PUSH(cp, (address & HW_MASK) >> 2));
+        il.append(new IALOAD());
+        int shift = (address & 3) << 3;
+        if (shift != 0) {
+            il.append(new PUSH(cp, shift));
+            il.append(new ISHR());
+        }
+        if (mask != 0) {
+            il.append(new PUSH(cp, mask));
+            il.append(new IAND());
+        }
+        return true;
+    }
+
+    public boolean emitHardwareWrite(ConstantPoolGen cp, InstructionList il, int address, InstructionList value) {
+        Method m = subWrite32Callbacks.get(address);
+        boolean sub = m != null;
+        if (!sub) {
+            m = write32Callbacks.get(address);
+        }
+        if (m != null) {
+            il.append(new PUSH(cp, address));
+            il.append(value);
+            if (sub) {
+                il.append(new PUSH(cp, -1));
+            }
+            il.append(new INVOKESTATIC(cp.addMethodref(m.getDeclaringClass().getName(), m.getName(), sub ? "(III)V" : "(II)V")));
+            return true;
+        }
+        if (Settings.checkHWOverlap || logUnknownDebug || 0 != (address & 3)) {
+            return false;
+        }
+        il.append(new GETSTATIC(cp.addFieldref(AddressSpaceImpl.class.getName(), "hw", "[I")));
+        il.append(new PUSH(cp, (address & HW_MASK) >> 2));
+        il.append(value);
+        il.append(new IASTORE());
+        return true;
+    }
+
+    /**
+     * @return the callback from the first of the maps which has one for the address (later maps' cases
+     *         replace earlier ones in modifyClass, so they are passed in reverse order)
+     */
+    private static Method getCallback(int address, Map<Integer, Method> a, Map<Integer, Method> b, Map<Integer, Method> c) {
+        Method m = a.get(address);
+        if (m == null) {
+            m = b.get(address);
+        }
+        if (m == null && c != null) {
+            m = c.get(address);
+        }
+        return m;
+    }
+
+    public String getHardwareCallbackDigest() {
+        StringBuilder desc = new StringBuilder();
+        desc.append(Settings.checkHWOverlap).append(':').append(logUnknownDebug);
+        describeCallbacks(desc, "read8", read8Callbacks);
+        describeCallbacks(desc, "read16", read16Callbacks);
+        describeCallbacks(desc, "subRead16", subRead16Callbacks);
+        describeCallbacks(desc, "read32", read32Callbacks);
+        describeCallbacks(desc, "subRead32", subRead32Callbacks);
+        describeCallbacks(desc, "write32", write32Callbacks);
+        describeCallbacks(desc, "subWrite32", subWrite32Callbacks);
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not available", e);
+        }
+        byte[] hash = digest.digest(desc.toString().getBytes());
+        StringBuilder rc = new StringBuilder();
+        for (int i = 0; i < hash.length; i++) {
+            rc.append(MiscUtil.toHex(hash[i] & 0xff, 2));
+        }
+        return rc.toString();
+    }
+
+    private static void describeCallbacks(StringBuilder desc, String name, Map<Integer, Method> callbacks) {
+        desc.append(';').append(name);
+        // sorted, so that the order of registration doesn't matter
+        for (Map.Entry<Integer, Method> entry : new TreeMap<Integer, Method>(callbacks).entrySet()) {
+            Method m = entry.getValue();
+            desc.append(':').append(MiscUtil.toHex(entry.getKey(), 8)).append('=');
+            desc.append(m.getDeclaringClass().getName()).append('.').append(m.getName());
+        }
+    }
+
 
     public void tagClearPollCounters() {
         _tagClearPollCounters();
@@ -817,6 +972,21 @@ public final class AddressSpaceImpl extends SingletonJPSXComponent implements Cl
         tags[index] |= val;
     }
 
+    public void clearTags(final int address, int size, byte mask) {
+        byte[] tags;
+        if (address < BIOS_BASE || address >= BIOS_END) {
+            tags = ramTags;
+        } else {
+            tags = biosTags;
+        }
+        int index = (address & 0x1fffff) >> 2;
+        int end = index + (size >> 2);
+        byte keep = (byte) ~mask;
+        for (; index < end; index++) {
+            tags[index] &= keep;
+        }
+    }
+
     public int read8(int address) {
         return _read8(address);
     }
@@ -1060,12 +1230,15 @@ public final class AddressSpaceImpl extends SingletonJPSXComponent implements Cl
                 break;
         }
         if (prefix == -8 && offset < RAM_SIZE) {
+            if (ramPagesWatched[offset >> RAM_PAGE_SHIFT] != 0) _ramPageWritten(offset >> RAM_PAGE_SHIFT);
             ramD[offset >> 2] = (ramD[offset >> 2] & mask) | nvalue;
         } else if (address < SCRATCH_END && address >= SCRATCH_BASE) {
             scratch[(offset & SCRATCH_MASK) >> 2] = (scratch[(offset & SCRATCH_MASK) >> 2] & mask) | nvalue;
         } else if (prefix == 0 && offset < RAM_SIZE) {
+            if (ramPagesWatched[offset >> RAM_PAGE_SHIFT] != 0) _ramPageWritten(offset >> RAM_PAGE_SHIFT);
             ramD[offset >> 2] = (ramD[offset >> 2] & mask) | nvalue;
         } else if (prefix == -6 && offset < RAM_SIZE) {
+            if (ramPagesWatched[offset >> RAM_PAGE_SHIFT] != 0) _ramPageWritten(offset >> RAM_PAGE_SHIFT);
             ramD[offset >> 2] = (ramD[offset >> 2] & mask) | nvalue;
         } else if (address < HW_END && address >= HW_BASE) {
             Hardware.write8(address, value);
@@ -1104,6 +1277,7 @@ public final class AddressSpaceImpl extends SingletonJPSXComponent implements Cl
                 break;
         }
         address = (address & RAM_AND) >> 2;
+        if (ramPagesWatched[address >> (RAM_PAGE_SHIFT - 2)] != 0) _ramPageWritten(address >> (RAM_PAGE_SHIFT - 2));
         ramD[address] = (ramD[address] & mask) | nvalue;
         return;
     }
@@ -1160,12 +1334,15 @@ public final class AddressSpaceImpl extends SingletonJPSXComponent implements Cl
                 nvalue = value << 16;
         }
         if (prefix == -8 && offset < RAM_SIZE) {
+            if (ramPagesWatched[offset >> RAM_PAGE_SHIFT] != 0) _ramPageWritten(offset >> RAM_PAGE_SHIFT);
             ramD[offset >> 2] = (ramD[offset >> 2] & mask) | nvalue;
         } else if (address < SCRATCH_END && address >= SCRATCH_BASE) {
             scratch[(offset & SCRATCH_MASK) >> 2] = (scratch[(offset & SCRATCH_MASK) >> 2] & mask) | nvalue;
         } else if (prefix == 0 && offset < RAM_SIZE) {
+            if (ramPagesWatched[offset >> RAM_PAGE_SHIFT] != 0) _ramPageWritten(offset >> RAM_PAGE_SHIFT);
             ramD[offset >> 2] = (ramD[offset >> 2] & mask) | nvalue;
         } else if (prefix == -6 && offset < RAM_SIZE) {
+            if (ramPagesWatched[offset >> RAM_PAGE_SHIFT] != 0) _ramPageWritten(offset >> RAM_PAGE_SHIFT);
             ramD[offset >> 2] = (ramD[offset >> 2] & mask) | nvalue;
         } else if (address < HW_END && address >= HW_BASE) {
             Hardware.write16(address, value);
@@ -1200,6 +1377,7 @@ public final class AddressSpaceImpl extends SingletonJPSXComponent implements Cl
                 nvalue = value << 16;
         }
         address = (address & RAM_AND) >> 2;
+        if (ramPagesWatched[address >> (RAM_PAGE_SHIFT - 2)] != 0) _ramPageWritten(address >> (RAM_PAGE_SHIFT - 2));
         ramD[address] = (ramD[address] & mask) | nvalue;
         return;
     }
@@ -1240,12 +1418,15 @@ public final class AddressSpaceImpl extends SingletonJPSXComponent implements Cl
         int prefix = address >> 28;
         int offset = address & OFFSET_MASK;
         if (prefix == -8 && offset < RAM_SIZE) {
+            if (ramPagesWatched[offset >> RAM_PAGE_SHIFT] != 0) _ramPageWritten(offset >> RAM_PAGE_SHIFT);
             ramD[offset >> 2] = value;
         } else if (address < SCRATCH_END && address >= SCRATCH_BASE) {
             scratch[(offset & SCRATCH_MASK) >> 2] = value;
         } else if (prefix == 0 && offset < RAM_SIZE) {
+            if (ramPagesWatched[offset >> RAM_PAGE_SHIFT] != 0) _ramPageWritten(offset >> RAM_PAGE_SHIFT);
             ramD[offset >> 2] = value;
         } else if (prefix == -6 && offset < RAM_SIZE) {
+            if (ramPagesWatched[offset >> RAM_PAGE_SHIFT] != 0) _ramPageWritten(offset >> RAM_PAGE_SHIFT);
             ramD[offset >> 2] = value;
         } else if (address < HW_END && address >= HW_BASE) {
             Hardware.write32(address, value);
@@ -1300,6 +1481,7 @@ public final class AddressSpaceImpl extends SingletonJPSXComponent implements Cl
         int prefix = address >> 28;
         int offset = address & OFFSET_MASK;
         if (prefix == -8 && offset < RAM_SIZE) {
+            if (ramPagesWatched[offset >> RAM_PAGE_SHIFT] != 0) _ramPageWritten(offset >> RAM_PAGE_SHIFT);
             ram[offset >> 2] = value;
         } else if (address < SCRATCH_END && address >= SCRATCH_BASE) {
             scratch[(offset & SCRATCH_MASK) >> 2] = value;
@@ -1310,12 +1492,38 @@ public final class AddressSpaceImpl extends SingletonJPSXComponent implements Cl
         } else if (address >= BIOS_BASE && address < BIOS_END) {
             bios[(offset & BIOS_MASK) >> 2] = value;
         } else if (prefix == 0 && offset < RAM_SIZE) {
+            if (ramPagesWatched[offset >> RAM_PAGE_SHIFT] != 0) _ramPageWritten(offset >> RAM_PAGE_SHIFT);
             ram[offset >> 2] = value;
         } else if (prefix == -6 && offset < RAM_SIZE) {
+            if (ramPagesWatched[offset >> RAM_PAGE_SHIFT] != 0) _ramPageWritten(offset >> RAM_PAGE_SHIFT);
             ram[offset >> 2] = value;
         }
     }
 
+    /**
+     * Called on the first write to a watched page of RAM (from here, or from compiled code)
+     */
+    public static void _ramPageWritten(int page) {
+        ramPagesWatched[page] = 0;
+        ramPagesWritten[page] = true;
+        synchronized (staleRAMPagesLock) {
+            if (!ramPagesTagsStale[page]) {
+                ramPagesTagsStale[page] = true;
+                staleRAMPages[staleRAMPageCount++] = page;
+            }
+        }
+    }
+
+    public void watchRAMPage(int address) {
+        int page = (address & (RAM_SIZE - 1)) >> RAM_PAGE_SHIFT;
+        ramPagesWritten[page] = false;
+        ramPagesWatched[page] = 1;
+    }
+
+    public boolean isRAMPageWritten(int address) {
+        return ramPagesWritten[(address & (RAM_SIZE - 1)) >> RAM_PAGE_SHIFT];
+    }
+
     private static Map<Integer, Method> read8Callbacks = CollectionsFactory.newHashMap();
     private static Map<Integer, Method> read16Callbacks = CollectionsFactory.newHashMap();
     private static Map<Integer, Method> subRead16Callbacks = CollectionsFactory.newHashMap();
@@ -1465,6 +1673,12 @@ public final class AddressSpaceImpl extends SingletonJPSXComponent implements Cl
             int offset = address & OFFSET_MASK;
             int offset2 = end & OFFSET_MASK;
             if ((prefix == 0 || prefix == -8 || prefix == -6) && offset < RAM_SIZE && offset2 < RAM_SIZE) {
+                if (write) {
+                    // e.g. DMA; we assume the caller writes the whole range
+                    for (int page = offset >> RAM_PAGE_SHIFT; page <= offset2 >> RAM_PAGE_SHIFT; page++) {
+                        if (ramPagesWatched[page] != 0) _ramPageWritten(page);
+                    }
+                }
                 result.mem = ram;
                 result.offset = offset >> 2;
                 result.tag = TAG_RAM;
@@ -1523,9 +1737,20 @@ public final class AddressSpaceImpl extends SingletonJPSXComponent implements Cl
     public void enableMemoryWrite(boolean enableWrite) {
         ramD = enableWrite ? ram : ramDummy;
         if (!enableWrite && writeEnabled) {
-            // clear all the tags
-            for (int i = 0; i < RAM_SIZE / 4; i++) {
-                ramTags[i] = 0;
+            // clear the tags, other than the compiler's, for pages which have been written since the last flush; tags
+            // for code which hasn't changed are still good. The compiler is told about the flush below, and is
+            // responsible for clearing its own tags for any code which may have changed
+            synchronized (staleRAMPagesLock) {
+                for (int j = 0; j < staleRAMPageCount; j++) {
+                    int page = staleRAMPages[j];
+                    int end = (page + 1) << (RAM_PAGE_SHIFT - 2);
+                    for (int i = page << (RAM_PAGE_SHIFT - 2); i < end; i++) {
+                        ramTags[i] &= COMPILER_TAGS;
+                    }
+                    ramPagesTagsStale[page] = false;
+                    ramPagesWatched[page] = 1;
+                }
+                staleRAMPageCount = 0;
             }
             addressSpaceListeners.cacheCleared();
         }
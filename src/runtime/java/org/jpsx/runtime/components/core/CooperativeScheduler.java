@@ -0,0 +1,387 @@
+/*
+ * Copyright (C) 2003, 2014 Graham Sanderson
+ *
+ * This file is part of JPSX.
+ *
+ * JPSX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JPSX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JPSX.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpsx.runtime.components.core;
+
+import org.apache.log4j.Logger;
+import org.jpsx.api.components.core.cpu.PollBlockListener;
+import org.jpsx.api.components.core.cpu.R3000;
+import org.jpsx.api.components.core.scheduler.DeterministicQuartz;
+import org.jpsx.api.components.core.scheduler.Quartz;
+import org.jpsx.api.components.core.scheduler.QuartzRateListener;
+import org.jpsx.api.components.core.scheduler.ScheduledAction;
+import org.jpsx.api.components.core.scheduler.Scheduler;
+import org.jpsx.api.components.core.scheduler.VariableRateQuartz;
+import org.jpsx.bootstrap.util.CollectionsFactory;
+import org.jpsx.runtime.SingletonJPSXComponent;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Single threaded alternative to {@link MTScheduler}; all actions are called back on the R3000 execution thread,
+ * at the CPU's interrupt checks once they are due, so hardware state touched by the actions is only ever touched
+ * by that thread.
+ * <p/>
+ * The queue of actions is owned by the execution thread. Other threads pass their requests via a synchronized
+ * mailbox which is emptied at the next dispatch, so {@link #isScheduled} is only exact on the execution thread.
+ * <p/>
+ * With a {@link DeterministicQuartz}, dispatch is driven by its alarm. Otherwise a timer thread sleeps until the
+ * next deadline and then asks the CPU to dispatch at its next breakout check; it never touches the queue itself.
+ */
+public class CooperativeScheduler extends SingletonJPSXComponent implements Scheduler, QuartzRateListener {
+    private static final Logger log = Logger.getLogger("Scheduler");
+    private static final boolean logTraceEnabled = log.isTraceEnabled();
+
+    // how often (in quartz time) the jitter histogram is logged, if debug logging is enabled
+    private static final long JITTER_LOG_PERIOD = 10 * Quartz.SEC;
+
+    public CooperativeScheduler() {
+        super("JPSX Single-threaded Cooperative Scheduler");
+    }
+
+    private Quartz quartz;
+    private DeterministicQuartz deterministicQuartz;
+    private R3000 r3000;
+    private PollBlockListener pollBlockListeners;
+
+    // these are only touched by the execution thread
+    private final PriorityQueue<ScheduledEntry> queue = new PriorityQueue<ScheduledEntry>();
+    private final List<ScheduledEntry> due = CollectionsFactory.newArrayList();
+    private long nextSequence;
+    private ScheduledAction running;
+    private boolean runningCancelled;
+    private final JitterHistogram jitter = new JitterHistogram();
+    private long nextJitterLogTime = JITTER_LOG_PERIOD;
+
+    /**
+     * schedule and cancel requests from other threads, in the order they were made
+     */
+    private final List<Request> incoming = CollectionsFactory.newArrayList();
+    private volatile boolean hasIncoming;
+
+    // the time of the next action, published by the execution thread for the timer thread
+    private volatile long wakeupTime = Long.MAX_VALUE;
+    // set by the timer thread once it has asked the CPU to dispatch, and cleared by the dispatch
+    private volatile boolean dispatchRequested;
+    private TimerThread timerThread;
+
+    private final Object cpuControlMonitor = new Object();
+    private volatile int cpuResumeCount;
+
+    private final Runnable dispatcher = new Runnable() {
+        public void run() {
+            dispatch();
+        }
+    };
+
+    private static class Request {
+        private final long time;
+        private final ScheduledAction action;
+        private final boolean cancel;
+
+        private Request(long time, ScheduledAction action, boolean cancel) {
+            this.time = time;
+            this.action = action;
+            this.cancel = cancel;
+        }
+    }
+
+    public void init() {
+        super.init();
+        CoreComponentConnections.SCHEDULER.set(this);
+        CoreComponentConnections.QUARTZ_RATE_LISTENERS.add(this);
+    }
+
+    public void resolveConnections() {
+        super.resolveConnections();
+        quartz = CoreComponentConnections.QUARTZ.resolve();
+        if (quartz instanceof DeterministicQuartz) {
+            deterministicQuartz = (DeterministicQuartz) quartz;
+        }
+        r3000 = CoreComponentConnections.R3000.resolve();
+        pollBlockListeners = CoreComponentConnections.POLL_BLOCK_LISTENERS.resolve();
+    }
+
+    public void begin() {
+        if (deterministicQuartz == null) {
+            timerThread = new TimerThread();
+            timerThread.start();
+        }
+    }
+
+    public void schedule(long time, ScheduledAction action) {
+        schedule(time, Quartz.MSEC, action);
+    }
+
+    public void schedule(long time, long jitter, ScheduledAction action) {
+        if (logTraceEnabled) {
+            log.trace("Adding " + traceTime(time) + " " + action);
+        }
+        if (r3000.isExecutionThread()) {
+            add(time, action);
+            updateWakeupTime();
+        } else {
+            post(new Request(time, action, false));
+        }
+    }
+
+    public boolean isScheduled(ScheduledAction action) {
+        if (r3000.isExecutionThread()) {
+            if (running == action && !runningCancelled) return true;
+            for (ScheduledEntry entry : queue) {
+                if (entry.action == action) return true;
+            }
+            for (ScheduledEntry entry : due) {
+                if (entry.action == action && !entry.cancelled) return true;
+            }
+        }
+        boolean rc = false;
+        synchronized (incoming) {
+            for (Request request : incoming) {
+                if (request.action == action) rc = !request.cancel;
+            }
+        }
+        return rc;
+    }
+
+    public void cancel(ScheduledAction action) {
+        if (r3000.isExecutionThread()) {
+            remove(action);
+            updateWakeupTime();
+        } else {
+            post(new Request(0L, action, true));
+        }
+    }
+
+    public void quartzRateChanged() {
+        // both the timer thread and a blocked CPU may be sleeping for a real time calculated at the old rate;
+        // the CPU just dispatches anything due, and blocks again
+        if (timerThread != null) {
+            LockSupport.unpark(timerThread);
+        }
+        cpuThreadNotify();
+    }
+
+    public void cpuThreadWait() {
+        assert r3000.isExecutionThread();
+        pollBlockListeners.aboutToBlock();
+        long delay = 0L;
+        if (deterministicQuartz != null) {
+            if (deterministicQuartz.skipToAlarm()) {
+                // no time passes while we're blocked, so we move straight on to the next action
+                return;
+            }
+        } else {
+            drainIncoming();
+            if (!queue.isEmpty()) {
+                delay = queue.peek().time - quartz.nanoTime();
+                if (delay <= 0) {
+                    dispatch();
+                    return;
+                }
+                delay = VariableRateQuartz.Util.realDelay(quartz, delay);
+            }
+        }
+        int count = cpuResumeCount;
+        synchronized (cpuControlMonitor) {
+            // if we've had an interruption in the meanwhile, then we don't bother to wait
+            if (count == cpuResumeCount) {
+                try {
+                    if (delay == 0L) {
+                        cpuControlMonitor.wait();
+                    } else {
+                        cpuControlMonitor.wait(delay / Quartz.MSEC, (int) (delay % Quartz.MSEC));
+                    }
+                } catch (InterruptedException e) {
+                }
+            }
+        }
+        if (deterministicQuartz == null) {
+            dispatch();
+        }
+    }
+
+    public void cpuThreadNotify() {
+        synchronized (cpuControlMonitor) {
+            cpuResumeCount++;
+            cpuControlMonitor.notify();
+        }
+    }
+
+    private void add(long time, ScheduledAction action) {
+        queue.add(new ScheduledEntry(time, nextSequence++, action));
+    }
+
+    private void remove(ScheduledAction action) {
+        if (running == action) {
+            runningCancelled = true;
+        }
+        for (Iterator<ScheduledEntry> i = queue.iterator(); i.hasNext();) {
+            if (i.next().action == action) {
+                i.remove();
+            }
+        }
+        for (ScheduledEntry entry : due) {
+            if (entry.action == action) {
+                entry.cancelled = true;
+            }
+        }
+    }
+
+    /**
+     * Called from any thread other than the execution thread
+     */
+    private void post(Request request) {
+        synchronized (incoming) {
+            incoming.add(request);
+            hasIncoming = true;
+        }
+        requestDispatch();
+        // the CPU may be blocked waiting for something to happen
+        cpuThreadNotify();
+    }
+
+    private void requestDispatch() {
+        if (deterministicQuartz != null) {
+            deterministicQuartz.setAlarm(quartz.nanoTime(), dispatcher);
+        } else {
+            wakeupTime = Long.MIN_VALUE;
+            LockSupport.unpark(timerThread);
+        }
+    }
+
+    private void drainIncoming() {
+        if (!hasIncoming) return;
+        Request[] requests;
+        synchronized (incoming) {
+            requests = incoming.toArray(new Request[incoming.size()]);
+            incoming.clear();
+            hasIncoming = false;
+        }
+        for (Request request : requests) {
+            if (request.cancel) {
+                remove(request.action);
+            } else {
+                add(request.time, request.action);
+            }
+        }
+    }
+
+    /**
+     * Publish the time of the next action; called by the execution thread whenever the queue changes
+     */
+    private void updateWakeupTime() {
+        long next = queue.isEmpty() ? Long.MAX_VALUE : queue.peek().time;
+        if (deterministicQuartz != null) {
+            deterministicQuartz.setAlarm(next, dispatcher);
+        } else {
+            wakeupTime = next;
+            if (timerThread != null) {
+                LockSupport.unpark(timerThread);
+            }
+        }
+        // we may have raced with a request from another thread
+        if (hasIncoming) {
+            requestDispatch();
+        }
+    }
+
+    /**
+     * Run all actions which are due; called on the execution thread
+     */
+    private void dispatch() {
+        assert r3000.isExecutionThread();
+        dispatchRequested = false;
+        drainIncoming();
+        long now = quartz.nanoTime();
+        if (logTraceEnabled) {
+            log.trace("Dispatch " + traceTime(now));
+        }
+        // anything re-scheduled for no later than now waits for the next dispatch
+        while (!queue.isEmpty() && queue.peek().time <= now) {
+            due.add(queue.poll());
+        }
+        for (ScheduledEntry entry : due) {
+            // the action may have been cancelled by an earlier action
+            if (entry.cancelled) continue;
+            running = entry.action;
+            runningCancelled = false;
+            jitter.record(now - entry.time);
+            if (logTraceEnabled) {
+                log.trace("Run " + entry.action);
+            }
+            long rescheduleTime = entry.action.run(now);
+            if (logTraceEnabled) {
+                log.trace("Reschedule = " + traceTime(rescheduleTime));
+            }
+            if (rescheduleTime != 0L && !runningCancelled) {
+                add(rescheduleTime, entry.action);
+            }
+            running = null;
+        }
+        due.clear();
+        if (now >= nextJitterLogTime) {
+            if (log.isDebugEnabled()) {
+                log.debug("Jitter " + jitter);
+            }
+            nextJitterLogTime = now + JITTER_LOG_PERIOD;
+        }
+        updateWakeupTime();
+    }
+
+    /**
+     * Sleeps until the next action is due, then has the CPU call {@link CooperativeScheduler#dispatch} at its
+     * next breakout check
+     */
+    private class TimerThread extends Thread {
+        public TimerThread() {
+            super("JPSX Scheduler timer thread");
+            setPriority(NORM_PRIORITY + 2);
+            setDaemon(true);
+        }
+
+        public void run() {
+            log.info("Scheduler timer thread starts");
+            for (; ;) {
+                long t = wakeupTime;
+                if (dispatchRequested || t == Long.MAX_VALUE) {
+                    LockSupport.park(this);
+                    continue;
+                }
+                long now = quartz.nanoTime();
+                if (now >= t) {
+                    dispatchRequested = true;
+                    // an instruction deadline of 0 has always passed, so the CPU runs the dispatcher at its next check
+                    r3000.setInstructionDeadline(0L, dispatcher);
+                    r3000.requestBreakout();
+                } else {
+                    // we are unparked if the wakeup time or the quartz rate changes; the quartz may also have
+                    // been paused meanwhile, so we always check the time again
+                    LockSupport.parkNanos(this, VariableRateQuartz.Util.realDelay(quartz, t - now));
+                }
+            }
+        }
+    }
+
+    private static String traceTime(long time) {
+        return String.valueOf(time / Quartz.MSEC);
+    }
+}
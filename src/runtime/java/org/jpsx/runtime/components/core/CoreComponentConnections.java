@@ -28,6 +28,7 @@ import org.jpsx.api.components.core.dma.DMAController;
 import org.jpsx.api.components.core.irq.IRQController;
 import org.jpsx.api.components.core.irq.IRQOwner;
 import org.jpsx.api.components.core.scheduler.Quartz;
+import org.jpsx.api.components.core.scheduler.QuartzRateListener;
 import org.jpsx.api.components.core.scheduler.Scheduler;
 import org.jpsx.bootstrap.connection.MultipleConnection;
 import org.jpsx.bootstrap.connection.SimpleConnection;
@@ -50,4 +51,5 @@ public class CoreComponentConnections {
     public static final MultipleConnection<MemoryMapped> ALL_MEMORY_MAPPED = MultipleConnection.create("Memory Mapped", MemoryMapped.class);
     public static final MultipleConnection<Runnable> ALL_POPULATORS = MultipleConnection.create("Memory Populators", Runnable.class);
     public static final MultipleConnection<PollBlockListener> POLL_BLOCK_LISTENERS = MultipleConnection.create("Poll Block Listeners", PollBlockListener.class);
+    public static final MultipleConnection<QuartzRateListener> QUARTZ_RATE_LISTENERS = MultipleConnection.create("Quartz Rate Listeners", QuartzRateListener.class);
 }
@@ -18,32 +18,88 @@
  */
 package org.jpsx.runtime.components.core;
 
+import org.apache.log4j.Logger;
 import org.jpsx.api.CPUListener;
-import org.jpsx.api.components.core.scheduler.Quartz;
+import org.jpsx.api.components.core.scheduler.QuartzRateListener;
+import org.jpsx.api.components.core.scheduler.VariableRateQuartz;
 import org.jpsx.runtime.JPSXComponent;
 
 /**
- * Simple JDK5 nanotime quartz
+ * Simple JDK5 nanotime quartz, which may be run faster or slower than real time.
+ * <p/>
+ * The time is calculated from an immutable {@link State} published via a volatile field, so reading the time
+ * (which the counters and schedulers do very frequently) involves no locking. Pausing, resuming and changing
+ * the rate are rare, so these simply replace the state under a lock. The {@link QuartzRateListener}s are told
+ * of a change of rate, since they may be sleeping until a quartz time.
  */
-public class DefaultQuartz extends JPSXComponent implements Quartz, CPUListener {
-    private long base;
-    private long stoppedAt;
+public class DefaultQuartz extends JPSXComponent implements VariableRateQuartz, CPUListener {
+    private static final Logger log = Logger.getLogger("Quartz");
+
+    private volatile State state;
+    private QuartzRateListener rateListeners;
+
+    private static class State {
+        /**
+         * System.nanoTime() when the state was created
+         */
+        final long base;
+        /**
+         * the quartz time when the state was created
+         */
+        final long offset;
+        final double rate;
+        final boolean paused;
+
+        State(long base, long offset, double rate, boolean paused) {
+            this.base = base;
+            this.offset = offset;
+            this.rate = rate;
+            this.paused = paused;
+        }
+
+        long nanoTime(long now) {
+            if (paused) return offset;
+            long elapsed = now - base;
+            // avoid floating point in the common case
+            if (rate == 1.0) return offset + elapsed;
+            return offset + (long) (elapsed * rate);
+        }
+    }
 
     public void init() {
         super.init();
-        base = System.nanoTime();
-        cpuPaused();
+        double rate = 1.0;
+        String val = getProperty("rate", null);
+        // an unset machine variable gives an empty value
+        if (val != null && val.length() != 0) {
+            try {
+                rate = Double.parseDouble(val);
+            } catch (NumberFormatException e) {
+                rate = Double.NaN;
+            }
+            if (!(rate >= MIN_RATE && rate <= MAX_RATE)) {
+                // same check as setRate, but a bad machine configuration shouldn't stop the machine
+                double clamped = Double.isNaN(rate) ? 1.0 : Math.max(MIN_RATE, Math.min(MAX_RATE, rate));
+                log.warn("Invalid quartz rate \"" + val + "\"; expected a number between " + MIN_RATE + " and " + MAX_RATE + ", using " + clamped);
+                rate = clamped;
+            }
+        }
+        state = new State(System.nanoTime(), 0L, rate, true);
         CoreComponentConnections.QUARTZ.set(this);
         CoreComponentConnections.CPU_LISTENERS.add(this);
     }
 
+    public void resolveConnections() {
+        super.resolveConnections();
+        rateListeners = CoreComponentConnections.QUARTZ_RATE_LISTENERS.resolve();
+    }
+
     public DefaultQuartz() {
         super("JPSX System.nanoTime() Quartz");
     }
 
-    public synchronized long nanoTime() {
-        if (stoppedAt != 0L) return stoppedAt - base;
-        return System.nanoTime() - base;
+    public long nanoTime() {
+        return state.nanoTime(System.nanoTime());
     }
 
     public long bestGranularity() {
@@ -56,18 +112,34 @@ public class DefaultQuartz extends JPSXComponent implements Quartz, CPUListener
         return nanoTime();
     }
 
+    public double getRate() {
+        return state.rate;
+    }
+
+    public void setRate(double rate) {
+        if (!(rate >= MIN_RATE && rate <= MAX_RATE)) {
+            throw new IllegalArgumentException("rate " + rate + " is not between " + MIN_RATE + " and " + MAX_RATE);
+        }
+        synchronized (this) {
+            State s = state;
+            long now = System.nanoTime();
+            state = new State(now, s.nanoTime(now), rate, s.paused);
+        }
+        rateListeners.quartzRateChanged();
+    }
+
     public synchronized void cpuResumed() {
-        if (stoppedAt != 0L) {
-            base += System.nanoTime() - stoppedAt;
-            stoppedAt = 0L;
+        State s = state;
+        if (s.paused) {
+            state = new State(System.nanoTime(), s.offset, s.rate, false);
         }
     }
 
     public synchronized void cpuPaused() {
-        if (stoppedAt == 0L) {
-            stoppedAt = System.nanoTime();
-            // would be VERY unlucky!
-            if (stoppedAt == 0L) stoppedAt = 1L;
+        State s = state;
+        if (!s.paused) {
+            long now = System.nanoTime();
+            state = new State(now, s.nanoTime(now), s.rate, true);
         }
     }
 }
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2003, 2014 Graham Sanderson
+ *
+ * This file is part of JPSX.
+ *
+ * JPSX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JPSX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JPSX.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpsx.runtime.components.core;
+
+import org.jpsx.api.components.core.cpu.R3000;
+import org.jpsx.api.components.core.scheduler.DeterministicQuartz;
+import org.jpsx.api.components.core.scheduler.Quartz;
+import org.jpsx.runtime.JPSXComponent;
+
+/**
+ * Quartz whose time is the number of R3000 instructions executed, at a fixed number of instructions
+ * per second, so that emulated time no longer depends on how fast the host runs the emulated code.
+ * <p/>
+ * The instruction count is maintained by the execution thread; other threads see a slightly stale value.
+ */
+public class InstructionCountQuartz extends JPSXComponent implements DeterministicQuartz {
+    // one instruction per R3000 clock cycle; this ignores stalls, but is close enough for timing purposes
+    private static final int DEFAULT_INSTRUCTIONS_PER_SECOND = 33868800;
+
+    private long instructionsPerSecond;
+    private R3000 r3000;
+    private long alarmInstructionCount = Long.MAX_VALUE;
+    private Runnable alarm;
+
+    public InstructionCountQuartz() {
+        super("JPSX Instruction Count Quartz");
+    }
+
+    public void init() {
+        super.init();
+        instructionsPerSecond = Math.max(1, getIntProperty("instructionsPerSecond", DEFAULT_INSTRUCTIONS_PER_SECOND));
+        CoreComponentConnections.QUARTZ.set(this);
+    }
+
+    public void resolveConnections() {
+        super.resolveConnections();
+        r3000 = CoreComponentConnections.R3000.resolve();
+        // must be done before any code is compiled
+        r3000.enableInstructionCounting();
+    }
+
+    public long nanoTime() {
+        long count = r3000.getInstructionCount();
+        // split to avoid overflow
+        return (count / instructionsPerSecond) * Quartz.SEC + ((count % instructionsPerSecond) * Quartz.SEC) / instructionsPerSecond;
+    }
+
+    public long bestGranularity() {
+        return Math.max(1L, Quartz.SEC / instructionsPerSecond);
+    }
+
+    public long nanoTime(long granularity) {
+        return nanoTime();
+    }
+
+    public synchronized void setAlarm(long time, Runnable alarm) {
+        // the R3000 keeps a deadline per action, so we must clear the one for any alarm this replaces
+        if (this.alarm != null && this.alarm != alarm) {
+            r3000.clearInstructionDeadline(this.alarm);
+        }
+        this.alarm = alarm;
+        if (time == Long.MAX_VALUE || alarm == null) {
+            alarmInstructionCount = Long.MAX_VALUE;
+            if (alarm != null) {
+                r3000.clearInstructionDeadline(alarm);
+            }
+        } else {
+            // the first instruction count whose time is not before the requested time
+            alarmInstructionCount = (time / Quartz.SEC) * instructionsPerSecond + ((time % Quartz.SEC) * instructionsPerSecond + Quartz.SEC - 1) / Quartz.SEC;
+            r3000.setInstructionDeadline(alarmInstructionCount, alarm);
+        }
+    }
+
+    public boolean skipToAlarm() {
+        long target;
+        synchronized (this) {
+            target = alarmInstructionCount;
+        }
+        if (target == Long.MAX_VALUE) return false;
+        long count = r3000.getInstructionCount();
+        if (target > count) {
+            // the alarm is raised at the CPU's next interrupt check
+            r3000.advanceInstructionCount(target - count);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2003, 2014 Graham Sanderson
+ *
+ * This file is part of JPSX.
+ *
+ * JPSX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JPSX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JPSX.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpsx.runtime.components.core;
+
+/**
+ * Histogram of how late scheduled actions are called back; bucket 0 counts those under 1us late, and bucket n
+ * those between 2^(n-1) and 2^n us late (the last bucket counts anything later still)
+ */
+class JitterHistogram {
+    private static final int BUCKETS = 24;
+    private final long[] counts = new long[BUCKETS];
+    private long total;
+    private long max;
+
+    public void record(long lateness) {
+        if (lateness < 0) lateness = 0;
+        long micros = lateness / 1000;
+        int bucket = micros == 0 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        counts[bucket]++;
+        total++;
+        if (lateness > max) max = lateness;
+    }
+
+    public String toString() {
+        StringBuilder rc = new StringBuilder();
+        rc.append(total).append(" actions, max ").append(max / 1000).append("us:");
+        for (int i = 0; i < BUCKETS; i++) {
+            if (counts[i] != 0) {
+                rc.append(" <").append(1L << i).append("us=").append(counts[i]);
+            }
+        }
+        return rc.toString();
+    }
+}
@@ -21,24 +21,37 @@ package org.jpsx.runtime.components.core;
 import org.apache.log4j.Logger;
 import org.jpsx.api.components.core.cpu.PollBlockListener;
 import org.jpsx.api.components.core.cpu.R3000;
+import org.jpsx.api.components.core.scheduler.DeterministicQuartz;
 import org.jpsx.api.components.core.scheduler.Quartz;
+import org.jpsx.api.components.core.scheduler.QuartzRateListener;
 import org.jpsx.api.components.core.scheduler.ScheduledAction;
 import org.jpsx.api.components.core.scheduler.Scheduler;
+import org.jpsx.api.components.core.scheduler.VariableRateQuartz;
+import org.jpsx.bootstrap.util.CollectionsFactory;
 import org.jpsx.runtime.SingletonJPSXComponent;
 
-public class MTScheduler extends SingletonJPSXComponent implements Scheduler {
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.LockSupport;
+
+public class MTScheduler extends SingletonJPSXComponent implements Scheduler, QuartzRateListener {
     private static final Logger log = Logger.getLogger("Scheduler");
     private static final boolean logTraceEnabled = log.isTraceEnabled();
 
+    // how often (in quartz time) the jitter histogram is logged, if debug logging is enabled
+    private static final long JITTER_LOG_PERIOD = 10 * Quartz.SEC;
+
     public MTScheduler() {
         super("JPSX Multi-threaded Scheduler");
     }
 
     private Quartz quartz;
+    // non null if time only passes while the CPU executes, in which case actions are run in lockstep with the CPU
+    private DeterministicQuartz deterministicQuartz;
     private R3000 r3000;
     private PollBlockListener pollBlockListeners;
 
-    private static TickGeneratorThread tickThread;
     private static ActionThread actionThread;
 
     private static final Object cpuControlMonitor = new Object();
@@ -46,20 +59,22 @@ public class MTScheduler extends SingletonJPSXComponent implements Scheduler {
 
     public void init() {
         super.init();
-        tickThread = new TickGeneratorThread();
         actionThread = new ActionThread();
         CoreComponentConnections.SCHEDULER.set(this);
+        CoreComponentConnections.QUARTZ_RATE_LISTENERS.add(this);
     }
 
     public void resolveConnections() {
         super.resolveConnections();
         quartz = CoreComponentConnections.QUARTZ.resolve();
+        if (quartz instanceof DeterministicQuartz) {
+            deterministicQuartz = (DeterministicQuartz) quartz;
+        }
         r3000 = CoreComponentConnections.R3000.resolve();
         pollBlockListeners = CoreComponentConnections.POLL_BLOCK_LISTENERS.resolve();
     }
 
     public void begin() {
-        tickThread.start();
         actionThread.start();
     }
 
@@ -68,10 +83,7 @@ public class MTScheduler extends SingletonJPSXComponent implements Scheduler {
     }
 
     public void schedule(long time, long jitter, ScheduledAction action) {
-        if (jitter < Quartz.MSEC) {
-            // todo fix this via CPU
-            throw new IllegalStateException("jitter <1 msec not yet supported");
-        }
+        // we always sleep until exactly the requested time, so there is nothing more we can do for a small jitter
         actionThread.schedule(time, action);
     }
 
@@ -80,9 +92,22 @@ public class MTScheduler extends SingletonJPSXComponent implements Scheduler {
         return actionThread.isScheduled(action);
     }
 
+    public void cancel(ScheduledAction action) {
+        actionThread.cancel(action);
+    }
+
+    public void quartzRateChanged() {
+        // the action thread may be sleeping for a real time calculated at the old rate
+        LockSupport.unpark(actionThread);
+    }
+
     public void cpuThreadWait() {
         assert r3000.isExecutionThread();
         pollBlockListeners.aboutToBlock();
+        if (deterministicQuartz != null && deterministicQuartz.skipToAlarm()) {
+            // no time passes while we're blocked, so we move straight on to the next action
+            return;
+        }
         int count = cpuResumeCount;
         synchronized (cpuControlMonitor) {
             // if we've had an interruption in the meanwhile, then we don't bother to wait
@@ -102,49 +127,47 @@ public class MTScheduler extends SingletonJPSXComponent implements Scheduler {
         }
     }
 
+    private class ActionThread extends Thread {
+        /**
+         * All pending schedulings; there may be more than one per action
+         */
+        private final PriorityQueue<ScheduledEntry> queue = new PriorityQueue<ScheduledEntry>();
+        private long nextSequence;
 
-    /**
-     * high priority thread which does tight sleep(1) loop. On Win32 this keeps
-     * pretty good time
-     */
-    private static class TickGeneratorThread extends Thread {
-        private TickGeneratorThread() {
-            super("JPSX Scheduler tick generator thread");
-            setPriority(MAX_PRIORITY);
-            setDaemon(true);
-        }
-
-        public void run() {
-            log.info("Tick generator thread starts");
-            try {
-                for (; ;) {
-                    actionThread.tick();
-                    try {
-                        sleep(1);
-                    } catch (InterruptedException e) {
-                    }
-                }
-            } finally {
-                log.info("Tick generator thread ends");
-            }
-        }
-    }
+        /**
+         * The entries taken from the queue for the current pass; only modified by the action thread
+         */
+        private final List<ScheduledEntry> due = CollectionsFactory.newArrayList();
 
-    private class ActionThread extends Thread {
-        private static final int MAX_ACTIONS = 64;
         /**
-         * List of actions, not kept sorted since it is generally small; indeed we limit the size
-         * the list does not auto-compact instead null entries are left in the middle
+         * the action currently being called back (if any), and whether it has been cancelled in the meanwhile
          */
-        private ScheduledAction[] actions = new ScheduledAction[MAX_ACTIONS];
+        private ScheduledAction running;
+        private boolean runningCancelled;
+
         /**
-         * List of scheduled times, not kept sorted since it is generally small; indeed we limit the size
-         * the list does not auto-compact instead null entries are left in the middle marked by 0L time.
+         * With a deterministic quartz, true while the execution thread is waiting for us to run the actions
+         * that are due; this means actions always see the same CPU state, however long they take
          */
-        private long[] times = new long[MAX_ACTIONS];
-        private int length = 0; // length of above arrays
+        private boolean alarmRaised;
 
-        private volatile long wakeupTime = Long.MAX_VALUE;
+        private final Runnable alarm = new Runnable() {
+            public void run() {
+                synchronized (ActionThread.this) {
+                    alarmRaised = true;
+                    LockSupport.unpark(ActionThread.this);
+                    while (alarmRaised) {
+                        try {
+                            ActionThread.this.wait();
+                        } catch (InterruptedException e) {
+                        }
+                    }
+                }
+            }
+        };
+
+        private final JitterHistogram jitter = new JitterHistogram();
+        private long nextJitterLogTime = JITTER_LOG_PERIOD;
 
         public ActionThread() {
             super("JPSX Scheduler action thread");
@@ -152,16 +175,6 @@ public class MTScheduler extends SingletonJPSXComponent implements Scheduler {
             setDaemon(true);
         }
 
-        public void tick() {
-            // called by the tick generator thread, should do any signalling and return ASAP
-            long time = quartz.nanoTime();
-            if (time < wakeupTime) return;
-            synchronized (this) {
-                // wake our potentially blocked thread up
-                notify();
-            }
-        }
-
         public void run() {
             log.info("ScheduledAction thread starts");
             for (; ;) {
@@ -169,70 +182,88 @@ public class MTScheduler extends SingletonJPSXComponent implements Scheduler {
                 if (logTraceEnabled) {
                     log.trace("Wakeup " + traceTime(now));
                 }
-                // make one pass over the array, providing synchronized access to our data structures
-                // but not holding a lock during a callback
-                int i = 0;
-                for (; ;) {
-                    ScheduledAction toRun = null;
+                // take everything which is due now; anything re-scheduled for no later than now waits for the next pass
+                synchronized (this) {
+                    while (!queue.isEmpty() && queue.peek().time <= now) {
+                        due.add(queue.poll());
+                    }
+                }
+                // we don't hold a lock during a callback
+                for (ScheduledEntry entry : due) {
                     synchronized (this) {
-                        if (i >= length) break;
-                        long t = times[i];
-                        if (t != 0L && t <= now) {
-                            toRun = actions[i];
-                            assert toRun != null;
-                        }
+                        // the action may have been cancelled by an earlier action
+                        if (entry.cancelled) continue;
+                        running = entry.action;
+                        runningCancelled = false;
                     }
-                    if (toRun != null) {
-                        if (logTraceEnabled) {
-                            log.trace("Run " + toRun);
-                        }
-                        long rescheduleTime = toRun.run(now);
-                        if (logTraceEnabled) {
-                            log.trace("Reschedule = " + traceTime(rescheduleTime));
+                    jitter.record(quartz.nanoTime() - entry.time);
+                    if (logTraceEnabled) {
+                        log.trace("Run " + entry.action);
+                    }
+                    long rescheduleTime = entry.action.run(now);
+                    if (logTraceEnabled) {
+                        log.trace("Reschedule = " + traceTime(rescheduleTime));
+                    }
+                    synchronized (this) {
+                        if (rescheduleTime != 0L && !runningCancelled) {
+                            queue.add(new ScheduledEntry(rescheduleTime, nextSequence++, entry.action));
                         }
-                        synchronized (this) {
-                            times[i] = rescheduleTime;
-                            if (rescheduleTime == 0L) {
-                                actions[i] = null;
-                                if (i == length) length--;
-                            }
+                        running = null;
+                    }
+                }
+                synchronized (this) {
+                    due.clear();
+                }
+                if (now >= nextJitterLogTime) {
+                    if (log.isDebugEnabled()) {
+                        log.debug("Jitter " + jitter);
+                    }
+                    nextJitterLogTime = now + JITTER_LOG_PERIOD;
+                }
+                synchronized (this) {
+                    if (logTraceEnabled) {
+                        log.trace("New actions: ");
+                        for (ScheduledEntry entry : queue) {
+                            log.trace(traceTime(entry.time) + " " + entry.action);
                         }
                     }
-                    i++;
+                    updateAlarm();
+                    if (alarmRaised) {
+                        alarmRaised = false;
+                        notifyAll();
+                    }
                 }
-                updateWakeupTime();
             }
         }
 
-        private synchronized void updateWakeupTime() {
-            long next = Long.MAX_VALUE;
-            if (logTraceEnabled) {
-                log.trace("New actions: ");
-                for (int i = 0; i < length; i++) {
-                    long t = times[i];
-                    if (t != 0L) {
-                        log.trace(traceTime(t) + " " + actions[i]);
-                    }
-                }
-            }
-            for (int i = 0; i < length; i++) {
-                long t = times[i];
-                if (t != 0L && t < next) next = t;
+        /**
+         * Must be called whenever the head of the queue changes
+         */
+        private void updateAlarm() {
+            assert Thread.holdsLock(this);
+            if (deterministicQuartz != null) {
+                deterministicQuartz.setAlarm(queue.isEmpty() ? Long.MAX_VALUE : queue.peek().time, alarm);
             }
-            wakeupTime = next;
         }
 
         private long sleepUntilWakeupTime() {
             for (; ;) {
-                long t = quartz.nanoTime();
-                if (t >= wakeupTime) return t;
+                long delay;
                 synchronized (this) {
-                    try {
-                        wait();
-                    } catch (InterruptedException e) {
-                        // we interrupt ourselves in {@link #schedule} if an action
-                        // is inserted before the current wakeup time.
-                    }
+                    long t = quartz.nanoTime();
+                    // the execution thread is waiting for a pass, even if it raced with a change of wakeup time
+                    if (alarmRaised) return t;
+                    long wakeupTime = queue.isEmpty() ? Long.MAX_VALUE : queue.peek().time;
+                    if (t >= wakeupTime) return t;
+                    // a deterministic quartz doesn't move on while we sleep, so we wait to be woken by the alarm
+                    delay = (deterministicQuartz != null || wakeupTime == Long.MAX_VALUE) ? 0 : wakeupTime - t;
+                }
+                // we are unparked by {@link #schedule} if an action is inserted before the current wakeup time, and
+                // if the quartz rate changes; the quartz may also have been paused meanwhile, so we always check the time again
+                if (delay == 0) {
+                    LockSupport.park(this);
+                } else {
+                    LockSupport.parkNanos(this, VariableRateQuartz.Util.realDelay(quartz, delay));
                 }
             }
         }
@@ -241,34 +272,47 @@ public class MTScheduler extends SingletonJPSXComponent implements Scheduler {
             if (logTraceEnabled) {
                 log.trace("Adding " + traceTime(time) + " " + action);
             }
-            boolean added = false;
-            for (int i = 0; i < length; i++) {
-                if (actions[i] == null) {
-                    actions[i] = action;
-                    times[i] = time;
-                    added = true;
-                }
-            }
-            if (!added) {
-                if (length == MAX_ACTIONS) throw new IllegalStateException("too many actions");
-                actions[length] = action;
-                times[length++] = time;
-            }
-            if (time < wakeupTime) {
-                wakeupTime = time;
-                // interrupt the action thread, unless we are the action thread!
+            ScheduledEntry entry = new ScheduledEntry(time, nextSequence++, action);
+            queue.add(entry);
+            if (queue.peek() == entry) {
+                updateAlarm();
+                // wake the action thread, unless we are the action thread!
                 if (Thread.currentThread() != this) {
-                    actionThread.interrupt();
+                    LockSupport.unpark(this);
                 }
             }
         }
 
         public synchronized boolean isScheduled(ScheduledAction action) {
-            for (int i = 0; i < length; i++) {
-                if (actions[i] == action) return true;
+            if (running == action && !runningCancelled) return true;
+            for (ScheduledEntry entry : queue) {
+                if (entry.action == action) return true;
+            }
+            for (ScheduledEntry entry : due) {
+                if (entry.action == action && !entry.cancelled) return true;
             }
             return false;
         }
+
+        public synchronized void cancel(ScheduledAction action) {
+            if (running == action) {
+                runningCancelled = true;
+            }
+            ScheduledEntry head = queue.peek();
+            for (Iterator<ScheduledEntry> i = queue.iterator(); i.hasNext();) {
+                if (i.next().action == action) {
+                    i.remove();
+                }
+            }
+            if (queue.peek() != head) {
+                updateAlarm();
+            }
+            for (ScheduledEntry entry : due) {
+                if (entry.action == action) {
+                    entry.cancelled = true;
+                }
+            }
+        }
     }
 
     private static String traceTime(long time) {
@@ -86,7 +86,14 @@ public final class R3000Impl extends SingletonJPSXComponent implements ClassModi
     private static int interpretedJumpAndLinkTarget = -1;
     private static int interpretedJumpAndLinkRetAddr = -1;
 
+    // target of the last interpreted control transfer if it was a jr, otherwise -1
     private static int interpretedJumpTarget = -1;
+
+    // counts of interpreted backward branches hashed by target address; a collision just means entering the compiler a little early
+    private static final int BACKWARD_BRANCH_COUNTS_SIZE = 1024;
+    private static final int[] backwardBranchCounts = new int[BACKWARD_BRANCH_COUNTS_SIZE];
+    // number of interpreted backward branches to an address before we try to enter compiled code there
+    private static int backwardBranchThreshold;
     private static int currentPCDelta;
 
     // todo revisit this; execution control interface
@@ -105,6 +112,12 @@ public final class R3000Impl extends SingletonJPSXComponent implements ClassModi
 
     private static List<Integer> breakpoints = CollectionsFactory.newArrayList();
 
+    // the same breakpoints as a bit per 4K page of the address space, and for pages with breakpoints, a bit per word;
+    // these are only maintained and read on the execution thread
+    private static final int BREAKPOINT_PAGE_SHIFT = 12;
+    private static final long[] breakpointPageBits = new long[1 << (32 - BREAKPOINT_PAGE_SHIFT - 6)];
+    private static final Map<Integer, int[]> breakpointWordBits = CollectionsFactory.newHashMap();
+
     private static NativeCompiler compiler;
     private static CPUListener executionListeners;
 
@@ -118,6 +131,7 @@ public final class R3000Impl extends SingletonJPSXComponent implements ClassModi
     @Override
     public void init() {
         super.init();
+        backwardBranchThreshold = Math.max(1, getIntProperty("backwardBranchThreshold", 256));
         RuntimeConnections.CPU_CONTROL.set(this);
         CoreComponentConnections.R3000.set(this);
         JPSXClassLoader.registerClassModifier(DECODER_CLASS, this);
@@ -429,6 +443,95 @@ public final class R3000Impl extends SingletonJPSXComponent implements ClassModi
     // should ready this only
     public static boolean breakout;
 
+    // number of instructions executed; compiled code adds in the size of each basic block as it enters it, but
+    // only if instruction counting was enabled before the code was generated. This is only used by the execution
+    // thread, so isn't volatile; other threads see publishedInstructionCount
+    public static long instructionCount;
+    // the instruction count as of the execution thread's last breakout
+    private static volatile long publishedInstructionCount;
+    // the earliest of the pending instruction deadlines; read by compiled code at each breakout check
+    public static volatile long instructionDeadline = Long.MAX_VALUE;
+    // pending instruction deadlines, at most one per action, in the order they fall due; guarded by instructionDeadlineLock
+    private static final List<InstructionDeadline> instructionDeadlines = CollectionsFactory.newArrayList();
+    private static final Object instructionDeadlineLock = new Object();
+    private static boolean instructionCounting;
+
+    public void enableInstructionCounting() {
+        instructionCounting = true;
+    }
+
+    public boolean isInstructionCountingEnabled() {
+        return instructionCounting;
+    }
+
+    public long getInstructionCount() {
+        return isExecutionThread() ? instructionCount : publishedInstructionCount;
+    }
+
+    public void advanceInstructionCount(long count) {
+        assert isExecutionThread();
+        instructionCount += count;
+        publishedInstructionCount = instructionCount;
+    }
+
+    private static class InstructionDeadline {
+        final long count;
+        final Runnable action;
+
+        InstructionDeadline(long count, Runnable action) {
+            this.count = count;
+            this.action = action;
+        }
+    }
+
+    public void setInstructionDeadline(long count, Runnable action) {
+        assert action != null;
+        synchronized (instructionDeadlineLock) {
+            removeInstructionDeadline(action);
+            // after any deadlines for the same count, so actions due together run in the order they were set
+            int i = 0;
+            while (i < instructionDeadlines.size() && instructionDeadlines.get(i).count <= count) {
+                i++;
+            }
+            instructionDeadlines.add(i, new InstructionDeadline(count, action));
+            updateInstructionDeadline();
+        }
+    }
+
+    public void clearInstructionDeadline(Runnable action) {
+        synchronized (instructionDeadlineLock) {
+            removeInstructionDeadline(action);
+            updateInstructionDeadline();
+        }
+    }
+
+    private static void removeInstructionDeadline(Runnable action) {
+        for (int i = 0; i < instructionDeadlines.size(); i++) {
+            if (instructionDeadlines.get(i).action == action) {
+                instructionDeadlines.remove(i);
+                return;
+            }
+        }
+    }
+
+    private static void updateInstructionDeadline() {
+        instructionDeadline = instructionDeadlines.isEmpty() ? Long.MAX_VALUE : instructionDeadlines.get(0).count;
+    }
+
+    private static void handleInstructionDeadline() {
+        // only the deadlines which are due now; any an action sets for no later than now wait for the next check
+        List<Runnable> due = CollectionsFactory.newArrayList();
+        synchronized (instructionDeadlineLock) {
+            while (!instructionDeadlines.isEmpty() && instructionDeadlines.get(0).count <= instructionCount) {
+                due.add(instructionDeadlines.remove(0).action);
+            }
+            updateInstructionDeadline();
+        }
+        for (Runnable action : due) {
+            action.run();
+        }
+    }
+
     public void requestBreakout() {
         breakout = true;
         if (compiler != null) {
@@ -440,6 +543,11 @@ public final class R3000Impl extends SingletonJPSXComponent implements ClassModi
         assert isExecutionThread();
         // all breakouts should cause another breakout if they wish to have another one
         breakout = false;
+        publishedInstructionCount = instructionCount;
+        // run the deadline action first, since it may well raise an interrupt
+        if (instructionCount >= instructionDeadline) {
+            handleInstructionDeadline();
+        }
         if (Refs.scp.shouldInterrupt()) {
             restoreInterpreterState();
             Refs.scp.signalInterruptException();
@@ -467,26 +575,19 @@ public final class R3000Impl extends SingletonJPSXComponent implements ClassModi
         }
         do {
             boolean checkBreakout = (currentPCDelta != 4) && (delayedPCDelta == 4); // only check interrupt on non linear flow
+            boolean backwardBranch = checkBreakout && currentPCDelta <= 0;
 
             currentPCDelta = delayedPCDelta;
             delayedPCDelta = 4;
 
-            boolean shouldWait = cpuCmdPending;
-
-            // not using for each since we want to avoid iterator allocation
-            for (int i = 0; i < breakpoints.size(); i++) {
-                if (reg_pc == breakpoints.get(i)) {
-                    shouldWait = true;
-                    break;
-                }
-            }
+            boolean shouldWait = cpuCmdPending || (!breakpointWordBits.isEmpty() && isBreakpoint(reg_pc));
 
             if (shouldWait) {
                 cpuWaitForCmd();
             }
 
 
-            if (checkBreakout && breakout) {
+            if (checkBreakout && (breakout || instructionCount >= instructionDeadline)) {
                 // not sure if this is the right place for this check; basically we don't want to take interrupts while
                 // we're stepping
                 if (!cpuCmdPending) {
@@ -561,6 +662,28 @@ public final class R3000Impl extends SingletonJPSXComponent implements ClassModi
                 }
             }
 
+            if (backwardBranch && !shouldWait && compiler != null && reg_pc != interpretedJumpTarget) {
+                // a branch or j (not jr) back to here; probably a loop, which is worth running compiled
+                int index = (reg_pc >> 2) & (BACKWARD_BRANCH_COUNTS_SIZE - 1);
+                if (++backwardBranchCounts[index] >= backwardBranchThreshold) {
+                    backwardBranchCounts[index] = 0;
+
+                    if (Settings.traceExecutionFlow) {
+                        log.trace("calling compiler for backward branch target " + MiscUtil.toHex(reg_pc, 8));
+                    }
+
+                    inCompiler[executionDepth] = true;
+                    if (compiler.enterAtBranchTarget(reg_pc)) {
+                        // we expect the registers are already restored, and the PC set to where the compiled code left off
+                        inCompiler[executionDepth] = false;
+                        // the compiled code only returns after the delay slot of a jump, so we can't be in a delay slot
+                        delayedPCDelta = 4;
+                        continue;
+                    }
+                    inCompiler[executionDepth] = false;
+                }
+            }
+
             if (reg_pc == interpretedJumpTarget && reg_pc == regs[31]) {
                 if (false && 0 != Refs.scp.currentExceptionType()) {
                     System.out.println("return to " + MiscUtil.toHex(regs[31], 8));
@@ -570,13 +693,17 @@ public final class R3000Impl extends SingletonJPSXComponent implements ClassModi
                 }
             }
 
-            // the virtual invokation here isn't much of a problem compared to the speed of the interpreter
+            // the virtual invokation here isn't much of a problem compared to the speed of the interpreter; nor is the
+            // decode, which is just a tableswitch on the opcode (and a second one for SPECIAL and REGIMM). A per page
+            // cache of predecoded handlers feeding a single switch measured slower than this; even the single switch
+            // alone was slower, most of the time being spent in the rest of this loop and the instructions themselves
             int ci = Refs.addressSpace.internalRead32(reg_pc);
 
             Decoder.invoke(ci);
 
             assert regs[0] == 0 : "instruction changed r0";
 
+            instructionCount++;
             reg_pc += currentPCDelta;
         } while (true);
     }
@@ -608,10 +735,43 @@ public final class R3000Impl extends SingletonJPSXComponent implements ClassModi
         sendCmd(CMD_UPDATE_BREAKPOINTS);
     }
 
+    private static boolean isBreakpoint(int address) {
+        int page = address >>> BREAKPOINT_PAGE_SHIFT;
+        if (0 == (breakpointPageBits[page >> 6] & (1L << page))) {
+            return false;
+        }
+        int word = (address >> 2) & ((1 << (BREAKPOINT_PAGE_SHIFT - 2)) - 1);
+        return 0 != (breakpointWordBits.get(page)[word >> 5] & (1 << word));
+    }
+
+    private static void setBreakpointBit(int address, boolean set) {
+        int page = address >>> BREAKPOINT_PAGE_SHIFT;
+        int word = (address >> 2) & ((1 << (BREAKPOINT_PAGE_SHIFT - 2)) - 1);
+        int[] bits = breakpointWordBits.get(page);
+        if (set) {
+            if (bits == null) {
+                bits = new int[1 << (BREAKPOINT_PAGE_SHIFT - 7)];
+                breakpointWordBits.put(page, bits);
+                breakpointPageBits[page >> 6] |= 1L << page;
+            }
+            bits[word >> 5] |= 1 << word;
+        } else if (bits != null) {
+            bits[word >> 5] &= ~(1 << word);
+            for (int b : bits) {
+                if (b != 0) {
+                    return;
+                }
+            }
+            breakpointWordBits.remove(page);
+            breakpointPageBits[page >> 6] &= ~(1L << page);
+        }
+    }
+
     private static void updateBreakpoints() {
         if (breakpointAdd != -1) {
             if (!breakpoints.contains(breakpointAdd)) {
                 breakpoints.add(0, breakpointAdd);
+                setBreakpointBit(breakpointAdd, true);
                 if (compiler != null) {
                     compiler.addBreakpoint(breakpointAdd);
                 }
@@ -621,6 +781,7 @@ public final class R3000Impl extends SingletonJPSXComponent implements ClassModi
         if (breakpointRemove != -1) {
             if (breakpointRemove >= 0 && breakpointRemove < breakpoints.size()) {
                 int address = breakpoints.remove(breakpointRemove);
+                setBreakpointBit(address, false);
                 if (compiler != null) {
                     compiler.removeBreakpoint(address);
                 }
@@ -628,6 +789,7 @@ public final class R3000Impl extends SingletonJPSXComponent implements ClassModi
                 int index = breakpoints.indexOf(breakpointRemove);
                 if (index != -1) {
                     breakpoints.remove(index);
+                    setBreakpointBit(breakpointRemove, false);
                     if (compiler != null) {
                         compiler.removeBreakpoint(breakpointRemove);
                     }
@@ -970,6 +1132,7 @@ public final class R3000Impl extends SingletonJPSXComponent implements ClassModi
      */
     public void interpreterBranch(int relativeToDelay) {
         delayedPCDelta = relativeToDelay;
+        interpretedJumpTarget = -1;
     }
 
     /**
@@ -992,6 +1155,7 @@ public final class R3000Impl extends SingletonJPSXComponent implements ClassModi
      */
     public void interpreterJumpAndLink(int relativeToDelay, int target, int retAddr) {
         delayedPCDelta = relativeToDelay;
+        interpretedJumpTarget = -1;
         interpretedJumpAndLinkTarget = target;
         interpretedJumpAndLinkRetAddr = retAddr;
     }
@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2003, 2014 Graham Sanderson
+ *
+ * This file is part of JPSX.
+ *
+ * JPSX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JPSX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JPSX.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpsx.runtime.components.core;
+
+import org.jpsx.api.components.core.scheduler.ScheduledAction;
+
+/**
+ * A single scheduling of an action, as queued by the schedulers; entries with the same time are ordered
+ * by when they were scheduled
+ */
+class ScheduledEntry implements Comparable<ScheduledEntry> {
+    final long time;
+    final long sequence;
+    final ScheduledAction action;
+    // set if cancelled after being taken from the queue to be run
+    boolean cancelled;
+
+    ScheduledEntry(long time, long sequence, ScheduledAction action) {
+        this.time = time;
+        this.sequence = sequence;
+        this.action = action;
+    }
+
+    public int compareTo(ScheduledEntry o) {
+        if (time != o.time) return time < o.time ? -1 : 1;
+        if (sequence != o.sequence) return sequence < o.sequence ? -1 : 1;
+        return 0;
+    }
+}
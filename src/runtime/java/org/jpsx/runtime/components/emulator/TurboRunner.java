@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2003, 2014 Graham Sanderson
+ *
+ * This file is part of JPSX.
+ *
+ * JPSX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JPSX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JPSX.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpsx.runtime.components.emulator;
+
+import org.apache.log4j.Logger;
+import org.jpsx.api.CPUControl;
+import org.jpsx.runtime.JPSXComponent;
+import org.jpsx.runtime.RuntimeConnections;
+import org.jpsx.runtime.components.hardware.HardwareComponentConnections;
+
+/**
+ * Replaces the normal entry point with one which runs the machine for a fixed number of emulated
+ * frames (VSyncs) as fast as it will go, then prints the number of emulated frames per wall clock
+ * second and exits.
+ * <p/>
+ * The exit status is 0 if the frame limit was reached, or 1 if it wasn't reached within
+ * timeoutSeconds of wall clock time (if specified).
+ */
+public class TurboRunner extends JPSXComponent implements Runnable {
+    private static final Logger log = Logger.getLogger("Turbo");
+
+    private CPUControl cpuControl;
+    private int frameLimit;
+    private int frames;
+
+    public TurboRunner() {
+        super("JPSX Turbo Runner");
+    }
+
+    public void init() {
+        super.init();
+        frameLimit = Math.max(1, getIntProperty("frames", 3600));
+        RuntimeConnections.MAIN.set(this);
+        HardwareComponentConnections.VSYNC_LISTENERS.add(new Runnable() {
+            public void run() {
+                vsync();
+            }
+        });
+    }
+
+    public void resolveConnections() {
+        super.resolveConnections();
+        cpuControl = RuntimeConnections.CPU_CONTROL.resolve();
+    }
+
+    private synchronized void vsync() {
+        if (++frames == frameLimit) {
+            notifyAll();
+        }
+    }
+
+    public void run() {
+        long timeout = getIntProperty("timeoutSeconds", 0) * 1000L;
+        log.info("Running for " + frameLimit + " frames");
+        long start = System.nanoTime();
+        cpuControl.go();
+        int count;
+        synchronized (this) {
+            long end = System.currentTimeMillis() + timeout;
+            while (frames < frameLimit) {
+                long remaining = timeout == 0 ? 0 : end - System.currentTimeMillis();
+                if (timeout != 0 && remaining <= 0) break;
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+            count = Math.min(frames, frameLimit);
+        }
+        long elapsed = System.nanoTime() - start;
+        cpuControl.pause();
+        double seconds = elapsed / 1000000000.0;
+        System.out.println("Emulated " + count + " frames in " + String.format("%.3f", seconds) + " seconds: " +
+                String.format("%.2f", count / seconds) + " frames per second");
+        if (count < frameLimit) {
+            log.error("Frame limit of " + frameLimit + " not reached");
+        }
+        // the execution and compiler threads would otherwise keep the process alive
+        RuntimeConnections.MACHINE.resolve().close(count < frameLimit ? 1 : 0);
+    }
+}
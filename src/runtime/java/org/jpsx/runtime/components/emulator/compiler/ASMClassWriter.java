@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2003, 2014 Graham Sanderson
+ *
+ * This file is part of JPSX.
+ *
+ * JPSX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JPSX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JPSX.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpsx.runtime.components.emulator.compiler;
+
+import org.apache.bcel.Constants;
+import org.apache.bcel.classfile.Constant;
+import org.apache.bcel.classfile.ConstantCP;
+import org.apache.bcel.classfile.ConstantClass;
+import org.apache.bcel.classfile.ConstantDouble;
+import org.apache.bcel.classfile.ConstantFloat;
+import org.apache.bcel.classfile.ConstantInteger;
+import org.apache.bcel.classfile.ConstantLong;
+import org.apache.bcel.classfile.ConstantNameAndType;
+import org.apache.bcel.classfile.ConstantString;
+import org.apache.bcel.classfile.ConstantUtf8;
+import org.apache.bcel.classfile.Field;
+import org.apache.bcel.classfile.Method;
+import org.apache.bcel.generic.*;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serializes a class built by a generator with ASM's {@link ClassWriter}, in place of BCEL's
+ * MethodGen.getMethod(), ClassGen.getJavaClass() and JavaClass.dump(), which between them build (and then copy)
+ * a complete BCEL class file model only to write it out.
+ * <p/>
+ * The generators, and every {@link org.jpsx.api.components.core.cpu.CPUInstruction}, still emit BCEL
+ * instruction lists, which are streamed straight into the class writer. The generator passes its methods as
+ * {@link MethodGen}s; any methods already finished in the ClassGen are converted back first, which is slow
+ * (it parses the code again), so the generators avoid adding any.
+ * <p/>
+ * Like the generators, an instance is not thread safe.
+ */
+class ASMClassWriter {
+    // nearly every instruction has a line number, so avoid an entry object per label
+    private final Map<InstructionHandle, Label> labels = new IdentityHashMap<InstructionHandle, Label>();
+
+    static boolean isAvailable() {
+        try {
+            Class.forName("org.objectweb.asm.ClassWriter");
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+
+    public byte[] write(ClassGen cg, List<MethodGen> methods) {
+        ClassWriter cw = new ClassWriter(0);
+        String[] interfaces = cg.getInterfaceNames();
+        for (int i = 0; i < interfaces.length; i++) {
+            interfaces[i] = getInternalName(interfaces[i]);
+        }
+        // BCEL's default version, 45.3
+        cw.visit(Opcodes.V1_1, cg.getAccessFlags(), getInternalName(cg.getClassName()), null, getInternalName(cg.getSuperclassName()), interfaces);
+        cw.visitSource(cg.getFileName(), null);
+        for (Field field : cg.getFields()) {
+            cw.visitField(field.getAccessFlags(), field.getName(), field.getSignature(), null, null).visitEnd();
+        }
+        ConstantPoolGen cp = cg.getConstantPool();
+        for (Method method : cg.getMethods()) {
+            writeMethod(cw, new MethodGen(method, cg.getClassName(), cp), cp);
+        }
+        for (MethodGen mg : methods) {
+            writeMethod(cw, mg, cp);
+        }
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private void writeMethod(ClassWriter cw, MethodGen mg, ConstantPoolGen cp) {
+        MethodVisitor mv = cw.visitMethod(mg.getAccessFlags(), mg.getName(), mg.getSignature(), null, null);
+        mv.visitCode();
+        labels.clear();
+        // handlers must be visited before their labels
+        for (CodeExceptionGen ceg : mg.getExceptionHandlers()) {
+            ObjectType catchType = ceg.getCatchType();
+            // BCEL's end is inclusive
+            InstructionHandle end = ceg.getEndPC().getNext();
+            mv.visitTryCatchBlock(getLabel(ceg.getStartPC()), end == null ? getLabel(null) : getLabel(end), getLabel(ceg.getHandlerPC()),
+                    catchType == null ? null : getInternalName(catchType.getClassName()));
+        }
+        LineNumberGen[] lineNumbers = mg.getLineNumbers();
+        InstructionList il = mg.getInstructionList();
+        // anything targeting an instruction (a branch, a handler, or a line number) needs a label there
+        for (InstructionHandle ih = il.getStart(); ih != null; ih = ih.getNext()) {
+            if (ih.hasTargeters()) {
+                getLabel(ih);
+            }
+        }
+        for (InstructionHandle ih = il.getStart(); ih != null; ih = ih.getNext()) {
+            Label label = labels.get(ih);
+            if (label != null) {
+                mv.visitLabel(label);
+            }
+            writeInstruction(mv, ih.getInstruction(), cp);
+        }
+        Label endLabel = labels.get(null);
+        if (endLabel != null) {
+            mv.visitLabel(endLabel);
+        }
+        for (LineNumberGen lng : lineNumbers) {
+            mv.visitLineNumber(lng.getSourceLine(), labels.get(lng.getInstruction()));
+        }
+        mv.visitMaxs(mg.getMaxStack(), mg.getMaxLocals());
+        mv.visitEnd();
+    }
+
+    private void writeInstruction(MethodVisitor mv, Instruction inst, ConstantPoolGen cp) {
+        int opcode = inst.getOpcode();
+        if (inst instanceof BranchInstruction) {
+            if (inst instanceof Select) {
+                Select select = (Select) inst;
+                InstructionHandle[] targets = select.getTargets();
+                Label[] targetLabels = new Label[targets.length];
+                for (int i = 0; i < targets.length; i++) {
+                    targetLabels[i] = getLabel(targets[i]);
+                }
+                int[] matchs = select.getMatchs();
+                if (opcode == Constants.TABLESWITCH) {
+                    mv.visitTableSwitchInsn(matchs[0], matchs[matchs.length - 1], getLabel(select.getTarget()), targetLabels);
+                } else {
+                    mv.visitLookupSwitchInsn(getLabel(select.getTarget()), matchs, targetLabels);
+                }
+            } else {
+                // ASM picks the wide form itself
+                if (opcode == Constants.GOTO_W) {
+                    opcode = Constants.GOTO;
+                } else if (opcode == Constants.JSR_W) {
+                    opcode = Constants.JSR;
+                }
+                mv.visitJumpInsn(opcode, getLabel(((BranchInstruction) inst).getTarget()));
+            }
+        } else if (inst instanceof IINC) {
+            mv.visitIincInsn(((IINC) inst).getIndex(), ((IINC) inst).getIncrement());
+        } else if (inst instanceof LocalVariableInstruction) {
+            // e.g. ILOAD_1 is written as ILOAD 1, which ASM compacts again
+            mv.visitVarInsn(((LocalVariableInstruction) inst).getCanonicalTag(), ((LocalVariableInstruction) inst).getIndex());
+        } else if (inst instanceof FieldOrMethod) {
+            // note FieldOrMethod's own accessors copy the constant pool and the class name each time
+            ConstantCP ref = (ConstantCP) cp.getConstant(((FieldOrMethod) inst).getIndex());
+            ConstantNameAndType nameAndType = (ConstantNameAndType) cp.getConstant(ref.getNameAndTypeIndex());
+            String owner = getClassName(cp, ref.getClassIndex());
+            String name = getUtf8(cp, nameAndType.getNameIndex());
+            String desc = getUtf8(cp, nameAndType.getSignatureIndex());
+            if (inst instanceof FieldInstruction) {
+                mv.visitFieldInsn(opcode, owner, name, desc);
+            } else {
+                mv.visitMethodInsn(opcode, owner, name, desc);
+            }
+        } else if (inst instanceof LDC || inst instanceof LDC2_W) {
+            // LDC includes LDC_W
+            Constant c = cp.getConstant(((CPInstruction) inst).getIndex());
+            switch (c.getTag()) {
+                case Constants.CONSTANT_Integer:
+                    mv.visitLdcInsn(Integer.valueOf(((ConstantInteger) c).getBytes()));
+                    break;
+                case Constants.CONSTANT_Long:
+                    mv.visitLdcInsn(Long.valueOf(((ConstantLong) c).getBytes()));
+                    break;
+                case Constants.CONSTANT_Float:
+                    mv.visitLdcInsn(Float.valueOf(((ConstantFloat) c).getBytes()));
+                    break;
+                case Constants.CONSTANT_Double:
+                    mv.visitLdcInsn(Double.valueOf(((ConstantDouble) c).getBytes()));
+                    break;
+                case Constants.CONSTANT_String:
+                    mv.visitLdcInsn(getUtf8(cp, ((ConstantString) c).getStringIndex()));
+                    break;
+                default:
+                    throw new IllegalStateException("unexpected constant " + c);
+            }
+        } else if (inst instanceof MULTIANEWARRAY) {
+            MULTIANEWARRAY mana = (MULTIANEWARRAY) inst;
+            mv.visitMultiANewArrayInsn(getClassName(cp, mana.getIndex()), mana.getDimensions());
+        } else if (inst instanceof CPInstruction) {
+            // NEW, ANEWARRAY, CHECKCAST and INSTANCEOF
+            mv.visitTypeInsn(opcode, getClassName(cp, ((CPInstruction) inst).getIndex()));
+        } else if (inst instanceof BIPUSH || inst instanceof SIPUSH) {
+            mv.visitIntInsn(opcode, ((ConstantPushInstruction) inst).getValue().intValue());
+        } else if (inst instanceof NEWARRAY) {
+            mv.visitIntInsn(opcode, ((NEWARRAY) inst).getTypecode());
+        } else if (inst instanceof RET) {
+            mv.visitVarInsn(opcode, ((RET) inst).getIndex());
+        } else {
+            mv.visitInsn(opcode);
+        }
+    }
+
+    /**
+     * @param ih the instruction, or null for the end of the method
+     */
+    private Label getLabel(InstructionHandle ih) {
+        Label label = labels.get(ih);
+        if (label == null) {
+            label = new Label();
+            labels.put(ih, label);
+        }
+        return label;
+    }
+
+    /**
+     * @return the internal name of the CONSTANT_Class at the index, as held in the pool
+     */
+    private static String getClassName(ConstantPoolGen cp, int index) {
+        return getUtf8(cp, ((ConstantClass) cp.getConstant(index)).getNameIndex());
+    }
+
+    private static String getUtf8(ConstantPoolGen cp, int index) {
+        return ((ConstantUtf8) cp.getConstant(index)).getBytes();
+    }
+
+    private static String getInternalName(String className) {
+        return className.replace('.', '/');
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2003, 2014 Graham Sanderson
+ *
+ * This file is part of JPSX.
+ *
+ * JPSX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JPSX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JPSX.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpsx.runtime.components.emulator.compiler;
+
+import org.apache.log4j.Logger;
+import org.jpsx.api.components.core.addressspace.AddressSpace;
+import org.jpsx.bootstrap.util.CollectionsFactory;
+import org.jpsx.runtime.util.MiscUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+/**
+ * Jar of stage 1 classes for code in the BIOS, along with stage 2 classes for the code which was hot enough
+ * to have them, built ahead of time by {@link BIOSBundleBuilder}.
+ * <p/>
+ * Since the BIOS image never changes, its classes can be generated once, and simply defined
+ * by the ROM class loader on later runs. A stage 2 class's manifest entry lists the code inlined into it
+ * from other functions, since breakpoints there must also stop it being used. The jar's manifest records a SHA-1 of the BIOS image
+ * (along with a fingerprint of the compiler configuration), and the bundle is ignored unless
+ * this matches the BIOS actually loaded.
+ */
+public class BIOSBundle {
+    private static final Logger log = Logger.getLogger(MultiStageCompiler.CATEGORY);
+    private static final String SUFFIX = ".class";
+    private static final Attributes.Name KEY_ATTRIBUTE = new Attributes.Name("JPSX-BIOS-Key");
+    private static final Attributes.Name INLINED_CODE_ATTRIBUTE = new Attributes.Name("JPSX-Inlined-Code");
+
+    // class name -> class bytes
+    private final Map<String, byte[]> classes;
+    // class name -> start and end address of each range of inlined code
+    private final Map<String, int[]> inlinedCode;
+
+    private BIOSBundle(Map<String, byte[]> classes, Map<String, int[]> inlinedCode) {
+        this.classes = classes;
+        this.inlinedCode = inlinedCode;
+    }
+
+    /**
+     * Compute the key for the BIOS image currently in the address space
+     */
+    public static String getKey(AddressSpace addressSpace, String fingerprint) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not available", e);
+        }
+        digest.update(fingerprint.getBytes());
+        for (int address = AddressSpace.BIOS_BASE; address < AddressSpace.BIOS_END; address += 4) {
+            int ci = addressSpace.internalRead32(address);
+            digest.update((byte) ci);
+            digest.update((byte) (ci >> 8));
+            digest.update((byte) (ci >> 16));
+            digest.update((byte) (ci >> 24));
+        }
+        byte[] hash = digest.digest();
+        StringBuilder key = new StringBuilder();
+        for (int i = 0; i < hash.length; i++) {
+            key.append(MiscUtil.toHex(hash[i] & 0xff, 2));
+        }
+        return key.toString();
+    }
+
+    /**
+     * Read all the classes from the bundle
+     *
+     * @return the bundle, or null if the file doesn't exist or was built for a different BIOS or compiler
+     */
+    public static BIOSBundle load(File file, String key) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            JarFile jar = new JarFile(file);
+            try {
+                Manifest manifest = jar.getManifest();
+                if (manifest == null || !key.equals(manifest.getMainAttributes().get(KEY_ATTRIBUTE))) {
+                    log.warn("Ignoring BIOS bundle " + file + " which was built for a different BIOS image or compiler");
+                    return null;
+                }
+                Map<String, byte[]> classes = CollectionsFactory.newHashMap();
+                Map<String, int[]> inlinedCode = CollectionsFactory.newHashMap();
+                byte[] buffer = new byte[8192];
+                for (Enumeration<JarEntry> e = jar.entries(); e.hasMoreElements();) {
+                    JarEntry entry = e.nextElement();
+                    String name = entry.getName();
+                    if (name.endsWith(SUFFIX)) {
+                        ByteArrayOutputStream data = new ByteArrayOutputStream();
+                        InputStream is = jar.getInputStream(entry);
+                        try {
+                            int n;
+                            while ((n = is.read(buffer)) > 0) {
+                                data.write(buffer, 0, n);
+                            }
+                        } finally {
+                            is.close();
+                        }
+                        String classname = name.substring(0, name.length() - SUFFIX.length());
+                        classes.put(classname, data.toByteArray());
+                        Attributes attributes = manifest.getAttributes(name);
+                        if (attributes != null && attributes.get(INLINED_CODE_ATTRIBUTE) != null) {
+                            inlinedCode.put(classname, parseAddresses((String) attributes.get(INLINED_CODE_ATTRIBUTE)));
+                        }
+                    }
+                }
+                log.info("BIOS bundle " + file + " contains " + classes.size() + " classes");
+                return new BIOSBundle(classes, inlinedCode);
+            } finally {
+                jar.close();
+            }
+        } catch (IOException e) {
+            log.warn("Failed to read BIOS bundle " + file, e);
+            return null;
+        }
+    }
+
+    private static int[] parseAddresses(String value) {
+        String[] words = value.trim().split("\\s+");
+        int[] rc = new int[words.length];
+        for (int i = 0; i < words.length; i++) {
+            rc[i] = MiscUtil.parseHex(words[i]);
+        }
+        return rc;
+    }
+
+    /**
+     * Write a new bundle containing the specified classes (class name -> class bytes), and the code
+     * inlined into them (class name -> start and end address of each range)
+     */
+    public static void write(File file, String key, Map<String, byte[]> classes, Map<String, int[]> inlinedCode) throws IOException {
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(KEY_ATTRIBUTE, key);
+        for (Map.Entry<String, int[]> entry : inlinedCode.entrySet()) {
+            StringBuilder value = new StringBuilder();
+            for (int address : entry.getValue()) {
+                if (value.length() != 0) {
+                    value.append(' ');
+                }
+                value.append(MiscUtil.toHex(address, 8));
+            }
+            Attributes attributes = new Attributes();
+            attributes.put(INLINED_CODE_ATTRIBUTE, value.toString());
+            manifest.getEntries().put(entry.getKey() + SUFFIX, attributes);
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        JarOutputStream os = new JarOutputStream(new FileOutputStream(temp), manifest);
+        try {
+            for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+                os.putNextEntry(new JarEntry(entry.getKey() + SUFFIX));
+                os.write(entry.getValue());
+                os.closeEntry();
+            }
+        } finally {
+            os.close();
+        }
+        // rename so that a partially written bundle is never seen
+        file.delete();
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Unable to rename " + temp + " to " + file);
+        }
+        log.info("Wrote " + classes.size() + " classes to BIOS bundle " + file);
+    }
+
+    /**
+     * @return the bytes for the named class, or null if it isn't in the bundle
+     */
+    public byte[] get(String classname) {
+        return classes.get(classname);
+    }
+
+    /**
+     * @return the start and end address of each range of code inlined into the named class, or null if there is none
+     */
+    public int[] getInlinedCode(String classname) {
+        return inlinedCode.get(classname);
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2003, 2014 Graham Sanderson
+ *
+ * This file is part of JPSX.
+ *
+ * JPSX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JPSX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JPSX.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpsx.runtime.components.emulator.compiler;
+
+import org.apache.log4j.Logger;
+import org.jpsx.api.CPUControl;
+import org.jpsx.api.InvalidConfigurationException;
+import org.jpsx.api.components.core.cpu.R3000;
+import org.jpsx.api.components.core.scheduler.DeterministicQuartz;
+import org.jpsx.runtime.JPSXComponent;
+import org.jpsx.runtime.RuntimeConnections;
+import org.jpsx.runtime.components.core.CoreComponentConnections;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Replaces the normal entry point with one which boots the BIOS for a fixed number of instructions, then writes
+ * the compiled BIOS code to a {@link BIOSBundle} and exits. The bundle is written to the file named by the
+ * compiler's biosBundle property, so later runs with the same BIOS pick it up.
+ * <p/>
+ * The machine must use a {@link DeterministicQuartz}, so that the same BIOS always reaches the same code (and
+ * the same code gets hot enough for stage 2) however fast the host is. Since such machines count instructions,
+ * which normal machines don't, the bundled code is generated without instruction counting.
+ * <p/>
+ * Boot as far as possible (e.g. without a CD) so that as much of the BIOS as possible is reached.
+ */
+public class BIOSBundleBuilder extends JPSXComponent implements Runnable {
+    private static final Logger log = Logger.getLogger(MultiStageCompiler.CATEGORY);
+    // about 30 seconds of emulated time at the default InstructionCountQuartz rate
+    private static final long DEFAULT_BOOT_INSTRUCTIONS = 1000000000L;
+
+    private CPUControl cpuControl;
+    private R3000 r3000;
+    private boolean booted;
+
+    public BIOSBundleBuilder() {
+        this("JPSX BIOS Bundle Builder");
+    }
+
+    protected BIOSBundleBuilder(String description) {
+        super(description);
+    }
+
+    public void init() {
+        super.init();
+        RuntimeConnections.MAIN.set(this);
+    }
+
+    public void resolveConnections() {
+        super.resolveConnections();
+        cpuControl = RuntimeConnections.CPU_CONTROL.resolve();
+        r3000 = CoreComponentConnections.R3000.resolve();
+        if (!(CoreComponentConnections.QUARTZ.resolve() instanceof DeterministicQuartz)) {
+            throw new InvalidConfigurationException("The BIOS bundle builder requires a deterministic quartz, such as InstructionCountQuartz");
+        }
+    }
+
+    public void run() {
+        boot();
+        try {
+            MultiStageCompiler.writeBIOSBundle(new File(MultiStageCompiler.Settings.biosBundle), false);
+        } catch (IOException e) {
+            log.error("Failed to write BIOS bundle", e);
+            RuntimeConnections.MACHINE.resolve().close(1);
+        }
+    }
+
+    /**
+     * Boot the BIOS for the configured number of instructions, and return with the execution thread held there
+     */
+    protected void boot() {
+        long bootInstructions = DEFAULT_BOOT_INSTRUCTIONS;
+        String val = getProperty("bootInstructions", null);
+        // an unset machine variable gives an empty value
+        if (val != null && val.length() != 0) {
+            try {
+                bootInstructions = Long.parseLong(val);
+            } catch (NumberFormatException e) {
+                throw new InvalidConfigurationException("Invalid bootInstructions \"" + val + "\"", e);
+            }
+        }
+        log.info("Booting BIOS for " + bootInstructions + " instructions");
+        // the execution thread waits in the deadline action, so that the CPU stops at exactly this instruction
+        r3000.setInstructionDeadline(bootInstructions, new Runnable() {
+            public void run() {
+                booted();
+            }
+        });
+        cpuControl.go();
+        synchronized (this) {
+            while (!booted) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // keep waiting
+                }
+            }
+        }
+    }
+
+    /**
+     * Called on the execution thread once the boot instruction count is reached; this doesn't return, so that no
+     * more R3000 code is executed while the compiled code is used, and the machine is closed once it has been
+     */
+    private synchronized void booted() {
+        booted = true;
+        notifyAll();
+        while (true) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // keep waiting
+            }
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2003, 2014 Graham Sanderson
+ *
+ * This file is part of JPSX.
+ *
+ * JPSX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JPSX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JPSX.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpsx.runtime.components.emulator.compiler;
+
+import org.apache.log4j.Logger;
+import org.jpsx.api.components.core.addressspace.AddressSpace;
+import org.jpsx.runtime.util.MiscUtil;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Persistent on-disk cache of generated class files.
+ * <p/>
+ * Entries are keyed by the class name plus a SHA-1 of the R3000 words
+ * covered by the unit's flow graph (along with a fingerprint of the compiler
+ * configuration), so an overlay which loads different code at the same address
+ * simply gets a different key; stale entries are never matched, and eventually
+ * age out.
+ * <p/>
+ * The total size of the cache is capped; once over the cap the least recently
+ * used entries are deleted. Recency is persisted via the file modification time.
+ */
+public class ClassCache {
+    private static final Logger log = Logger.getLogger(MultiStageCompiler.CATEGORY);
+    private static final String SUFFIX = ".class";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File dir;
+    private final long maxSize;
+    private final byte[] fingerprint;
+    private final MessageDigest digest;
+
+    // file name -> file size; iteration order is least recently used first
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(256, 0.75f, true);
+    private long size;
+
+    public ClassCache(File dir, long maxSize, String fingerprint) {
+        this.dir = dir;
+        this.maxSize = maxSize;
+        this.fingerprint = fingerprint.getBytes();
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not available", e);
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            log.warn("Unable to create class cache directory " + dir);
+        }
+        File[] files = dir.listFiles();
+        if (files != null) {
+            Arrays.sort(files, new Comparator<File>() {
+                public int compare(File f1, File f2) {
+                    long l1 = f1.lastModified();
+                    long l2 = f2.lastModified();
+                    return l1 < l2 ? -1 : (l1 == l2 ? 0 : 1);
+                }
+            });
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(SUFFIX)) {
+                    entries.put(name, file.length());
+                    size += file.length();
+                } else if (name.endsWith(TEMP_SUFFIX)) {
+                    // left over from an interrupted store
+                    file.delete();
+                }
+            }
+        }
+        log.info("Class cache " + dir + " contains " + entries.size() + " classes (" + (size / 1024) + "K)");
+        evict();
+    }
+
+    /**
+     * Compute the cache key for the specified class given the R3000 code in the unit's flow graph range
+     */
+    public synchronized String getKey(String classname, FlowAnalyzer.FlowInfo flowInfo, AddressSpace addressSpace) {
+        digest.reset();
+        digest.update(fingerprint);
+        for (int address = flowInfo.base; address < flowInfo.end; address += 4) {
+            int ci = addressSpace.internalRead32(address);
+            digest.update((byte) ci);
+            digest.update((byte) (ci >> 8));
+            digest.update((byte) (ci >> 16));
+            digest.update((byte) (ci >> 24));
+        }
+        byte[] hash = digest.digest();
+        StringBuilder key = new StringBuilder(classname);
+        key.append('-');
+        for (int i = 0; i < hash.length; i++) {
+            key.append(MiscUtil.toHex(hash[i] & 0xff, 2));
+        }
+        return key.toString();
+    }
+
+    /**
+     * @return the cached class bytes for the key, or null if there are none
+     */
+    public synchronized byte[] load(String key) {
+        String name = key + SUFFIX;
+        Long length = entries.get(name);
+        if (length != null) {
+            File file = new File(dir, name);
+            byte[] data = new byte[length.intValue()];
+            try {
+                DataInputStream is = new DataInputStream(new FileInputStream(file));
+                try {
+                    is.readFully(data);
+                } finally {
+                    is.close();
+                }
+                file.setLastModified(System.currentTimeMillis());
+                return data;
+            } catch (IOException e) {
+                log.warn("Failed to read cached class " + file, e);
+                remove(name);
+            }
+        }
+        return null;
+    }
+
+    public synchronized boolean contains(String key) {
+        return entries.containsKey(key + SUFFIX);
+    }
+
+    public synchronized void store(String key, byte[] data) {
+        String name = key + SUFFIX;
+        if (entries.containsKey(name)) {
+            return;
+        }
+        File temp = new File(dir, name + TEMP_SUFFIX);
+        File file = new File(dir, name);
+        try {
+            FileOutputStream os = new FileOutputStream(temp);
+            try {
+                os.write(data);
+            } finally {
+                os.close();
+            }
+            // rename so that a partially written class is never seen
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                return;
+            }
+        } catch (IOException e) {
+            log.warn("Failed to write cached class " + file, e);
+            temp.delete();
+            return;
+        }
+        entries.put(name, (long) data.length);
+        size += data.length;
+        evict();
+    }
+
+    private void remove(String name) {
+        Long length = entries.remove(name);
+        if (length != null) {
+            size -= length;
+        }
+        new File(dir, name).delete();
+    }
+
+    private void evict() {
+        for (Iterator<Map.Entry<String, Long>> i = entries.entrySet().iterator(); size > maxSize && i.hasNext();) {
+            Map.Entry<String, Long> entry = i.next();
+            i.remove();
+            size -= entry.getValue();
+            new File(dir, entry.getKey()).delete();
+        }
+    }
+}
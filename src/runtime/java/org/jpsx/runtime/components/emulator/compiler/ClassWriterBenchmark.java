@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2003, 2014 Graham Sanderson
+ *
+ * This file is part of JPSX.
+ *
+ * JPSX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JPSX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JPSX.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpsx.runtime.components.emulator.compiler;
+
+import org.jpsx.api.InvalidConfigurationException;
+
+/**
+ * Boots the BIOS just as the {@link BIOSBundleBuilder} does, then compiles the BIOS code reached, over and over,
+ * serializing the classes with BCEL and with ASM in turn, logs the compile time and bytes allocated per code
+ * unit with each, and exits.
+ */
+public class ClassWriterBenchmark extends BIOSBundleBuilder {
+    private static final int DEFAULT_PASSES = 10;
+
+    public ClassWriterBenchmark() {
+        super("JPSX Class Writer Benchmark");
+    }
+
+    public void run() {
+        int passes = DEFAULT_PASSES;
+        String val = getProperty("passes", null);
+        // an unset machine variable gives an empty value
+        if (val != null && val.length() != 0) {
+            try {
+                passes = Integer.parseInt(val);
+            } catch (NumberFormatException e) {
+                throw new InvalidConfigurationException("Invalid passes \"" + val + "\"", e);
+            }
+        }
+        boot();
+        MultiStageCompiler.benchmarkClassWriters(passes);
+    }
+}
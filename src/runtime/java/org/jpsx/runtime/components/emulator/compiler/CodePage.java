@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2003, 2014 Graham Sanderson
+ *
+ * This file is part of JPSX.
+ *
+ * JPSX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JPSX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JPSX.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpsx.runtime.components.emulator.compiler;
+
+import org.jpsx.api.components.core.addressspace.AddressSpace;
+import org.jpsx.bootstrap.util.CollectionsFactory;
+
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Book-keeping for a single page of RAM containing compiled code.
+ * <p/>
+ * Classes for all code units based in the page are defined by the page's own
+ * class loader, so that when the page's code is modified, those classes can
+ * be discarded without affecting code elsewhere in RAM.
+ * <p/>
+ * When a code unit is added we take a copy of the part of the page it covers, and have
+ * the address space watch for writes to the page; when the instruction cache is flushed,
+ * the R3000 code covered by each of the page's code units is compared with that unit's copy,
+ * but only if the page has actually been written in the meanwhile.
+ */
+public class CodePage {
+    public static final int PAGE_SHIFT = AddressSpace.RAM_PAGE_SHIFT;
+    public static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    public static final int PAGE_COUNT = AddressSpace.RAM_SIZE >> PAGE_SHIFT;
+
+    private final int index;
+    private CompilerClassLoader loader;
+    private int loaderCount;
+
+    /**
+     * all code units with compiled classes which include code in this page (not
+     * just those based in this page)
+     */
+    private final List<CodeUnit> units = CollectionsFactory.newArrayList();
+    /**
+     * the R3000 code in this page covered by each unit (in the same order as units), as it was when the unit was added
+     */
+    private final List<int[]> snapshots = CollectionsFactory.newArrayList();
+
+    /**
+     * indexes of other pages whose classes have linked directly to classes in this page
+     */
+    private final BitSet dependents = new BitSet(PAGE_COUNT);
+
+    public CodePage(int index) {
+        this.index = index;
+    }
+
+    public static int getIndex(int address) {
+        return (address & (AddressSpace.RAM_SIZE - 1)) >> PAGE_SHIFT;
+    }
+
+    public final int getIndex() {
+        return index;
+    }
+
+    public CompilerClassLoader getLoader(ClassLoader parent) {
+        if (loader == null) {
+            loaderCount++;
+            loader = new CompilerClassLoader("RAM classloader for page " + index + " (" + loaderCount + ")", parent, index);
+        }
+        return loader;
+    }
+
+    public List<CodeUnit> getUnits() {
+        return units;
+    }
+
+    public BitSet getDependents() {
+        return dependents;
+    }
+
+    public void addUnit(CodeUnit unit, AddressSpace addressSpace) {
+        if (units.isEmpty()) {
+            addressSpace.watchRAMPage(index << PAGE_SHIFT);
+        }
+        // each unit has its own copy, since code may legitimately have been written to the page since other units were added
+        int start = getStartWord(unit);
+        int[] snapshot = new int[getEndWord(unit) - start];
+        System.arraycopy(addressSpace.getMainRAM(), start, snapshot, 0, snapshot.length);
+        units.add(unit);
+        snapshots.add(snapshot);
+    }
+
+    /**
+     * Remove any units which have been invalidated
+     *
+     * @return true if any units were removed
+     */
+    public boolean removeInvalidatedUnits() {
+        boolean rc = false;
+        for (int i = units.size() - 1; i >= 0; i--) {
+            if (units.get(i).isInvalidated()) {
+                units.remove(i);
+                snapshots.remove(i);
+                rc = true;
+            }
+        }
+        return rc;
+    }
+
+    /**
+     * @return true if any of the R3000 code covered by code units has changed since it was compiled
+     */
+    public boolean isModified(AddressSpace addressSpace) {
+        if (units.isEmpty() || !isWritten(addressSpace)) {
+            return false;
+        }
+        int[] ram = addressSpace.getMainRAM();
+        for (int u = 0; u < units.size(); u++) {
+            int start = getStartWord(units.get(u));
+            int[] snapshot = snapshots.get(u);
+            for (int i = 0; i < snapshot.length; i++) {
+                if (ram[start + i] != snapshot[i]) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Clear the specified tag bits for all words in the page which aren't covered by one of our code units
+     */
+    public void clearUncoveredTags(AddressSpace addressSpace, byte mask) {
+        boolean[] covered = new boolean[PAGE_SIZE >> 2];
+        int pageBase = index << (PAGE_SHIFT - 2);
+        for (CodeUnit unit : units) {
+            int end = getEndWord(unit);
+            for (int i = getStartWord(unit); i < end; i++) {
+                covered[i - pageBase] = true;
+            }
+        }
+        for (int i = 0; i < covered.length; ) {
+            if (covered[i]) {
+                i++;
+            } else {
+                int start = i;
+                while (i < covered.length && !covered[i]) {
+                    i++;
+                }
+                addressSpace.clearTags((pageBase + start) << 2, (i - start) << 2, mask);
+            }
+        }
+    }
+
+    private int getStartWord(CodeUnit unit) {
+        return Math.max(index << (PAGE_SHIFT - 2), (unit.getBase() & (AddressSpace.RAM_SIZE - 1)) >> 2);
+    }
+
+    private int getEndWord(CodeUnit unit) {
+        return Math.min((index + 1) << (PAGE_SHIFT - 2), (((unit.getEnd() - 1) & (AddressSpace.RAM_SIZE - 1)) >> 2) + 1);
+    }
+
+    /**
+     * @return true if the page has been written since it was last watched
+     */
+    public boolean isWritten(AddressSpace addressSpace) {
+        return addressSpace.isRAMPageWritten(index << PAGE_SHIFT);
+    }
+
+    /**
+     * Start watching for writes afresh; this is done at each instruction cache flush, once any modified code has been discarded
+     */
+    public void watch(AddressSpace addressSpace) {
+        addressSpace.watchRAMPage(index << PAGE_SHIFT);
+    }
+
+    /**
+     * Forget about all code in this page; any new code will be defined by a new class loader
+     */
+    public void reset() {
+        loader = null;
+        units.clear();
+        snapshots.clear();
+        dependents.clear();
+    }
+}
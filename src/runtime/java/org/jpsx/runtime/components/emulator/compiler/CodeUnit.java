@@ -18,22 +18,28 @@
  */
 package org.jpsx.runtime.components.emulator.compiler;
 
-import org.apache.bcel.classfile.JavaClass;
 import org.apache.log4j.Logger;
 import org.jpsx.api.components.core.ContinueExecutionException;
 import org.jpsx.api.components.core.addressspace.AddressSpace;
+import org.jpsx.bootstrap.util.CollectionsFactory;
 import org.jpsx.runtime.components.core.CoreComponentConnections;
 import org.jpsx.runtime.util.MiscUtil;
 
 import java.lang.ref.SoftReference;
+import java.util.Map;
+import java.util.Set;
 
-// todo check threading
 /**
  * The CodeUnit class represents all that is known about
  * a particular piece sequence R3000 code.
  * <p/>
  * It embodies the various states that a piece
  * of code can be in (flow analyzed, stage 1 compiled, etc.)
+ * <p/>
+ * The flow info, end address and speculatively compiled class data may be
+ * computed by any of the execution and background compilation threads; these are
+ * published under the unit's own lock, and the first to be published is kept.
+ * The remaining state machine fields belong to the execution thread.
  */
 public class CodeUnit {
     Logger log = Logger.getLogger("CodeUnit");
@@ -55,37 +61,83 @@ public class CodeUnit {
      */
     public int count = MultiStageCompiler.Settings.stage2Threshold;
 
-    private Class stage2Class;
+    /**
+     * How long (in System.nanoTime() units) the stage 1 code took to count down from
+     * {@link MultiStageCompiler.Settings#stage2Threshold} before the unit was last queued for stage 2; the
+     * compilation broker compiles the hottest units, i.e. those which got there quickest, first.
+     * <p/>
+     * This is written by the processor thread before the unit is queued, and is not changed while it is queued.
+     */
+    long timeToStage2;
+    // System.nanoTime() when count was last reset to the stage 2 threshold; processor thread only
+    private long countStartTime;
+
+    /**
+     * The current stage 2 code, called by the stage 1 code when useStage2 is set; only
+     * valid once useStage2 has been read as true
+     */
+    public Executable stage2;
+
+    /**
+     * Used by the compiled code to determine whether to record the targets of its jalr and jr instructions
+     * (for building inline caches in the stage 2 code); this is cleared once the unit is queued for stage 2.
+     * <p/>
+     * The targets are only recorded by the processor thread, and are only read by the stage 2 compiler
+     * once the unit has been queued, so they need no lock; queueing the unit publishes them.
+     */
+    public boolean recordIndirectTargets = MultiStageCompiler.Settings.enableSecondStage && MultiStageCompiler.Settings.inlineCacheSize > 0;
+
+    private Class<?> stage2Class;
     private int state;
 
     // base address of code unit
     protected final int base;     // todo accessor
-    private int end;
+    private volatile int end;
     private final boolean rom;
 
     private Executable executable;
-    protected boolean linksFollowed; // todo accessor
+    private final CompilerClassLoader loader;
+    // set once the unit's code has been modified; the unit is no longer reachable, and should not be compiled further
+    private volatile boolean invalidated;
+    protected volatile boolean linksFollowed; // todo accessor
     private volatile boolean stage1Ready;
     //private boolean stage2Ready;
 
     // todo accessor
     protected int stage2Version;
 
+    // number of memory mispredictions by the current stage 2 code, keyed by instruction address
+    private final Map<Integer, Integer> mispredictCounts = CollectionsFactory.newHashMap();
+    // addresses of memory accesses which stage 2 code should not make a region prediction for
+    private final Set<Integer> genericMemoryAccesses = CollectionsFactory.newHashSet();
+    // start and end addresses of code from other units which has been inlined into our stage 2 code
+    private final Map<Integer, Integer> inlinedCode = CollectionsFactory.newHashMap();
+    // offsets of the jalr/jr instructions whose targets have been recorded, and for each the number of distinct
+    // targets followed by the targets themselves
+    private int[] indirectSites = new int[0];
+    private int[][] indirectTargets = new int[0][];
+
     private int preBreakpointState;
     private boolean preBreakpointUseStage2;
     private int breakpointCount;
 
+    // number of times stage 2 code may be rewritten before the unit is left in stage 1
+    private static final int MAX_STAGE2_VERSIONS = 5;
+
     private static final int STATE_STAGE1 = 0;
     private static final int STATE_WAITING_FOR_STAGE2 = 1;
     private static final int STATE_STAGE2 = 2;
     private static final int STATE_BREAKPOINT = 3;
 
     // todo it is not clear this is safe to share in the presence of code modification
+    // guarded by this
     private SoftReference flowInfoRef = new SoftReference(null);
-    private SoftReference stage1JavaClassRef = new SoftReference(null);
+    // guarded by this
+    private SoftReference stage1ClassDataRef = new SoftReference(null);
 
-    public CodeUnit(int base) {
+    public CodeUnit(int base, CompilerClassLoader loader) {
         this.base = base;
+        this.loader = loader;
         rom = AddressSpace.Util.isBIOS(base);
     }
 
@@ -93,6 +145,28 @@ public class CodeUnit {
         return base;
     }
 
+    /**
+     * @return the address after the last instruction of this unit; only valid once the flow info has been calculated
+     */
+    public final int getEnd() {
+        return end;
+    }
+
+    /**
+     * @return the class loader used to define all classes for this unit
+     */
+    public final CompilerClassLoader getLoader() {
+        return loader;
+    }
+
+    public void invalidate() {
+        invalidated = true;
+    }
+
+    public boolean isInvalidated() {
+        return invalidated;
+    }
+
     public final boolean isROM() {
         return rom;
     }
@@ -106,45 +180,69 @@ public class CodeUnit {
     }
 
     /**
-     * unsynchronzied, since different threads should
-     * use different flow analyzers.
+     * The analysis itself is done outside the lock (different threads should
+     * use different flow analyzers), so the execution thread never waits for
+     * a background thread to analyze the same unit.
      *
      * may return null for a garbage method if not called on the execution thread
      */
     public FlowAnalyzer.FlowInfo getFlowInfo(FlowAnalyzer flowAnalyzer, boolean executionThread) {
-        FlowAnalyzer.FlowInfo rc = (FlowAnalyzer.FlowInfo) flowInfoRef.get();
+        FlowAnalyzer.FlowInfo rc;
+        synchronized (this) {
+            rc = (FlowAnalyzer.FlowInfo) flowInfoRef.get();
+        }
         if (rc == null) {
             rc = flowAnalyzer.buildFlowGraph(base, executionThread);
             if (rc != null) {
-                end = rc.end;
-                flowInfoRef = new SoftReference(rc);
+                synchronized (this) {
+                    FlowAnalyzer.FlowInfo existing = (FlowAnalyzer.FlowInfo) flowInfoRef.get();
+                    if (existing != null) {
+                        rc = existing;
+                    } else {
+                        end = rc.end;
+                        flowInfoRef = new SoftReference(rc);
+                    }
+                }
             }
         }
         return rc;
     }
 
     /**
-     * Get the JavaClass representation of this unit.
+     * Get the stage 1 class file for this unit.
+     * <p/>
+     * A speculatively compiled class is kept in serialized form, which is much smaller than
+     * the BCEL representation, and leaves the execution thread nothing to do but define it.
      * <p/>
      * This method may be called from the execution or background
-     * compilation thread; in either case it is not synchronized,
-     * since we don't want the execution thread to wait on the
+     * compilation threads; the compilation itself is not synchronized,
+     * since we don't want the execution thread to wait on a
      * background thread if they end up compiling the same class.
      *
      * this may return null if not on the execution thread for garbage code
      */
-    public JavaClass getStage1JavaClass(Stage1Generator generator, boolean executionThread) {
+    public byte[] getStage1ClassData(Stage1Generator generator, boolean executionThread) {
         // note while not synchronized, once stage1Ready is set
         // we know for sure that we don't want to do any
         // background compilation
         if (!executionThread && stage1Ready)
             return null;
 
-        JavaClass rc = (JavaClass) stage1JavaClassRef.get();
+        byte[] rc;
+        synchronized (this) {
+            rc = (byte[]) stage1ClassDataRef.get();
+        }
         if (rc == null) {
-            rc = generator.createJavaClass(this, executionThread);
+            rc = generator.createClass(this, executionThread);
+            if (rc == null) {
+                return null;
+            }
             if (!executionThread) {
-                stage1JavaClassRef = new SoftReference(rc);
+                synchronized (this) {
+                    if (!stage1Ready) {
+                        stage1ClassDataRef = new SoftReference(rc);
+                    }
+                }
             } else {
                 //System.out.println("*** COMPILE IN EXEC THREAD "+MiscUtil.toHex( base, 8));
             }
@@ -153,20 +251,27 @@ public class CodeUnit {
     }
 
     public void stage1ClassReady() {
-        stage1Ready = true;
-        // note we may miss clearing the soft reference, but oh well!
-        stage1JavaClassRef.clear();
+        synchronized (this) {
+            stage1Ready = true;
+            stage1ClassDataRef.clear();
+        }
+        countStartTime = System.nanoTime();
         // make sure we know about any breakpoints
         MultiStageCompiler.enumerateBreakpoints(this);
     }
 
     // This can return null on non java thread for garbage code
-    public JavaClass getStage2JavaClass(Stage2Generator generator, boolean executionThread) {
-        return generator.createJavaClass(this, executionThread);
+    public byte[] getStage2ClassData(Stage2Generator generator, boolean executionThread) {
+        return generator.createClass(this, executionThread);
     }
 
-    public void stage2ClassReady(Class stage2Class) {
+    public void stage2ClassReady(Class<?> stage2Class) {
         //stage2Ready = true;
+        try {
+            stage2 = stage2Class.asSubclass(Executable.class).getConstructor().newInstance();
+        } catch (Throwable t) {
+            throw new IllegalStateException("could not create/cast to Executable " + stage2Class.getName(), t);
+        }
         this.stage2Class = stage2Class;
         count = Integer.MAX_VALUE;
         state = STATE_STAGE2;
@@ -174,11 +279,20 @@ public class CodeUnit {
         useStage2 = true;
     }
 
+    /**
+     * Called by the processor thread, once the stage 1 code is ready, with stage 2 code from the BIOS bundle; this is
+     * only used if there is no breakpoint in the unit (or in the code inlined into it)
+     */
+    public void bundledStage2ClassReady(Class<?> stage2Class) {
+        if (state != STATE_BREAKPOINT) {
+            stage2ClassReady(stage2Class);
+        }
+    }
+
     public void stage2ClassBroken() {
         // shouldn't be able to happen when we have a breakpoint in the function
         assert state != STATE_BREAKPOINT;
-        // todo setting for this
-        if (stage2Version < 5) {
+        if (stage2Version < MAX_STAGE2_VERSIONS) {
             try {
                 stage2Class.getField("replaced").setBoolean(null, true);
             } catch (Throwable ignore) {
@@ -187,7 +301,7 @@ public class CodeUnit {
             if (log.isDebugEnabled()) {
                 log.debug("Re-write " + MiscUtil.toHex(base, 8) + " version " + (stage2Version + 1));
             }
-            count = MultiStageCompiler.Settings.stage2Threshold;
+            resetCount();
             state = STATE_STAGE1;
         } else {
             // just give up
@@ -199,10 +313,166 @@ public class CodeUnit {
         useStage2 = false;
     }
 
+    /**
+     * Called when the stage 2 code mispredicted the memory region accessed by the instruction at the
+     * specified address; execution continues in the interpreter at that instruction.
+     * <p/>
+     * Unlike {@link #stage2ClassBroken}, the stage 2 code stays in use until the same access has
+     * mispredicted {@link MultiStageCompiler.Settings#stage2MispredictThreshold} times; the unit is then
+     * recompiled straight away with just that access made generic. As with {@link #stage2ClassBroken}, after
+     * too many rewrites the unit is left running its stage 1 code.
+     */
+    public void memoryMispredicted(int address) {
+        // shouldn't be able to happen when we have a breakpoint in the function
+        assert state != STATE_BREAKPOINT;
+        if (state != STATE_STAGE2) {
+            // already being recompiled
+            return;
+        }
+        Integer previous = mispredictCounts.get(address);
+        int mispredicts = previous == null ? 1 : previous + 1;
+        if (mispredicts < MultiStageCompiler.Settings.stage2MispredictThreshold) {
+            mispredictCounts.put(address, mispredicts);
+            return;
+        }
+        // counts are for the old code
+        mispredictCounts.clear();
+        if (stage2Version >= MAX_STAGE2_VERSIONS) {
+            // just give up
+            if (log.isDebugEnabled()) {
+                log.debug("Too many rewrites for " + MiscUtil.toHex(base, 8));
+            }
+            state = STATE_WAITING_FOR_STAGE2;
+            useStage2 = false;
+            return;
+        }
+        synchronized (genericMemoryAccesses) {
+            genericMemoryAccesses.add(address);
+        }
+        try {
+            stage2Class.getField("replaced").setBoolean(null, true);
+        } catch (Throwable ignore) {
+            assert false;
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Re-write " + MiscUtil.toHex(base, 8) + " version " + (stage2Version + 1) + " with generic access at " + MiscUtil.toHex(address, 8));
+        }
+        state = STATE_WAITING_FOR_STAGE2;
+        count = Integer.MAX_VALUE;
+        // the unit was already hot enough for stage 2 code, and is back in stage 1 until it is recompiled
+        timeToStage2 = 0;
+        useStage2 = false;
+        MultiStageCompiler.registerForStage2(this);
+    }
+
+    /**
+     * May be called from the background compilation thread
+     *
+     * @return true if stage 2 code should not predict the memory region accessed by the instruction at the specified address
+     */
+    public boolean isGenericMemoryAccess(int address) {
+        synchronized (genericMemoryAccesses) {
+            return genericMemoryAccesses.contains(address);
+        }
+    }
+
+    /**
+     * Record that stage 2 code for this unit includes a copy of the code between start and end; a breakpoint
+     * there must also stop this unit's stage 2 code being used. May be called from the background compilation thread
+     */
+    public void addInlinedCode(int start, int end) {
+        synchronized (inlinedCode) {
+            Integer previous = inlinedCode.get(start);
+            if (previous == null || previous < end) {
+                inlinedCode.put(start, end);
+            }
+        }
+    }
+
+    /**
+     * @return the start and end address of each range of code recorded by {@link #addInlinedCode}
+     */
+    public int[] getInlinedCode() {
+        synchronized (inlinedCode) {
+            int[] rc = new int[inlinedCode.size() * 2];
+            int i = 0;
+            for (Map.Entry<Integer, Integer> entry : inlinedCode.entrySet()) {
+                rc[i++] = entry.getKey();
+                rc[i++] = entry.getValue();
+            }
+            return rc;
+        }
+    }
+
+    /**
+     * Called by the stage 1 code with the target it is about to jump to or call from the jalr/jr at the specified
+     * instruction offset; once {@link MultiStageCompiler.Settings#inlineCacheSize} distinct targets have been
+     * recorded for the instruction, no more are.
+     */
+    public void recordIndirectTarget(int address, int offset) {
+        int site = 0;
+        while (site < indirectSites.length && indirectSites[site] != offset) {
+            site++;
+        }
+        if (site == indirectSites.length) {
+            int[] sites = new int[site + 1];
+            System.arraycopy(indirectSites, 0, sites, 0, site);
+            sites[site] = offset;
+            int[][] targets = new int[site + 1][];
+            System.arraycopy(indirectTargets, 0, targets, 0, site);
+            targets[site] = new int[1 + MultiStageCompiler.Settings.inlineCacheSize];
+            indirectSites = sites;
+            indirectTargets = targets;
+        }
+        int[] targets = indirectTargets[site];
+        int count = targets[0];
+        if (count == MultiStageCompiler.Settings.inlineCacheSize) {
+            return;
+        }
+        for (int i = 1; i <= count; i++) {
+            if (targets[i] == address) {
+                return;
+            }
+        }
+        targets[count + 1] = address;
+        targets[0] = count + 1;
+    }
+
+    /**
+     * Called by the stage 2 compiler, which may be on the background compilation thread
+     *
+     * @return the targets recorded for the jalr/jr at the specified instruction offset, or null if there are none
+     */
+    public int[] getIndirectTargets(int offset) {
+        for (int site = 0; site < indirectSites.length; site++) {
+            if (indirectSites[site] == offset) {
+                int[] targets = indirectTargets[site];
+                int[] rc = new int[targets[0]];
+                System.arraycopy(targets, 1, rc, 0, rc.length);
+                return rc;
+            }
+        }
+        return null;
+    }
+
+    private boolean containsCode(int address) {
+        if (address >= base && address < end) {
+            return true;
+        }
+        synchronized (inlinedCode) {
+            for (Map.Entry<Integer, Integer> entry : inlinedCode.entrySet()) {
+                if (address >= entry.getKey() && address < entry.getValue()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     public void breakpointAdded(int address) {
         if (stage1Ready) {
             assert end != 0;
-            if (address >= base && address < end) {
+            if (containsCode(address)) {
                 breakpointCount++;
                 if (breakpointCount == 1) {
                     log.info("HAVE BREAKPOINT IN " + MiscUtil.toHex(base, 8));
@@ -219,10 +489,10 @@ public class CodeUnit {
     public void breakpointRemoved(int address) {
         if (stage1Ready) {
             assert end != 0;
-            if (address >= base && address < end) {
+            if (containsCode(address) && breakpointCount > 0) {
                 breakpointCount--;
                 if (breakpointCount == 0) {
-                    count = MultiStageCompiler.Settings.stage2Threshold;
+                    resetCount();
                     state = preBreakpointState;
                     useStage2 = preBreakpointUseStage2;
                 }
@@ -230,11 +500,18 @@ public class CodeUnit {
         }
     }
 
+    private void resetCount() {
+        count = MultiStageCompiler.Settings.stage2Threshold;
+        countStartTime = System.nanoTime();
+    }
+
     public void countComplete() {
         switch (state) {
             case STATE_STAGE1:
                 state = STATE_WAITING_FOR_STAGE2;
                 count = Integer.MAX_VALUE;
+                timeToStage2 = System.nanoTime() - countStartTime;
+                recordIndirectTargets = false;
                 if (MultiStageCompiler.Settings.enableSecondStage) {
                     MultiStageCompiler.registerForStage2(this);
                 }
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2003, 2014 Graham Sanderson
+ *
+ * This file is part of JPSX.
+ *
+ * JPSX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JPSX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JPSX.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpsx.runtime.components.emulator.compiler;
+
+import org.jpsx.bootstrap.util.CollectionsFactory;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Open addressed table of code units keyed by base address.
+ * <p/>
+ * Lookups take no lock; they cost a single volatile read of the table array, followed
+ * by a linear probe from slot (address >> 2). All modifications must be made while
+ * holding the table's monitor.
+ * <p/>
+ * A unit is added by filling an empty slot in place, so an unsynchronized reader may not
+ * see a unit which was only just added; callers which want to create a missing unit
+ * should look again while holding the monitor. The unit's base address is final, so a
+ * reader which does see the unit always sees the correct key. Removal and growth build a
+ * new array, which is then published via the volatile field.
+ * <p/>
+ * The table is never more than half full, so every probe sequence ends at an empty slot.
+ */
+public class CodeUnitTable {
+    private static final int INITIAL_CAPACITY = 4096;
+
+    private volatile CodeUnit[] table = new CodeUnit[INITIAL_CAPACITY];
+    private int size;
+
+    /**
+     * May be called from any thread without synchronization
+     *
+     * @return the unit with the specified base address, or null if there is none
+     */
+    public CodeUnit get(int address) {
+        CodeUnit[] t = table;
+        int mask = t.length - 1;
+        for (int i = (address >>> 2) & mask; ; i = (i + 1) & mask) {
+            CodeUnit unit = t[i];
+            if (unit == null || unit.getBase() == address) {
+                return unit;
+            }
+        }
+    }
+
+    /**
+     * Add a unit, whose address must not already be present; the caller must hold the monitor
+     */
+    public void add(CodeUnit unit) {
+        assert Thread.holdsLock(this);
+        assert get(unit.getBase()) == null;
+        if ((size + 1) * 2 > table.length) {
+            rebuild(table.length * 2, null);
+        }
+        insert(table, unit);
+        size++;
+    }
+
+    /**
+     * Remove the specified units; the caller must hold the monitor
+     */
+    public void removeAll(Set<CodeUnit> units) {
+        assert Thread.holdsLock(this);
+        if (!units.isEmpty()) {
+            rebuild(table.length, units);
+        }
+    }
+
+    /**
+     * The caller must hold the monitor
+     *
+     * @return a snapshot of all the units in the table
+     */
+    public List<CodeUnit> getUnits() {
+        assert Thread.holdsLock(this);
+        List<CodeUnit> rc = CollectionsFactory.newArrayList();
+        for (CodeUnit unit : table) {
+            if (unit != null) {
+                rc.add(unit);
+            }
+        }
+        return rc;
+    }
+
+    private void rebuild(int capacity, Set<CodeUnit> exclude) {
+        CodeUnit[] newTable = new CodeUnit[capacity];
+        int newSize = 0;
+        for (CodeUnit unit : table) {
+            if (unit != null && (exclude == null || !exclude.contains(unit))) {
+                insert(newTable, unit);
+                newSize++;
+            }
+        }
+        size = newSize;
+        table = newTable;
+    }
+
+    private static void insert(CodeUnit[] t, CodeUnit unit) {
+        int mask = t.length - 1;
+        int i = (unit.getBase() >>> 2) & mask;
+        while (t[i] != null) {
+            i = (i + 1) & mask;
+        }
+        t[i] = unit;
+    }
+}
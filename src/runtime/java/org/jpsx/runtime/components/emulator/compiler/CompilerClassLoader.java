@@ -25,10 +25,39 @@ import org.apache.log4j.Logger;
 public class CompilerClassLoader extends ClassLoader {
     private static final Logger logger = Logger.getLogger(MultiStageCompiler.CATEGORY);
     private final String description;
+    // RAM page whose code this loader defines, or -1 for the ROM loader
+    private final int page;
 
     public CompilerClassLoader(String description, ClassLoader parent) {
+        this(description, parent, -1);
+    }
+
+    public CompilerClassLoader(String description, ClassLoader parent, int page) {
         super(parent);
         this.description = description;
+        this.page = page;
+    }
+
+    public final int getPage() {
+        return page;
+    }
+
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        if (page != -1 && name.startsWith(Stage1Generator.CLASS_NAME_PREFIX)) {
+            // RAM page loaders don't delegate for C1 classes, so that we know which page is linking to which
+            Class<?> c = findLoadedClass(name);
+            if (c == null) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug(description + ": loadClass " + name);
+                }
+                c = MultiStageCompiler.generateClass(name, this);
+            }
+            if (resolve) {
+                resolveClass(c);
+            }
+            return c;
+        }
+        return super.loadClass(name, resolve);
     }
 
     public Class findClass(final String name) throws ClassNotFoundException {
@@ -41,7 +70,7 @@ public class CompilerClassLoader extends ClassLoader {
             // Note it is a bit confusing, that because of the delegation model, it is generally
             // the rom loader that gets to generate the class here; however this call actually
             // generates the class using the rom or current ram loader as appropriate
-            c = MultiStageCompiler.generateClass(name);
+            c = MultiStageCompiler.generateClass(name, this);
         }
         return c;
     }
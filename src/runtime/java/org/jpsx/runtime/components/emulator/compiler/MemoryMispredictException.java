@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2003, 2014 Graham Sanderson
+ *
+ * This file is part of JPSX.
+ *
+ * JPSX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JPSX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JPSX.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpsx.runtime.components.emulator.compiler;
+
+/**
+ * Thrown by stage 2 code in place of the ArrayIndexOutOfBoundsException caused by
+ * a mispredicted memory access. It carries the address of the offending instruction,
+ * so recovery doesn't need a stack trace.
+ */
+public class MemoryMispredictException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    // single instance since exception creation is costly, and we don't care about stack traces in this case
+    private static final MemoryMispredictException INSTANCE = new MemoryMispredictException();
+
+    private int unitBase;
+    private int pc;
+
+    private MemoryMispredictException() {
+    }
+
+    /**
+     * Called from generated code
+     */
+    public static MemoryMispredictException get(int unitBase, int pc) {
+        INSTANCE.unitBase = unitBase;
+        INSTANCE.pc = pc;
+        return INSTANCE;
+    }
+
+    public int getUnitBase() {
+        return unitBase;
+    }
+
+    public int getPC() {
+        return pc;
+    }
+
+    public Throwable fillInStackTrace() {
+        return this;
+    }
+}
@@ -18,7 +18,6 @@
  */
 package org.jpsx.runtime.components.emulator.compiler;
 
-import org.apache.bcel.classfile.JavaClass;
 import org.apache.log4j.Logger;
 import org.jpsx.api.components.core.ContinueExecutionException;
 import org.jpsx.api.components.core.ImmediateBreakoutException;
@@ -30,11 +29,37 @@ import org.jpsx.api.components.core.cpu.R3000;
 import org.jpsx.bootstrap.util.CollectionsFactory;
 import org.jpsx.runtime.*;
 import org.jpsx.runtime.components.core.CoreComponentConnections;
+import org.jpsx.runtime.components.core.R3000Impl;
 import org.jpsx.runtime.util.MiscUtil;
-
+import org.jpsx.runtime.util.Timing;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.lang.reflect.Field;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
 
 // todo, compilation shouldn't fail it should just make a class which throws ContinueExecutionException
 
@@ -63,15 +88,44 @@ public class MultiStageCompiler extends SingletonJPSXComponent implements Native
     // note we can't use the real one since it is not thread safe
     private static Stage2Generator fixupStage2Generator;
 
-    protected static CompilerClassLoader ramLoader;
     protected static CompilerClassLoader romLoader;
-    protected static int ramLoaderCount = 0;
+    // RAM classes are defined by a separate loader per page; all page book-keeping is guarded by ramUnits
+    protected static final CodePage[] ramPages = new CodePage[CodePage.PAGE_COUNT];
+
+    protected static final CodeUnitTable romUnits = new CodeUnitTable();
+    protected static final CodeUnitTable ramUnits = new CodeUnitTable();
 
-    protected static final Map<Integer, CodeUnit> romUnits = CollectionsFactory.newHashMap();
-    protected static final Map<Integer, CodeUnit> ramUnits = CollectionsFactory.newHashMap();
+    /**
+     * Counts of indirect calls and jumps in stage 2 code which did and did not match one of
+     * the inline cached targets; only updated if statistics are enabled
+     */
+    public static int inlineCacheHits;
+    public static int inlineCacheMisses;
+    // register accesses emitted by stage 2 code to the reg_N fields and to locals; guarded by statisticsLock
+    private static long staticRegAccesses;
+    private static long localRegAccesses;
+    // classes serialized by the generators, their total size, and the time taken; guarded by statisticsLock
+    private static int serializedClasses;
+    private static long serializedBytes;
+    private static long serializationNanos;
+    private static final Object statisticsLock = new Object();
 
     protected static CompilationBroker broker;
 
+    protected static ClassCache classCache;
+
+    protected static BIOSBundle biosBundle;
+
+    /**
+     * Held for reading by speculative stage 1 compiles, which may then run in parallel, and for writing
+     * while the instruction cache is cleared (or a BIOS bundle is written), which must not overlap them
+     */
+    private static final ReentrantReadWriteLock compileLock = new ReentrantReadWriteLock();
+
+    private static String codeDigest;
+    // computed on first use, which is after the hardware callbacks are all registered
+    private static String classCacheFingerprint;
+
     private static final int MAX_BREAKPOINTS = 64;
 
     private static final int[] breakpoints = new int[MAX_BREAKPOINTS];
@@ -116,6 +170,9 @@ public class MultiStageCompiler extends SingletonJPSXComponent implements Native
      */
 
     static {
+        for (int i = 0; i < CodePage.PAGE_COUNT; i++) {
+            ramPages[i] = new CodePage(i);
+        }
         contexts = new ExecutionContext[MAX_CONTEXT_DEPTH];
         for (int i = 0; i < MAX_CONTEXT_DEPTH; i++) {
             contexts[i] = new ExecutionContext();
@@ -126,11 +183,27 @@ public class MultiStageCompiler extends SingletonJPSXComponent implements Native
     protected static class Settings extends FinalComponentSettings {
         // todo, assert this happens late enough
         public static final boolean enableSpeculativeCompilation = getComponent().getBooleanProperty("speculativeCompilation", true);
+        // enter compiled code at the targets of frequently taken backward branches in the interpreter, not just at JAL targets
+        public static final boolean enableBranchTargetEntry = getComponent().getBooleanProperty("branchTargetEntry", true);
         public static final boolean enableSecondStage = getComponent().getBooleanProperty("stage2", true);
         public static final boolean secondStageInBackground = true;
+        // keep R3000 registers in JVM locals within stage 2 code rather than always using the reg_N fields
+        public static final boolean stage2RegisterLocals = getComponent().getBooleanProperty("stage2RegisterLocals", true);
+        // let coprocessor instructions skip computing results (e.g. GTE FLAG) which stage 2 can prove are never read
+        public static final boolean stage2CoprocessorLiveness = getComponent().getBooleanProperty("stage2CoprocessorLiveness", true);
+        // number of times a single stage 2 memory access may mispredict before the unit is recompiled with that access made generic
+        public static final int stage2MispredictThreshold = Math.max(1, getComponent().getIntProperty("stage2MispredictThreshold", 4));
+        public static final int compilerThreads = Math.max(1, getComponent().getIntProperty("compilerThreads", Math.min(4, Runtime.getRuntime().availableProcessors() - 2)));
         public static final int minSizeForSpeculativeCompile = 50;
         public static final int maxNativeDepth = 100;
         public static final int stage2Threshold = 30;
+        // maximum number of targets checked by an inline cache for a jalr/jr in stage 2 code
+        public static final int inlineCacheSize = getComponent().getIntProperty("inlineCacheSize", 4);
+        // maximum number of R3000 instructions in a hot leaf function for stage 2 code to inline it at its call sites (0 to disable)
+        public static final int stage2InlineSize = getComponent().getIntProperty("stage2InlineSize", 16);
+        // "asm" to serialize generated classes with ASM rather than BCEL (see ASMClassWriter), if ASM is on the class path;
+        // the class-writer-benchmark machine measures them no faster, and allocating a little more, so BCEL is the default
+        public static final boolean asmClassWriter = "asm".equals(getComponent().getProperty("classWriter", "bcel")) && ASMClassWriter.isAvailable();
         public static final int maxR3000InstructionsPerUnit = 8000;
 // 1       at       Assembler temporary.
 // 2- 3    v0-v1    Subroutine return values
@@ -157,6 +230,11 @@ public class MultiStageCompiler extends SingletonJPSXComponent implements Native
         protected static final boolean printRare = getComponent().getBooleanProperty("printRare", false);
         protected static final boolean statistics = getComponent().getBooleanProperty("statistics", false);
         protected static final boolean dumpMemoryMisPredictions = false;
+        protected static final boolean enableClassCache = getComponent().getBooleanProperty("classCache", false);
+        protected static final String classCacheDir = getComponent().getProperty("classCacheDir", "classcache");
+        protected static final int classCacheMaxMegabytes = getComponent().getIntProperty("classCacheMaxSize", 64);
+        // jar of prebuilt stage 1 and stage 2 classes for the BIOS (see BIOSBundleBuilder); ignored if it doesn't exist
+        protected static final String biosBundle = getComponent().getProperty("biosBundle", "bios.jar");
         // todo printCode here just because the print code stuff doesn't work properly with basic blocks that have been split into separate methods
         // todo the larger number can cause some branches to become too large
         protected static final int maxMethodInstructionCount = printCode?8000:800; // todo justify this choice of number
@@ -173,7 +251,16 @@ public class MultiStageCompiler extends SingletonJPSXComponent implements Native
                 Settings.setComponent(MultiStageCompiler.this);
                 log.info("printCode " + Settings.printCode);
                 log.info("Speculative compilation enabled = " + Settings.enableSpeculativeCompilation);
+                log.info("Branch target entry enabled = " + Settings.enableBranchTargetEntry);
                 log.info("Second stage enabled = " + Settings.enableSecondStage);
+                log.info("Second stage register locals = " + Settings.stage2RegisterLocals);
+                log.info("Second stage coprocessor liveness = " + Settings.stage2CoprocessorLiveness);
+                log.info("Second stage mispredict threshold = " + Settings.stage2MispredictThreshold);
+                log.info("Class cache enabled = " + Settings.enableClassCache);
+                log.info("BIOS bundle = " + Settings.biosBundle);
+                log.info("Inline cache size = " + Settings.inlineCacheSize);
+                log.info("Second stage inline size = " + Settings.stage2InlineSize);
+                log.info("Background compilation threads = " + Settings.compilerThreads);
             }
         });
     }
@@ -181,12 +268,49 @@ public class MultiStageCompiler extends SingletonJPSXComponent implements Native
     public void begin() {
         immediateGenerator = new Stage1Generator("c1gen.out", true);
         romLoader = new CompilerClassLoader("ROM classloader", MultiStageCompiler.class.getClassLoader());
+        if (Settings.enableClassCache) {
+            classCache = new ClassCache(new File(Settings.classCacheDir), Settings.classCacheMaxMegabytes * 1024L * 1024L, getClassCacheFingerprint());
+        }
+        // memory has been populated by now, so we can check the bundle matches the BIOS image; the key is only
+        // computed if there is a bundle, since it digests the emulator's class files and the BIOS
+        File biosBundleFile = new File(Settings.biosBundle);
+        if (biosBundleFile.isFile()) {
+            biosBundle = BIOSBundle.load(biosBundleFile, getBIOSBundleKey(r3000.isInstructionCountingEnabled()));
+        }
         broker = new CompilationBroker();
         broker.begin();
-        clearCache();
+        if (Settings.statistics) {
+            // the machine simply exits when closed
+            Runtime.getRuntime().addShutdownHook(new Thread("Compiler statistics") {
+                public void run() {
+                    logStatistics();
+                }
+            });
+        }
     }
 
     public boolean jumpAndLink(int address, int returnAddress) {
+        return enter(address, returnAddress, false);
+    }
+
+    public boolean enterAtBranchTarget(int address) {
+        if (!Settings.enableBranchTargetEntry) {
+            return false;
+        }
+        // r31 may not be our caller's return address (it may have been saved, and used for a call since), so
+        // run the unit as if it had been jumped to; it returns the target of the first jump which leaves it,
+        // and the interpreter carries on from there. r31 is passed only because it is as good a value as any
+        if (!ownRegs) {
+            interpreterToCompiler();
+        }
+        return enter(address, reg_31, true);
+    }
+
+    /**
+     * Run the code unit at the specified address; if jump is false the unit runs until it jumps to the
+     * return address, otherwise only until its first jump out
+     */
+    private boolean enter(int address, int returnAddress, boolean jump) {
         int oldNativeDepth = contexts[contextDepth].nativeDepth;
 
         context = contexts[++contextDepth];
@@ -206,9 +330,9 @@ public class MultiStageCompiler extends SingletonJPSXComponent implements Native
         if (!ownRegs) {
             interpreterToCompiler();
         }
-        int retaddr = exec.e(returnAddress, false);
+        int retaddr = exec.e(returnAddress, jump);
         compilerToInterpreter();
-        assert retaddr == returnAddress;
+        assert jump || retaddr == returnAddress;
         assert oldNativeDepth == context.nativeDepth : "nativeDepth mismatch for " + MiscUtil.toHex(address, 8) + " " + oldNativeDepth + "!=" + context.nativeDepth;
         contextDepth--;
         assert contextDepth >= 0;
@@ -222,15 +346,66 @@ public class MultiStageCompiler extends SingletonJPSXComponent implements Native
      */
     protected static Executable makeExecutable(CodeUnit unit) {
         assert r3000.isExecutionThread();
-        JavaClass jclass = unit.getStage1JavaClass(immediateGenerator, true);
-        Class clazz = createClass(unit, jclass);
+        Class clazz = null;
+        String cacheKey = null;
+        String stage2Classname = null;
+        byte[] stage2ClassData = null;
+        if (biosBundle != null && unit.isROM()) {
+            String classname = immediateGenerator.getClassName(Stage1Generator.CLASS_NAME_PREFIX, unit.getBase());
+            byte[] classData = biosBundle.get(classname);
+            if (classData != null) {
+                immediateGenerator.tagDelaySlots(unit.getFlowInfo(immediateGenerator.analyzer, true));
+                clazz = createClass(unit, classname, classData);
+                if (Settings.enableSecondStage) {
+                    stage2Classname = immediateGenerator.getClassName(Stage2Generator.CLASS_NAME_PREFIX, unit.getBase());
+                    stage2ClassData = biosBundle.get(stage2Classname);
+                    int[] inlined = biosBundle.getInlinedCode(stage2Classname);
+                    if (stage2ClassData != null && inlined != null) {
+                        // before the breakpoints are enumerated
+                        for (int i = 0; i < inlined.length; i += 2) {
+                            unit.addInlinedCode(inlined[i], inlined[i + 1]);
+                        }
+                    }
+                }
+            }
+        }
+        if (clazz == null && classCache != null) {
+            FlowAnalyzer.FlowInfo flowInfo = unit.getFlowInfo(immediateGenerator.analyzer, true);
+            String classname = immediateGenerator.getClassName(Stage1Generator.CLASS_NAME_PREFIX, unit.getBase());
+            cacheKey = classCache.getKey(classname, flowInfo, addressSpace);
+            byte[] classData = classCache.load(cacheKey);
+            if (classData != null) {
+                immediateGenerator.tagDelaySlots(flowInfo);
+                clazz = createClass(unit, classname, classData);
+            }
+        }
+        if (clazz == null) {
+            String classname = immediateGenerator.getClassName(Stage1Generator.CLASS_NAME_PREFIX, unit.getBase());
+            byte[] classData;
+            if (cacheKey != null) {
+                // generate afresh, so that what we store is known to match the code we hashed
+                classData = immediateGenerator.createClass(unit, true);
+            } else {
+                classData = unit.getStage1ClassData(immediateGenerator, true);
+            }
+            clazz = createClass(unit, classname, classData);
+            if (cacheKey != null) {
+                classCache.store(cacheKey, classData);
+            }
+        }
         unit.stage1ClassReady();
+        if (!unit.isROM()) {
+            addToCodePages(unit);
+        }
         try {
             Executable executable = (Executable) clazz.newInstance();
             Field field = clazz.getField("unit");
             field.set(executable, unit);
             broker.registerLinkedFunctions(unit, true);
             unit.setExecutable(executable);
+            if (stage2ClassData != null) {
+                unit.bundledStage2ClassReady(createStage2Class(unit, stage2Classname, stage2ClassData));
+            }
             return executable;
         } catch (Throwable t) {
             t.printStackTrace();
@@ -238,21 +413,86 @@ public class MultiStageCompiler extends SingletonJPSXComponent implements Native
         }
     }
 
+    /**
+     * Rather than throwing away all RAM code, we only discard code in pages whose code
+     * has actually been modified, along with any code that may have linked to it.
+     */
     public void clearCache() {
         log.debug("clearCache");
-        synchronized (MultiStageCompiler.class) {
-            broker.reset();
-            ramLoaderCount++;
-            // we delegate to the rom loader for bios functions
-            ramLoader = new CompilerClassLoader("RAM classloader " + ramLoaderCount, romLoader);
+        compileLock.writeLock().lock();
+        try {
+            BitSet invalidPages = new BitSet(CodePage.PAGE_COUNT);
             synchronized (ramUnits) {
-                ramUnits.clear();
+                for (CodePage page : ramPages) {
+                    if (page.isModified(addressSpace)) {
+                        addInvalidPage(page.getIndex(), invalidPages);
+                    }
+                }
+                Set<CodeUnit> removed = CollectionsFactory.newHashSet();
+                for (CodeUnit unit : ramUnits.getUnits()) {
+                    // we also drop any units which haven't been compiled yet, as any flow information
+                    // or speculatively compiled code they hold may be out of date
+                    if (unit.getExecutable() == null || invalidPages.get(CodePage.getIndex(unit.getBase()))) {
+                        unit.invalidate();
+                        removed.add(unit);
+                    }
+                }
+                ramUnits.removeAll(removed);
+                for (CodePage page : ramPages) {
+                    // tags for words whose code hasn't changed, and which are still covered by the same units, are still good
+                    boolean clearTags = page.isWritten(addressSpace);
+                    if (invalidPages.get(page.getIndex())) {
+                        page.reset();
+                        clearTags = true;
+                    } else if (page.removeInvalidatedUnits()) {
+                        clearTags = true;
+                    }
+                    if (clearTags) {
+                        // the address space leaves our tags alone, so clear any that no longer refer to compiled code
+                        page.clearUncoveredTags(addressSpace, (byte) (TAG_UNWRITTEN_REGS | TAG_DELAY_SLOT));
+                        page.watch(addressSpace);
+                    }
+                }
             }
-            // make sure we know that we cannot continue executing code
-            // in any higher nested execution levels
-            // todo this should be 0...?
-            for (int i = 1; i < contextDepth; i++) {
-                contexts[i].cacheStale = true;
+            if (log.isDebugEnabled()) {
+                log.debug("clearCache invalidated " + invalidPages.cardinality() + " pages");
+            }
+            broker.removeInvalidatedUnits();
+            if (!invalidPages.isEmpty()) {
+                // make sure we know that we cannot continue executing code
+                // in any higher nested execution levels
+                // todo this should be 0...?
+                for (int i = 1; i < contextDepth; i++) {
+                    contexts[i].cacheStale = true;
+                }
+            }
+        } finally {
+            compileLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Mark the page as invalid, along with the base pages of all units which include code in it, and any page
+     * which has linked to classes in those pages
+     */
+    private static void addInvalidPage(int index, BitSet invalidPages) {
+        if (!invalidPages.get(index)) {
+            invalidPages.set(index);
+            CodePage page = ramPages[index];
+            for (CodeUnit unit : page.getUnits()) {
+                addInvalidPage(CodePage.getIndex(unit.getBase()), invalidPages);
+            }
+            BitSet dependents = page.getDependents();
+            for (int i = dependents.nextSetBit(0); i >= 0; i = dependents.nextSetBit(i + 1)) {
+                addInvalidPage(i, invalidPages);
+            }
+        }
+    }
+
+    private static void addToCodePages(CodeUnit unit) {
+        synchronized (ramUnits) {
+            for (int address = unit.getBase() & ~(CodePage.PAGE_SIZE - 1); address < unit.getEnd(); address += CodePage.PAGE_SIZE) {
+                ramPages[CodePage.getIndex(address)].addUnit(unit, addressSpace);
             }
         }
     }
@@ -267,27 +507,42 @@ public class MultiStageCompiler extends SingletonJPSXComponent implements Native
             return true;
         }
 
-        StackTraceElement trace[] = t.getStackTrace();
         int exceptionPC = -1;
         int base = 0;
-        String className = null;
-        for (int i = 0; i < trace.length; i++) {
-            className = trace[i].getClassName();
-            if (className.length() == 10 && className.startsWith("_")) {
-                String methodName = trace[i].getMethodName();
-                if (methodName.equals(Stage1Generator.STATIC_METHOD) || methodName.startsWith(Stage1Generator.UNINLINED_METHOD_PREFIX)) {
-                    exceptionPC = base = MiscUtil.parseHex(className.substring(2));
-                    int ln = trace[i].getLineNumber();
-                    if (ln >= 0) {
-                        exceptionPC += ln * 4;
+        boolean stage2 = false;
+        boolean mispredict = false;
+        if (t instanceof MemoryMispredictException) {
+            // stage 2 code tells us exactly where it was, so no need for a stack trace
+            MemoryMispredictException mme = (MemoryMispredictException) t;
+            base = mme.getUnitBase();
+            exceptionPC = mme.getPC();
+            stage2 = true;
+            mispredict = true;
+        } else {
+            StackTraceElement trace[] = t.getStackTrace();
+            for (int i = 0; i < trace.length; i++) {
+                String className = trace[i].getClassName();
+                if (className.length() == 10 && className.startsWith("_")) {
+                    String methodName = trace[i].getMethodName();
+                    if (methodName.equals(Stage1Generator.STATIC_METHOD) || methodName.startsWith(Stage1Generator.UNINLINED_METHOD_PREFIX)) {
+                        exceptionPC = base = MiscUtil.parseHex(className.substring(2));
+                        int ln = trace[i].getLineNumber();
+                        if (ln >= 0) {
+                            exceptionPC += ln * 4;
+                        }
+                        stage2 = !className.startsWith(Stage1Generator.CLASS_NAME_PREFIX);
+                        break;
+                        // todo constant
+                    } else if (methodName.equals(Stage1Generator.NORMAL_METHOD)) {
+                        System.out.println("Can't get PC!");
+                        break;
                     }
-                    break;
-                    // todo constant
-                } else if (methodName.equals(Stage1Generator.NORMAL_METHOD)) {
-                    System.out.println("Can't get PC!");
-                    break;
                 }
             }
+            if (exceptionPC != -1 && stage2 && t.getClass() == ArrayIndexOutOfBoundsException.class) {
+                // could be due to mis-predicted memory access not caught by the stage 2 code itself
+                mispredict = 0 != (r3000.decodeInstruction(addressSpace.internalRead32(exceptionPC)).getFlags() & CPUInstruction.FLAG_MEM);
+            }
         }
         if (exceptionPC != -1) {
             int restartPC;
@@ -304,10 +559,11 @@ public class MultiStageCompiler extends SingletonJPSXComponent implements Native
                 restartPC = exceptionPC;
             }
             r3000.setPC(restartPC);
-            if (!className.startsWith(Stage1Generator.CLASS_NAME_PREFIX)) {
+            if (stage2) {
                 // Note using exceptionPC seems to make sense, since the code for that instruction actually happens
                 // before the preceding branch (which itself can't have changed any constant registers anyway)
-                if (0 != (addressSpace.getTag(exceptionPC) & TAG_UNWRITTEN_REGS)) {
+                // stage 2 code which throws MemoryMispredictException has already written back the registers
+                if (!(t instanceof MemoryMispredictException) && 0 != (addressSpace.getTag(exceptionPC) & TAG_UNWRITTEN_REGS)) {
                     // if we get here it is because we have had a memory mis-predict, but we cannot safely
                     // restart, because we omitted code to update actual register values during this basic block.
                     // what we need to do here, is to re-examine the code unit, and figure out what the register values must have been (i.e.
@@ -320,33 +576,33 @@ public class MultiStageCompiler extends SingletonJPSXComponent implements Native
                     fixupUnwrittenCompilerRegs(base, exceptionPC);
                     compilerToInterpreter();
                 }
-                if (t.getClass() == ArrayIndexOutOfBoundsException.class) {
-                    // could be due to mis-predicted memory access
+                if (mispredict) {
                     int ci = addressSpace.internalRead32(exceptionPC);
-                    CPUInstruction inst = r3000.decodeInstruction(ci);
-                    if (0 != (inst.getFlags() & CPUInstruction.FLAG_MEM)) {
-                        if (log.isDebugEnabled()) {
-                            log.debug("***** Mispredicted memory access at " + MiscUtil.toHex(exceptionPC, 8));
-                        }
-                        if (Settings.dumpMemoryMisPredictions) {
-                            String dis = r3000.disassemble(exceptionPC, ci);
-                            System.out.println("MemoryFail at " + MiscUtil.toHex(exceptionPC, 8) + ": " + MiscUtil.toHex(ci, 8) + " " + dis);
-                            t.printStackTrace();
-                            System.out.println("r0  " + MiscUtil.toHex(Refs.interpreterRegs[0], 8) + " r1  " + MiscUtil.toHex(Refs.interpreterRegs[1], 8) + " r2  " + MiscUtil.toHex(Refs.interpreterRegs[2], 8) + " r3  " + MiscUtil.toHex(Refs.interpreterRegs[3], 8) + " pc  " + MiscUtil.toHex(r3000.getPC(), 8));
-                            System.out.println("r4  " + MiscUtil.toHex(Refs.interpreterRegs[4], 8) + " r5  " + MiscUtil.toHex(Refs.interpreterRegs[5], 8) + " r6  " + MiscUtil.toHex(Refs.interpreterRegs[6], 8) + " r7  " + MiscUtil.toHex(Refs.interpreterRegs[7], 8) + " lo  " + MiscUtil.toHex(r3000.getLO(), 8));
-                            System.out.println("r8  " + MiscUtil.toHex(Refs.interpreterRegs[8], 8) + " r9  " + MiscUtil.toHex(Refs.interpreterRegs[9], 8) + " r10 " + MiscUtil.toHex(Refs.interpreterRegs[10], 8) + " r11 " + MiscUtil.toHex(Refs.interpreterRegs[11], 8) + " hi  " + MiscUtil.toHex(r3000.getHI(), 8));
-                            System.out.println("r12 " + MiscUtil.toHex(Refs.interpreterRegs[12], 8) + " r13 " + MiscUtil.toHex(Refs.interpreterRegs[13], 8) + " r14 " + MiscUtil.toHex(Refs.interpreterRegs[14], 8) + " r15 " + MiscUtil.toHex(Refs.interpreterRegs[15], 8));
-                            System.out.println("r16 " + MiscUtil.toHex(Refs.interpreterRegs[16], 8) + " r17 " + MiscUtil.toHex(Refs.interpreterRegs[17], 8) + " r18 " + MiscUtil.toHex(Refs.interpreterRegs[18], 8) + " r19 " + MiscUtil.toHex(Refs.interpreterRegs[19], 8));
-                            System.out.println("r20 " + MiscUtil.toHex(Refs.interpreterRegs[20], 8) + " r21 " + MiscUtil.toHex(Refs.interpreterRegs[21], 8) + " r22 " + MiscUtil.toHex(Refs.interpreterRegs[22], 8) + " r23 " + MiscUtil.toHex(Refs.interpreterRegs[23], 8));
-                            System.out.println("r24 " + MiscUtil.toHex(Refs.interpreterRegs[24], 8) + " r25 " + MiscUtil.toHex(Refs.interpreterRegs[25], 8) + " r26 " + MiscUtil.toHex(Refs.interpreterRegs[26], 8) + " r27 " + MiscUtil.toHex(Refs.interpreterRegs[27], 8));
-                            System.out.println("r28 " + MiscUtil.toHex(Refs.interpreterRegs[28], 8) + " r29 " + MiscUtil.toHex(Refs.interpreterRegs[29], 8) + " r30 " + MiscUtil.toHex(Refs.interpreterRegs[30], 8) + " r31 " + MiscUtil.toHex(Refs.interpreterRegs[31], 8));
-                        }
+                    if (log.isDebugEnabled()) {
+                        log.debug("***** Mispredicted memory access at " + MiscUtil.toHex(exceptionPC, 8));
+                    }
+                    if (Settings.dumpMemoryMisPredictions) {
+                        String dis = r3000.disassemble(exceptionPC, ci);
+                        System.out.println("MemoryFail at " + MiscUtil.toHex(exceptionPC, 8) + ": " + MiscUtil.toHex(ci, 8) + " " + dis);
+                        t.printStackTrace();
+                        System.out.println("r0  " + MiscUtil.toHex(Refs.interpreterRegs[0], 8) + " r1  " + MiscUtil.toHex(Refs.interpreterRegs[1], 8) + " r2  " + MiscUtil.toHex(Refs.interpreterRegs[2], 8) + " r3  " + MiscUtil.toHex(Refs.interpreterRegs[3], 8) + " pc  " + MiscUtil.toHex(r3000.getPC(), 8));
+                        System.out.println("r4  " + MiscUtil.toHex(Refs.interpreterRegs[4], 8) + " r5  " + MiscUtil.toHex(Refs.interpreterRegs[5], 8) + " r6  " + MiscUtil.toHex(Refs.interpreterRegs[6], 8) + " r7  " + MiscUtil.toHex(Refs.interpreterRegs[7], 8) + " lo  " + MiscUtil.toHex(r3000.getLO(), 8));
+                        System.out.println("r8  " + MiscUtil.toHex(Refs.interpreterRegs[8], 8) + " r9  " + MiscUtil.toHex(Refs.interpreterRegs[9], 8) + " r10 " + MiscUtil.toHex(Refs.interpreterRegs[10], 8) + " r11 " + MiscUtil.toHex(Refs.interpreterRegs[11], 8) + " hi  " + MiscUtil.toHex(r3000.getHI(), 8));
+                        System.out.println("r12 " + MiscUtil.toHex(Refs.interpreterRegs[12], 8) + " r13 " + MiscUtil.toHex(Refs.interpreterRegs[13], 8) + " r14 " + MiscUtil.toHex(Refs.interpreterRegs[14], 8) + " r15 " + MiscUtil.toHex(Refs.interpreterRegs[15], 8));
+                        System.out.println("r16 " + MiscUtil.toHex(Refs.interpreterRegs[16], 8) + " r17 " + MiscUtil.toHex(Refs.interpreterRegs[17], 8) + " r18 " + MiscUtil.toHex(Refs.interpreterRegs[18], 8) + " r19 " + MiscUtil.toHex(Refs.interpreterRegs[19], 8));
+                        System.out.println("r20 " + MiscUtil.toHex(Refs.interpreterRegs[20], 8) + " r21 " + MiscUtil.toHex(Refs.interpreterRegs[21], 8) + " r22 " + MiscUtil.toHex(Refs.interpreterRegs[22], 8) + " r23 " + MiscUtil.toHex(Refs.interpreterRegs[23], 8));
+                        System.out.println("r24 " + MiscUtil.toHex(Refs.interpreterRegs[24], 8) + " r25 " + MiscUtil.toHex(Refs.interpreterRegs[25], 8) + " r26 " + MiscUtil.toHex(Refs.interpreterRegs[26], 8) + " r27 " + MiscUtil.toHex(Refs.interpreterRegs[27], 8));
+                        System.out.println("r28 " + MiscUtil.toHex(Refs.interpreterRegs[28], 8) + " r29 " + MiscUtil.toHex(Refs.interpreterRegs[29], 8) + " r30 " + MiscUtil.toHex(Refs.interpreterRegs[30], 8) + " r31 " + MiscUtil.toHex(Refs.interpreterRegs[31], 8));
+                    }
 
-                        CodeUnit unit = getCodeUnit(base);
-                        assert unit.useStage2;
+                    CodeUnit unit = getCodeUnit(base);
+                    assert unit.useStage2;
+                    if (t instanceof MemoryMispredictException) {
+                        unit.memoryMispredicted(exceptionPC);
+                    } else {
                         unit.stage2ClassBroken();
-                        return true;
                     }
+                    return true;
                 }
             }
             // This exception is allowed anywhere
@@ -376,10 +632,13 @@ public class MultiStageCompiler extends SingletonJPSXComponent implements Native
             }
             breakpoints[breakpointLimit++] = address;
         }
-        Map<Integer, CodeUnit> map = AddressSpace.Util.isBIOS(address) ? romUnits : ramUnits;
-        synchronized (map) {
-            for (CodeUnit unit : map.values()) {
-                unit.breakpointAdded(address);
+        // RAM units may have inlined BIOS code
+        CodeUnitTable[] tables = AddressSpace.Util.isBIOS(address) ? new CodeUnitTable[]{romUnits, ramUnits} : new CodeUnitTable[]{ramUnits};
+        for (CodeUnitTable table : tables) {
+            synchronized (table) {
+                for (CodeUnit unit : table.getUnits()) {
+                    unit.breakpointAdded(address);
+                }
             }
         }
         // make sure we know that we should not continue executing code
@@ -397,10 +656,13 @@ public class MultiStageCompiler extends SingletonJPSXComponent implements Native
                 if (i == breakpointLimit - 1) {
                     breakpointLimit--;
                 }
-                Map<Integer, CodeUnit> map = AddressSpace.Util.isBIOS(address) ? romUnits : ramUnits;
-                synchronized (map) {
-                    for (CodeUnit unit : map.values()) {
-                        unit.breakpointRemoved(address);
+                // RAM units may have inlined BIOS code
+                CodeUnitTable[] tables = AddressSpace.Util.isBIOS(address) ? new CodeUnitTable[]{romUnits, ramUnits} : new CodeUnitTable[]{ramUnits};
+                for (CodeUnitTable table : tables) {
+                    synchronized (table) {
+                        for (CodeUnit unit : table.getUnits()) {
+                            unit.breakpointRemoved(address);
+                        }
                     }
                 }
                 return;
@@ -430,13 +692,25 @@ public class MultiStageCompiler extends SingletonJPSXComponent implements Native
      * called by the class loader when a referenced
      * but not yet generated class is executed
      */
-    public static Class generateClass(String classname) throws ClassNotFoundException {
+    public static Class generateClass(String classname, CompilerClassLoader requester) throws ClassNotFoundException {
         // Note we only expect C1 classes, as those are the only ones defined on demand
         // C2 classes are generated in the background, and other classes should exist
         if (classname.startsWith(Stage1Generator.CLASS_NAME_PREFIX)) {
             int address = MiscUtil.parseHex(classname.substring(2));
             CodeUnit unit = getCodeUnit(address);
-            Executable executable = makeExecutable(unit);
+            Executable executable = unit.getExecutable();
+            if (executable == null) {
+                executable = makeExecutable(unit);
+            }
+            if (!unit.isROM() && requester.getPage() != -1) {
+                int page = CodePage.getIndex(address);
+                if (page != requester.getPage()) {
+                    // the requesting page is now linked to this class, so must be discarded along with it
+                    synchronized (ramUnits) {
+                        ramPages[page].getDependents().set(requester.getPage());
+                    }
+                }
+            }
             // todo; what if this fails?
             return executable.getClass();
         } else {
@@ -444,13 +718,366 @@ public class MultiStageCompiler extends SingletonJPSXComponent implements Native
         }
     }
 
-    protected static Class createClass(CodeUnit unit,
-                                       JavaClass jclass) {
-        if (AddressSpace.Util.isBIOS(unit.getBase())) {
-            return romLoader.createClass(jclass.getClassName(), jclass.getBytes());
+    protected static Class createClass(CodeUnit unit, String classname, byte[] classData) {
+        return unit.getLoader().createClass(classname, classData);
+    }
+
+    /**
+     * Each version of a unit's stage 2 code is defined by a class loader of its own, which delegates to the
+     * unit's loader. Nothing links to stage 2 classes by name, so once a version has been replaced (and
+     * is no longer running) it can be unloaded, rather than waiting for its page to be discarded.
+     */
+    protected static Class<?> createStage2Class(CodeUnit unit, String classname, byte[] classData) {
+        CompilerClassLoader parent = unit.getLoader();
+        CompilerClassLoader loader = new CompilerClassLoader(parent + " " + classname, parent, parent.getPage());
+        return loader.createClass(classname, classData);
+    }
+
+    /**
+     * Called by stage 2 generators (from any thread) with the register accesses emitted for a class
+     */
+    protected static void addRegAccessStatistics(int staticAccesses, int localAccesses) {
+        synchronized (statisticsLock) {
+            staticRegAccesses += staticAccesses;
+            localRegAccesses += localAccesses;
+        }
+    }
+
+    /**
+     * Called by generators (from any thread) each time they serialize a class
+     */
+    protected static void addSerializationStatistics(int bytes, long nanos) {
+        synchronized (statisticsLock) {
+            serializedClasses++;
+            serializedBytes += bytes;
+            serializationNanos += nanos;
+        }
+    }
+
+    private static void logStatistics() {
+        synchronized (statisticsLock) {
+            log.info("Stage 2 register accesses: static " + staticRegAccesses + " local " + localRegAccesses);
+            log.info("Serialized " + serializedClasses + " classes (" + (serializedBytes / 1024) + "K) in " + (serializationNanos / 1000000) + "ms");
+        }
+        log.info("Stage 2 inline caches: hits " + inlineCacheHits + " misses " + inlineCacheMisses);
+    }
+
+    /**
+     * Anything other than the R3000 code itself which affects the generated stage 1 code
+     * must be included here, so that we don't pick up cached classes which are no longer valid
+     */
+    private static synchronized String getClassCacheFingerprint() {
+        if (classCacheFingerprint == null) {
+            classCacheFingerprint = getFingerprint(r3000.isInstructionCountingEnabled());
+        }
+        return classCacheFingerprint;
+    }
+
+    /**
+     * @return the class cache fingerprint for code generated with or without instruction counting
+     */
+    private static String getFingerprint(boolean instructionCounting) {
+        StringBuilder rc = new StringBuilder();
+        rc.append(immediateGenerator.R3000_CLASS).append(':');
+        rc.append(immediateGenerator.ADDRESS_SPACE_CLASS).append(':');
+        rc.append(immediateGenerator.HW_CLASS).append(':');
+        rc.append(Settings.biosInterruptWorkaround).append(':');
+        rc.append(Settings.addLineNumbers).append(':');
+        rc.append(Settings.maxMethodInstructionCount).append(':');
+        rc.append(Settings.savedOnCallRegs).append(':');
+        rc.append(Settings.usuallyRAMRegs).append(':');
+        rc.append(Settings.maxR3000InstructionsPerUnit).append(':');
+        rc.append(instructionCounting).append(':');
+        rc.append(Settings.enableBranchTargetEntry).append(':');
+        rc.append(Settings.inlineCacheSize).append(':');
+        rc.append(Settings.debugPC).append(':');
+        rc.append(Settings.profiling).append(':');
+        rc.append(R3000Impl.Settings.traceExecutionFlow).append(':');
+        // hardware accesses at constant addresses are bound directly to the registered callbacks
+        rc.append(addressSpace.getHardwareCallbackDigest()).append(':');
+        // a rebuilt emulator may generate different code
+        rc.append(getCodeDigest());
+        return rc.toString();
+    }
+
+    /**
+     * @return a SHA-1 of the emulator's own class files; file times are no use here, since a directory's
+     *         modification time doesn't change when the class files within it are rebuilt
+     */
+    private static synchronized String getCodeDigest() {
+        if (codeDigest == null) {
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-1 not available", e);
+            }
+            try {
+                File file = getCodeLocation();
+                if (file != null) {
+                    if (file.isDirectory()) {
+                        digestClassFiles(digest, file, "");
+                    } else {
+                        JarFile jar = new JarFile(file);
+                        try {
+                            List<String> names = CollectionsFactory.newArrayList();
+                            for (Enumeration<JarEntry> e = jar.entries(); e.hasMoreElements();) {
+                                String name = e.nextElement().getName();
+                                if (name.endsWith(".class")) {
+                                    names.add(name);
+                                }
+                            }
+                            Collections.sort(names);
+                            for (String name : names) {
+                                digest.update(name.getBytes());
+                                InputStream is = jar.getInputStream(jar.getEntry(name));
+                                try {
+                                    digestStream(digest, is);
+                                } finally {
+                                    is.close();
+                                }
+                            }
+                        } finally {
+                            jar.close();
+                        }
+                    }
+                } else {
+                    log.warn("Unable to locate the emulator's class files; cached classes may be stale after a rebuild");
+                }
+            } catch (IOException e) {
+                log.warn("Unable to read the emulator's class files; cached classes may be stale after a rebuild", e);
+            } catch (URISyntaxException e) {
+                log.warn("Unable to locate the emulator's class files; cached classes may be stale after a rebuild", e);
+            }
+            byte[] hash = digest.digest();
+            StringBuilder rc = new StringBuilder();
+            for (int i = 0; i < hash.length; i++) {
+                rc.append(MiscUtil.toHex(hash[i] & 0xff, 2));
+            }
+            codeDigest = rc.toString();
+        }
+        return codeDigest;
+    }
+
+    /**
+     * @return the directory or jar file from which this class was loaded, or null if it can't be determined;
+     *         runtime classes are defined by the JPSX class loader without a code source, so this goes by the
+     *         location of the class file itself
+     */
+    private static File getCodeLocation() throws URISyntaxException {
+        String resource = MultiStageCompiler.class.getName().replace('.', '/') + ".class";
+        URL url = MultiStageCompiler.class.getClassLoader().getResource(resource);
+        if (url == null) {
+            return null;
+        }
+        String location = url.toString();
+        if ("jar".equals(url.getProtocol())) {
+            int separator = location.indexOf("!/");
+            if (separator < 0) {
+                return null;
+            }
+            location = location.substring(4, separator);
+        } else if ("file".equals(url.getProtocol()) && location.endsWith(resource)) {
+            location = location.substring(0, location.length() - resource.length());
         } else {
-            return ramLoader.createClass(jclass.getClassName(), jclass.getBytes());
+            return null;
+        }
+        if (!location.startsWith("file:")) {
+            return null;
         }
+        return new File(new URI(location));
+    }
+
+    private static void digestClassFiles(MessageDigest digest, File dir, String path) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            String name = path + file.getName();
+            if (file.isDirectory()) {
+                digestClassFiles(digest, file, name + "/");
+            } else if (name.endsWith(".class")) {
+                digest.update(name.getBytes());
+                InputStream is = new FileInputStream(file);
+                try {
+                    digestStream(digest, is);
+                } finally {
+                    is.close();
+                }
+            }
+        }
+    }
+
+    private static void digestStream(MessageDigest digest, InputStream is) throws IOException {
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = is.read(buffer)) > 0) {
+            digest.update(buffer, 0, n);
+        }
+    }
+
+    /**
+     * The bundle is keyed on the class cache fingerprint (which covers the settings and hardware callbacks
+     * which the stage 1 code depends on) and the settings which the stage 2 code depends on, as well as on
+     * the BIOS image itself
+     */
+    private static String getBIOSBundleKey(boolean instructionCounting) {
+        String fingerprint = getFingerprint(instructionCounting) + ':' + Settings.stage2RegisterLocals + ':' +
+                Settings.stage2CoprocessorLiveness + ':' + Settings.stage2InlineSize;
+        return BIOSBundle.getKey(addressSpace, fingerprint);
+    }
+
+    /**
+     * Generate stage 1 classes for every BIOS code unit which has been reached so far, along with
+     * any BIOS functions they call directly (and so on), and stage 2 classes for those units which
+     * are using stage 2 code, and write them to a new BIOS bundle.
+     * <p/>
+     * The code is generated for machines with or without instruction counting, as specified, whichever
+     * this machine uses. This is called on a thread other than the execution thread, which must not be
+     * executing R3000 code.
+     */
+    protected static void writeBIOSBundle(File file, boolean instructionCounting) throws IOException {
+        Stage1Generator generator = new Stage1Generator("c1bundle.out", false, instructionCounting);
+        Stage2Generator stage2Generator = Settings.enableSecondStage ? new Stage2Generator("c2bundle.out", false, instructionCounting) : null;
+        Map<String, byte[]> classes = CollectionsFactory.newHashMap();
+        Map<String, int[]> inlinedCode = CollectionsFactory.newHashMap();
+        compileLock.writeLock().lock();
+        try {
+            for (CodeUnit unit : getBIOSUnits(generator.analyzer)) {
+                byte[] classData = generator.createClass(unit, false);
+                if (classData == null) {
+                    continue;
+                }
+                classes.put(generator.getClassName(unit), classData);
+                if (stage2Generator != null && unit.useStage2) {
+                    byte[] stage2ClassData = unit.getStage2ClassData(stage2Generator, false);
+                    if (stage2ClassData != null) {
+                        String stage2Classname = stage2Generator.getClassName(unit);
+                        classes.put(stage2Classname, stage2ClassData);
+                        int[] inlined = unit.getInlinedCode();
+                        if (inlined.length != 0) {
+                            inlinedCode.put(stage2Classname, inlined);
+                        }
+                    }
+                }
+            }
+        } finally {
+            compileLock.writeLock().unlock();
+        }
+        BIOSBundle.write(file, getBIOSBundleKey(instructionCounting), classes, inlinedCode);
+    }
+
+    /**
+     * Compile the BIOS code units that {@link #writeBIOSBundle} would, over and over with each class writer,
+     * and log the average compile time and bytes allocated per unit. The first pass with each class writer is
+     * not counted, since it includes JIT compilation of the generators themselves.
+     * <p/>
+     * Like writeBIOSBundle, this is called on a thread other than the execution thread, which must not be
+     * executing R3000 code.
+     */
+    protected static void benchmarkClassWriters(int passes) {
+        Stage1Generator generator = new Stage1Generator("c1bench.out", false);
+        Stage2Generator stage2Generator = Settings.enableSecondStage ? new Stage2Generator("c2bench.out", false) : null;
+        boolean[] writers = ASMClassWriter.isAvailable() ? new boolean[]{false, true} : new boolean[]{false};
+        if (writers.length == 1) {
+            log.warn("ASM is not on the class path, so only the BCEL class writer can be measured");
+        }
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        com.sun.management.ThreadMXBean allocationBean = null;
+        if (threadBean instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) threadBean).isThreadAllocatedMemorySupported()) {
+            allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+            allocationBean.setThreadAllocatedMemoryEnabled(true);
+        } else {
+            log.warn("This JVM can't measure the bytes allocated by a thread");
+        }
+        long threadId = Thread.currentThread().getId();
+        compileLock.writeLock().lock();
+        try {
+            List<CodeUnit> units = getBIOSUnits(generator.analyzer);
+            long[] nanos = new long[writers.length];
+            long[] allocated = new long[writers.length];
+            int classes = 0;
+            for (int pass = 0; pass <= passes; pass++) {
+                for (int i = 0; i < writers.length; i++) {
+                    generator.setASMClassWriter(writers[i]);
+                    if (stage2Generator != null) {
+                        stage2Generator.setASMClassWriter(writers[i]);
+                    }
+                    int count = 0;
+                    long allocated0 = allocationBean == null ? 0 : allocationBean.getThreadAllocatedBytes(threadId);
+                    long t0 = Timing.nanos();
+                    for (CodeUnit unit : units) {
+                        if (generator.createClass(unit, false) != null) {
+                            count++;
+                        }
+                        if (stage2Generator != null && unit.useStage2 && unit.getStage2ClassData(stage2Generator, false) != null) {
+                            count++;
+                        }
+                    }
+                    long t1 = Timing.nanos() - t0;
+                    long allocated1 = allocationBean == null ? 0 : allocationBean.getThreadAllocatedBytes(threadId) - allocated0;
+                    if (pass != 0) {
+                        nanos[i] += t1;
+                        allocated[i] += allocated1;
+                    }
+                    classes = count;
+                }
+            }
+            log.info("Compiled " + units.size() + " BIOS code units (" + classes + " classes) " + passes + " times with each class writer");
+            for (int i = 0; i < writers.length; i++) {
+                long samples = (long) passes * Math.max(1, units.size());
+                String result = (writers[i] ? "ASM" : "BCEL") + ": " + (nanos[i] / samples / 1000) + "us per unit";
+                if (allocationBean != null) {
+                    result += ", " + (allocated[i] / samples / 1024) + "K allocated per unit";
+                }
+                log.info(result);
+            }
+        } finally {
+            compileLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return every BIOS code unit which has been reached so far, along with any BIOS functions they call
+     *         directly (and so on); called with the compile lock held for write
+     */
+    private static List<CodeUnit> getBIOSUnits(FlowAnalyzer analyzer) {
+        List<CodeUnit> units = CollectionsFactory.newArrayList();
+        LinkedList<CodeUnit> pending = new LinkedList<CodeUnit>();
+        synchronized (romUnits) {
+            pending.addAll(romUnits.getUnits());
+        }
+        Set<Integer> seen = CollectionsFactory.newHashSet();
+        for (CodeUnit unit : pending) {
+            seen.add(unit.getBase());
+        }
+        while (!pending.isEmpty()) {
+            CodeUnit unit = pending.removeFirst();
+            FlowAnalyzer.FlowInfo flowInfo = unit.getFlowInfo(analyzer, false);
+            if (flowInfo == null) {
+                continue;
+            }
+            units.add(unit);
+            for (FlowAnalyzer.BasicBlock block = flowInfo.root; block != null; block = block.next) {
+                if (block.type == FlowAnalyzer.BasicBlock.NORMAL) {
+                    for (int offset = block.offset; offset < block.offset + block.size; offset++) {
+                        int address = flowInfo.base + offset * 4;
+                        int ci = addressSpace.internalRead32(address);
+                        int iFlags = r3000.decodeInstruction(ci).getFlags();
+                        if (0 != (iFlags & CPUInstruction.FLAG_LINK) && 0 != (iFlags & CPUInstruction.FLAG_IMM_FAR_TARGET)) {
+                            // note the full 26 bit target field is needed to reach the BIOS
+                            int target = ((address + 4) & 0xf0000000) | ((ci & 0x3ffffff) << 2);
+                            if (AddressSpace.Util.isBIOS(target) && seen.add(target)) {
+                                pending.add(getCodeUnit(target));
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return units;
     }
 
     protected static void returnToInterpreter(int address) {
@@ -464,44 +1091,81 @@ public class MultiStageCompiler extends SingletonJPSXComponent implements Native
     }
 
     protected static CodeUnit getCodeUnit(int address) {
-        Map<Integer, CodeUnit> map = AddressSpace.Util.isBIOS(address) ? romUnits : ramUnits;
-        Integer key = address;
-        synchronized (map) {
-            CodeUnit rc = map.get(key);
-            if (rc == null) {
-                rc = new CodeUnit(address);
-                map.put(key, rc);
+        boolean rom = AddressSpace.Util.isBIOS(address);
+        CodeUnitTable table = rom ? romUnits : ramUnits;
+        CodeUnit rc = table.get(address);
+        if (rc == null) {
+            synchronized (table) {
+                rc = table.get(address);
+                if (rc == null) {
+                    rc = new CodeUnit(address, rom ? romLoader : ramPages[CodePage.getIndex(address)].getLoader(romLoader));
+                    table.add(rc);
+                }
             }
-            return rc;
         }
+        return rc;
     }
 
-    protected static class CompilationBroker implements Runnable {
+    /**
+     * Called (possibly from a background compiler thread) before stage 2 code for the caller inlines the code between
+     * start and end, which is the start of a leaf function. The function must be hot enough to have stage 2 code of
+     * its own; the caller's page is then discarded along with the function's code, should it be modified.
+     *
+     * @return false if the code should not be inlined
+     */
+    protected static boolean addInlinedCode(CodeUnit caller, int start, int end) {
+        CodeUnit callee = (AddressSpace.Util.isBIOS(start) ? romUnits : ramUnits).get(start);
+        if (callee == null || !callee.useStage2 || end > callee.getEnd()) {
+            return false;
+        }
+        if (!callee.isROM()) {
+            synchronized (ramUnits) {
+                if (callee.isInvalidated()) {
+                    return false;
+                }
+                for (int address = start & ~(CodePage.PAGE_SIZE - 1); address < end; address += CodePage.PAGE_SIZE) {
+                    ramPages[CodePage.getIndex(address)].getDependents().set(CodePage.getIndex(caller.getBase()));
+                }
+            }
+        }
+        caller.addInlinedCode(start, end);
+        return true;
+    }
+
+    /**
+     * Hands out background compilation work to a pool of {@link Worker} threads. Each
+     * worker has its own flow analyzer and generators, since those are not thread safe.
+     */
+    protected static class CompilationBroker {
         protected LinkedList<CodeUnit> unitsToFollow = new LinkedList<CodeUnit>();
         protected LinkedList<CodeUnit> unitsForStage1 = new LinkedList<CodeUnit>();
-        protected LinkedList<CodeUnit> unitsForStage2 = new LinkedList<CodeUnit>();
+        protected PriorityQueue<CodeUnit> unitsForStage2 = new PriorityQueue<CodeUnit>(64, new Comparator<CodeUnit>() {
+            public int compare(CodeUnit unit1, CodeUnit unit2) {
+                // hottest first
+                return unit1.timeToStage2 < unit2.timeToStage2 ? -1 : (unit1.timeToStage2 == unit2.timeToStage2 ? 0 : 1);
+            }
+        });
 
-        protected FlowAnalyzer linkFlowAnalyzer = new FlowAnalyzer();
-        protected Stage1Generator stage1Generator;
-        protected Stage2Generator stage2Generator;
-        protected int resetCount;
+        protected Stage2Generator foregroundStage2Generator;
+        // with instruction counting, stage 2 code must replace stage 1 code at the same point on every run, so
+        // that the interpreter re-executes the same instructions after any misprediction
+        protected final boolean stage2InBackground = Settings.secondStageInBackground && !r3000.isInstructionCountingEnabled();
 
         public CompilationBroker() {
-            if (Settings.enableSpeculativeCompilation) {
-                stage1Generator = new Stage1Generator("c1specgen.out", false);
-            }
-            if (Settings.enableSecondStage) {
-                stage2Generator = new Stage2Generator("c2gen.out", !Settings.secondStageInBackground);
+            if (Settings.enableSecondStage && !stage2InBackground) {
+                foregroundStage2Generator = new Stage2Generator("c2gen.out", true);
             }
         }
 
         public void begin() {
             if (Settings.enableSpeculativeCompilation ||
-                    (Settings.enableSecondStage && Settings.secondStageInBackground)) {
-                log.info("Starting background compilation thread");
-                Thread t = new Thread(this, "Background compilation");
-                t.setPriority(Thread.NORM_PRIORITY - 2); // low priority
-                t.start();
+                    (Settings.enableSecondStage && stage2InBackground)) {
+                log.info("Starting " + Settings.compilerThreads + " background compilation thread(s)");
+                for (int i = 0; i < Settings.compilerThreads; i++) {
+                    Thread t = new Thread(new Worker(i), "Background compilation " + i);
+                    t.setPriority(Thread.NORM_PRIORITY - 2); // low priority
+                    t.start();
+                }
             }
         }
 
@@ -513,132 +1177,181 @@ public class MultiStageCompiler extends SingletonJPSXComponent implements Native
                 // when called from the main compile thread, we
                 // put the function to the head of the list
                 unitsToFollow.addFirst(unit);
-                notify();
             } else {
                 // ones we follow go at end, i.e. the go behind any functions we
                 // have actually executed
                 unitsToFollow.addLast(unit);
             }
+            notify();
         }
 
-        public synchronized void registerForStage2(CodeUnit unit) {
+        public synchronized void registerForSpeculativeStage1(CodeUnit unit) {
+            unitsForStage1.add(unit);
+            notify();
+        }
+
+        public void registerForStage2(CodeUnit unit) {
             if (Settings.enableSecondStage) {
-                if (Settings.secondStageInBackground) {
-                    unitsForStage2.add(unit);
-                    notify();
+                if (stage2InBackground) {
+                    synchronized (this) {
+                        unitsForStage2.add(unit);
+                        notify();
+                    }
                 } else {
+                    // only the execution thread queues units, and it alone uses the foreground generator, so
+                    // the compile needs no lock (and background workers needn't wait for it)
                     //System.out.println( "foreground stage2 compile " + MiscUtil.toHex( unit.getBase(), 8 ) );
-                    JavaClass jclass = unit.getStage2JavaClass(stage2Generator, true);
-                    Class clazz = createClass(unit, jclass);
+                    byte[] classData = unit.getStage2ClassData(foregroundStage2Generator, true);
+                    Class<?> clazz = createStage2Class(unit, foregroundStage2Generator.getClassName(unit), classData);
                     unit.stage2ClassReady(clazz);
                 }
             }
         }
 
-        // todo: since we're compiling in the background it is possible we'll compile
-        // something that it is being overwritten...
-        public void run() {
-            try {
-                while (true) {
-                    CodeUnit linkUnit = null;
-                    CodeUnit c1Unit = null;
-                    CodeUnit c2Unit = null;
-                    int priorResetCount = 0;
-                    synchronized (this) {
-                        priorResetCount = resetCount;
-                        if (unitsToFollow.size() > 0) {
-                            // first priority is to follow any new links
-                            linkUnit = (CodeUnit) unitsToFollow.removeFirst();
-                        } else if (unitsForStage1.size() > 0) {
-                            // second priority is speculative compile
-                            c1Unit = (CodeUnit) unitsForStage1.removeFirst();
-                        } else if (unitsForStage2.size() > 0) {
-                            // third priority is stage 2 compile
-                            c2Unit = (CodeUnit) unitsForStage2.removeFirst();
-                        } else {
+        protected class Worker implements Runnable {
+            protected final FlowAnalyzer linkFlowAnalyzer = new FlowAnalyzer();
+            protected Stage1Generator stage1Generator;
+            protected Stage2Generator stage2Generator;
+
+            public Worker(int index) {
+                String suffix = index == 0 ? ".out" : (index + ".out");
+                if (Settings.enableSpeculativeCompilation) {
+                    stage1Generator = new Stage1Generator("c1specgen" + suffix, false);
+                }
+                if (Settings.enableSecondStage) {
+                    stage2Generator = new Stage2Generator("c2gen" + suffix, false);
+                }
+            }
+
+            // todo: since we're compiling in the background it is possible we'll compile
+            // something that it is being overwritten...
+            public void run() {
+                try {
+                    while (true) {
+                        CodeUnit linkUnit = null;
+                        CodeUnit c1Unit = null;
+                        CodeUnit c2Unit = null;
+                        synchronized (CompilationBroker.this) {
+                            if (unitsForStage2.size() > 0) {
+                                // first priority is stage 2 compile of code we know to be hot
+                                c2Unit = unitsForStage2.remove();
+                            } else if (unitsToFollow.size() > 0) {
+                                // second priority is to follow any new links
+                                linkUnit = unitsToFollow.removeFirst();
+                            } else if (unitsForStage1.size() > 0) {
+                                // third priority is speculative compile
+                                c1Unit = unitsForStage1.removeFirst();
+                            } else {
+                                try {
+                                    CompilationBroker.this.wait();
+                                } catch (InterruptedException e) {
+                                }
+                            }
+                        }
+                        if (linkUnit != null && !linkUnit.linksFollowed) {
+                            //System.out.println("Follow links "+MiscUtil.toHex( linkUnit.getBase(), 8));
+                            followLinks(linkUnit);
+                        } else if (c1Unit != null) {
+                            // simply get the java class
+                            //System.out.println("Spec compile "+MiscUtil.toHex( c1Unit.getBase(), 8));
+                            // speculative compiles mustn't overlap an instruction cache clear, but needn't exclude each other
+                            // todo you'd expect this would affect the stage2 compiler too.
+                            // todo in any case we need better exception handling here anyway, since we may be compiling
+                            // todo R3000 code that is being overwritten prior to an instruction cache clear
+                            compileLock.readLock().lock();
                             try {
-                                wait();
-                            } catch (InterruptedException e) {
+                                if (!c1Unit.isInvalidated()) {
+                                    if (classCache != null) {
+                                        speculativeCompileCached(c1Unit);
+                                    } else {
+                                        c1Unit.getStage1ClassData(stage1Generator, false);
+                                    }
+                                }
+                            } finally {
+                                compileLock.readLock().unlock();
+                            }
+                        } else if (c2Unit != null) {
+                            //System.out.println("background stage2 compile "+MiscUtil.toHex( c2Unit.getBase(), 8));
+                            byte[] classData = c2Unit.getStage2ClassData(stage2Generator, false);
+                            // todo state machine handling here seems flaky
+                            if (classData != null) {
+                                // todo it is still possible for the unit to be invalidated after this check;
+                                // todo this is harmless, since the class is defined by the unit's own (now discarded) class loader
+                                if (!c2Unit.isInvalidated()) {
+                                    // only create the class if the code hasn't been modified in the meanwhile
+                                    Class<?> clazz = createStage2Class(c2Unit, stage2Generator.getClassName(c2Unit), classData);
+                                    c2Unit.stage2ClassReady(clazz);
+                                }
                             }
                         }
                     }
-                    if (linkUnit != null && !linkUnit.linksFollowed) {
-                        //System.out.println("Follow links "+MiscUtil.toHex( linkUnit.getBase(), 8));
-                        followLinks(linkUnit, false);
-                    } else if (c1Unit != null) {
-                        // simply get the java class
-                        //System.out.println("Spec compile "+MiscUtil.toHex( c1Unit.getBase(), 8));
-                        // todo graham 12/21/14, I put this synchronized block in before I went on vacation 2 weeks
-                        // todo and can't remember what it is for - seems like it would have like a comment
-                        // todo anyway the only thing that it shares synchronization with is instruction cache clear
-                        // todo so there must have been some issues with compilation during the clearing of other data
-                        // todo structures. anyways, I'm leaving it as is for now since it is not time critical
-                        // todo you'd expect this would affect the stage2 compiler too.
-                        // todo in any case we need better exception handling here anyway, since we may be compiling
-                        // todo R3000 code that is being overwritten prior to an instruction cache clear
-                        synchronized (MultiStageCompiler.class) {
-                            JavaClass jclass = c1Unit.getStage1JavaClass(stage1Generator, false);
-                        }
-                    } else if (c2Unit != null) {
-                        //System.out.println("background stage2 compile "+MiscUtil.toHex( c2Unit.getBase(), 8));
-                        JavaClass jclass = c2Unit.getStage2JavaClass(stage2Generator, false);
-                        // todo state machine handling here seems flaky
-                        if (jclass != null) {
-                            // todo fix this;
-                            // a) resetCount is not protected;
-                            // b) don't want to delay
-                            //                        synchronized( this) {
-                            if (resetCount == priorResetCount) {
-                                // only create the class if we haven't been reset
-                                Class clazz = createClass(c2Unit, jclass);
-                                c2Unit.stage2ClassReady(clazz);
-                            }
-                            //                        }
+                } catch (Throwable t) {
+                    log.error(Thread.currentThread().getName() + " exits abnormally:", t);
+                    // todo fix this
+                    RuntimeConnections.MACHINE.resolve().close();
+                }
+            }
+
+            /**
+             * With the class cache enabled, the result of a speculative compile goes to the cache (which
+             * is keyed on the code we actually compiled) rather than being held by the unit
+             */
+            protected void speculativeCompileCached(CodeUnit unit) {
+                FlowAnalyzer.FlowInfo flowInfo = unit.getFlowInfo(stage1Generator.analyzer, false);
+                if (flowInfo != null && !unit.stage1Ready()) {
+                    String cacheKey = classCache.getKey(stage1Generator.getClassName(Stage1Generator.CLASS_NAME_PREFIX, unit.getBase()), flowInfo, addressSpace);
+                    if (!classCache.contains(cacheKey)) {
+                        byte[] classData = stage1Generator.createClass(unit, false);
+                        if (classData != null) {
+                            classCache.store(cacheKey, classData);
                         }
                     }
                 }
-            } catch (Throwable t) {
-                log.error(this + " exits abnormally:", t);
-                // todo fix this
-                RuntimeConnections.MACHINE.resolve().close();
-            }
-        }
-
-        public synchronized void reset() {
-            unitsToFollow.clear();
-            unitsForStage1.clear();
-            unitsForStage2.clear();
-            resetCount++;
-        }
-
-        protected void followLinks(CodeUnit unit, boolean executionThread) {
-            FlowAnalyzer.FlowInfo flowInfo = unit.getFlowInfo(linkFlowAnalyzer, executionThread);
-            if (flowInfo != null) {
-                if (!unit.stage1Ready() && flowInfo.instructionCount > Settings.minSizeForSpeculativeCompile) {
-                    //System.out.println(">>>>>>>>>>>> should compile "+MiscUtil.toHex( unit.base, 8));
-                    unitsForStage1.add(unit);
-                }
-                for (FlowAnalyzer.BasicBlock block = flowInfo.root; block != null; block = block.next) {
-                    if (block.type == FlowAnalyzer.BasicBlock.NORMAL) {
-                        for (int offset = block.offset; offset < block.offset + block.size; offset++) {
-                            int address = flowInfo.base + offset * 4;
-                            int ci = addressSpace.internalRead32(address);
-                            CPUInstruction inst = r3000.decodeInstruction(ci);
-                            int iFlags = inst.getFlags();
-                            if (0 != (iFlags & CPUInstruction.FLAG_LINK)) {
-                                if (0 != (iFlags & CPUInstruction.FLAG_IMM_FAR_TARGET)) {
-                                    int target = ((address + 4) & 0xf0000000) | ((ci & 0x3fffff) << 2);
-                                    //                                System.out.println(MiscUtil.toHex( target, 8)+" called from "+MiscUtil.toHex( address, 8));
-                                    if (!AddressSpace.Util.isBIOS(target)) {
-                                        registerLinkedFunctions(getCodeUnit(target), false);
+            }
+
+            protected void followLinks(CodeUnit unit) {
+                FlowAnalyzer.FlowInfo flowInfo = unit.getFlowInfo(linkFlowAnalyzer, false);
+                if (flowInfo != null) {
+                    if (!unit.stage1Ready() && flowInfo.instructionCount > Settings.minSizeForSpeculativeCompile) {
+                        //System.out.println(">>>>>>>>>>>> should compile "+MiscUtil.toHex( unit.base, 8));
+                        registerForSpeculativeStage1(unit);
+                    }
+                    for (FlowAnalyzer.BasicBlock block = flowInfo.root; block != null; block = block.next) {
+                        if (block.type == FlowAnalyzer.BasicBlock.NORMAL) {
+                            for (int offset = block.offset; offset < block.offset + block.size; offset++) {
+                                int address = flowInfo.base + offset * 4;
+                                int ci = addressSpace.internalRead32(address);
+                                CPUInstruction inst = r3000.decodeInstruction(ci);
+                                int iFlags = inst.getFlags();
+                                if (0 != (iFlags & CPUInstruction.FLAG_LINK)) {
+                                    if (0 != (iFlags & CPUInstruction.FLAG_IMM_FAR_TARGET)) {
+                                        int target = ((address + 4) & 0xf0000000) | ((ci & 0x3fffff) << 2);
+                                        //                                System.out.println(MiscUtil.toHex( target, 8)+" called from "+MiscUtil.toHex( address, 8));
+                                        if (!AddressSpace.Util.isBIOS(target)) {
+                                            registerLinkedFunctions(getCodeUnit(target), false);
+                                        }
                                     }
                                 }
                             }
                         }
                     }
+                    // todo should we set this to true for flowInfo == null ?
+                    unit.linksFollowed = true;
+                }
+            }
+        }
+
+        public synchronized void removeInvalidatedUnits() {
+            removeInvalidatedUnits(unitsToFollow);
+            removeInvalidatedUnits(unitsForStage1);
+            removeInvalidatedUnits(unitsForStage2);
+        }
+
+        private void removeInvalidatedUnits(Collection<CodeUnit> units) {
+            for (Iterator<CodeUnit> i = units.iterator(); i.hasNext();) {
+                if (i.next().isInvalidated()) {
+                    i.remove();
                 }
-                // todo should we set this to true for flowInfo == null ?
-                unit.linksFollowed = true;
             }
         }
     }
@@ -796,14 +1509,31 @@ public class MultiStageCompiler extends SingletonJPSXComponent implements Native
         }
     }
 
-    public static final String JUMP_METHOD = "c_jump";
+    public static final String ENTER_NATIVE_METHOD = "c_enter_native";
 
-    public static int c_jump(int address, int returnAddress) {
+    /**
+     * Called before compiled code jumps to or calls other code indirectly (including via a stage 2 inline cache),
+     * so that a runaway chain of jumps eventually collapses back to the interpreter rather than overflowing the
+     * Java stack
+     */
+    public static void c_enter_native(int address) {
         context.nativeDepth++;
         if (context.nativeDepth > Settings.maxNativeDepth) {
             log.debug("STACK OVERFLOW; COLLAPSING...");
             returnToInterpreter(address);
         }
+    }
+
+    public static final String LEAVE_NATIVE_METHOD = "c_leave_native";
+
+    public static void c_leave_native() {
+        context.nativeDepth--;
+    }
+
+    public static final String JUMP_METHOD = "c_jump";
+
+    public static int c_jump(int address, int returnAddress) {
+        c_enter_native(address);
         //if (Debug.traceExecutionFlow) {
         //    System.out.println("Indirect compiled jump "+MiscUtil.toHex( address,8)+" with retaddr "+MiscUtil.toHex( returnAddress, 8));
         //}
@@ -824,11 +1554,7 @@ public class MultiStageCompiler extends SingletonJPSXComponent implements Native
     public static final String CALL_METHOD = "c_call";
 
     public static void c_call(int address, int returnAddress) {
-        context.nativeDepth++;
-        if (context.nativeDepth > Settings.maxNativeDepth) {
-            log.debug("STACK OVERFLOW; COLLAPSING...");
-            returnToInterpreter(address);
-        }
+        c_enter_native(address);
         //if (Debug.traceExecutionFlow) {
         //    System.out.println("Indirect compiled jump "+MiscUtil.toHex( address,8)+" with retaddr "+MiscUtil.toHex( returnAddress, 8));
         //}
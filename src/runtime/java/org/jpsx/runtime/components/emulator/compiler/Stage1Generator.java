@@ -20,7 +20,6 @@ package org.jpsx.runtime.components.emulator.compiler;
 
 import org.apache.bcel.Constants;
 import org.apache.bcel.classfile.ConstantPool;
-import org.apache.bcel.classfile.JavaClass;
 import org.apache.bcel.classfile.Method;
 import org.apache.bcel.generic.*;
 import org.apache.log4j.Logger;
@@ -36,12 +35,15 @@ import org.jpsx.runtime.util.ClassUtil;
 import org.jpsx.runtime.util.MiscUtil;
 import org.jpsx.runtime.util.Timing;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Set;
 
 // todo background generators need to save the state as atomically as possible (copying the instructions basically)
@@ -71,6 +73,13 @@ public class Stage1Generator implements CompilationContext {
     private final HashMap extraInstructionLists = new HashMap();
     private final InstructionHandle[] endHandles = MultiStageCompiler.Settings.printCode ? (new InstructionHandle[MultiStageCompiler.Settings.maxR3000InstructionsPerUnit]) : null;
     private final InstructionList printCodeIL = new InstructionList();
+    // reused to serialize classes, rather than growing a new buffer for each one
+    private final ByteArrayOutputStream classBytes = new ByteArrayOutputStream(CLASS_BYTES_INITIAL_SIZE);
+    private final DataOutputStream classBytesOut = new DataOutputStream(classBytes);
+    // null to serialize classes with BCEL
+    private ASMClassWriter classWriter;
+    // with the ASM class writer, the methods of the class being generated, whose code is only serialized at the end
+    private final List<MethodGen> contextMethods = CollectionsFactory.newArrayList();
 
     private String codeFilename;
 
@@ -83,9 +92,21 @@ public class Stage1Generator implements CompilationContext {
      */
     protected final boolean intendedForExecutionThread;
 
+    /**
+     * Whether the generated code counts the instructions it executes; this is normally the case when the R3000 has
+     * instruction counting enabled, but the code for a BIOS bundle is generated for whichever machine is to load it
+     */
+    protected final boolean instructionCounting;
+
     public Stage1Generator(String codeFilename, boolean intendedForExecutionThread) {
+        this(codeFilename, intendedForExecutionThread, CoreComponentConnections.R3000.resolve().isInstructionCountingEnabled());
+    }
+
+    public Stage1Generator(String codeFilename, boolean intendedForExecutionThread, boolean instructionCounting) {
         this.codeFilename = codeFilename;
         this.intendedForExecutionThread = intendedForExecutionThread;
+        this.instructionCounting = instructionCounting;
+        setASMClassWriter(MultiStageCompiler.Settings.asmClassWriter);
         if (MultiStageCompiler.Settings.printCode) {
             try {
                 codeWriter = new PrintStream(new FileOutputStream(codeFilename));
@@ -101,6 +122,8 @@ public class Stage1Generator implements CompilationContext {
     protected final String HW_CLASS = addressSpace.getHardwareStaticInterfaceClassName();
 
     protected static final String EXECUTABLE_CLASS = Executable.class.getName();
+    private static final int CLASS_BYTES_INITIAL_SIZE = 64 * 1024;
+    protected static final String EXECUTABLE_SIGNATURE = ClassUtil.signatureOfClass(EXECUTABLE_CLASS);
     protected static final String CODEUNIT_CLASS = CodeUnit.class.getName();
     protected static final String CODEUNIT_SIGNATURE = ClassUtil.signatureOfClass(CODEUNIT_CLASS);
 
@@ -114,6 +137,7 @@ public class Stage1Generator implements CompilationContext {
 
     protected static final int ALL_REGS = 0xffffffff;
     protected static final int WRITABLE_REGS = 0xfffffffe;
+    protected static final int ALL_COPROCESSOR_STATE = 0xffffffff;
 
     protected String getClassNamePrefix(CodeUnit unit) {
         return CLASS_NAME_PREFIX;
@@ -140,9 +164,12 @@ public class Stage1Generator implements CompilationContext {
         il.append(new GETFIELD(contextCP.addFieldref(CODEUNIT_CLASS, "useStage2", "Z")));
         IFEQ ifeq = new IFEQ(null);
         il.append(ifeq);
+        // stage 2 code is called via the unit rather than by name, so that replaced versions can be unloaded
+        il.append(new GETSTATIC(contextCP.addFieldref(contextClassGen.getClassName(), "unit", CODEUNIT_SIGNATURE)));
+        il.append(new GETFIELD(contextCP.addFieldref(CODEUNIT_CLASS, "stage2", EXECUTABLE_SIGNATURE)));
         il.append(new ILOAD(0));
         il.append(new ILOAD(1));
-        il.append(new INVOKESTATIC(contextCP.addMethodref(getClassName(Stage2Generator.CLASS_NAME_PREFIX, contextBase), STATIC_METHOD, "(IZ)I")));
+        il.append(new INVOKEINTERFACE(contextCP.addInterfaceMethodref(EXECUTABLE_CLASS, NORMAL_METHOD, "(IZ)I"), 3));
         il.append(new IRETURN());
         ifeq.setTarget(il.append(new GETSTATIC(contextCP.addFieldref(contextClassGen.getClassName(), "unit", CODEUNIT_SIGNATURE))));
         il.append(new GETFIELD(contextCP.addFieldref(CODEUNIT_CLASS, "count", "I")));
@@ -164,6 +191,26 @@ public class Stage1Generator implements CompilationContext {
 
     protected void emitBlockHeader(InstructionList il) {
         contextDelaySlotEmitted = false;
+        if (instructionCounting && contextBlock.type == FlowAnalyzer.BasicBlock.NORMAL && contextBlock.size != 0) {
+            int count = contextBlock.size;
+            if (contextBlock.branchOut != null && !contextBlock.includesDelaySlot) {
+                // the delay slot is emitted by the branch, and its own block is skipped
+                count++;
+            }
+            emitInstructionCount(il, count);
+        }
+    }
+
+    /**
+     * Add the specified number of instructions to the R3000's instruction count; the whole basic block is charged
+     * up front, which is cheaper than doing so at each of its exits
+     */
+    protected void emitInstructionCount(InstructionList il, int count) {
+        int fieldRef = contextCP.addFieldref(R3000_CLASS, "instructionCount", "J");
+        il.append(new GETSTATIC(fieldRef));
+        il.append(new PUSH(contextCP, (long) count));
+        il.append(new LADD());
+        il.append(new PUTSTATIC(fieldRef));
     }
 
     protected void emitBlockFooter(InstructionList il) {
@@ -238,10 +285,53 @@ public class Stage1Generator implements CompilationContext {
         }
     }
 
+    /**
+     * Choose whether classes are serialized with ASM or with BCEL; printing code relies on the instruction
+     * positions which only BCEL sets, so always uses BCEL
+     */
+    public void setASMClassWriter(boolean asm) {
+        classWriter = asm && !MultiStageCompiler.Settings.printCode ? new ASMClassWriter() : null;
+    }
+
+    /**
+     * Serialize the class being generated
+     */
+    protected byte[] getClassBytes() {
+        long t0 = 0;
+        if (MultiStageCompiler.Settings.statistics) {
+            t0 = Timing.nanos();
+        }
+        byte[] rc;
+        if (classWriter != null) {
+            rc = classWriter.write(contextClassGen, contextMethods);
+            for (MethodGen mg : contextMethods) {
+                mg.getInstructionList().dispose();
+            }
+            contextMethods.clear();
+        } else {
+            classBytes.reset();
+            try {
+                contextClassGen.getJavaClass().dump(classBytesOut);
+                classBytesOut.flush();
+            } catch (IOException e) {
+                throw new IllegalStateException("could not serialize " + contextClassGen.getClassName(), e);
+            }
+            rc = classBytes.toByteArray();
+        }
+        if (MultiStageCompiler.Settings.statistics) {
+            MultiStageCompiler.addSerializationStatistics(rc.length, Timing.nanos() - t0);
+        }
+        return rc;
+    }
+
     public String getClassName(String prefix, int base) {
         return prefix + MiscUtil.toHex(base, 8);
     }
 
+    public String getClassName(CodeUnit unit) {
+        return getClassName(getClassNamePrefix(unit), unit.getBase());
+    }
+
     protected void emitICodeUnitMethods() {
         contextClassGen.addInterface(EXECUTABLE_CLASS);
         InstructionList il = new InstructionList();
@@ -253,8 +343,7 @@ public class Stage1Generator implements CompilationContext {
         il.append(new IRETURN());
         mg.setMaxLocals();
         mg.setMaxStack();
-        contextClassGen.addMethod(mg.getMethod());
-        il.dispose();
+        addFinishedMethod(mg);
     }
 
     protected void emitMethods(FlowAnalyzer.FlowInfo flowInfo) {
@@ -404,9 +493,17 @@ public class Stage1Generator implements CompilationContext {
         codeWriter.println("                                                                   " + prefix + " " + prefix1 + " " + MiscUtil.toHex(address, 8) + ": " + MiscUtil.toHex(ci, 8) + " " + dis + suffix);
     }
 
+    protected int getMaxLocals() {
+        return LOCAL_LAST;
+    }
+
     protected void addMethod(MethodGen mg) {
-        mg.setMaxLocals(LOCAL_LAST);
+        mg.setMaxLocals(getMaxLocals());
         mg.setMaxStack();
+        if (classWriter != null) {
+            contextMethods.add(mg);
+            return;
+        }
         Method m = mg.getMethod();
         if (m.getCode().getCode().length > 8000) {
             if (log.isDebugEnabled()) {
@@ -421,20 +518,44 @@ public class Stage1Generator implements CompilationContext {
         }
     }
 
+    /**
+     * Add a method whose max locals and stack are already set
+     */
+    protected void addFinishedMethod(MethodGen mg) {
+        if (classWriter != null) {
+            contextMethods.add(mg);
+        } else {
+            contextClassGen.addMethod(mg.getMethod());
+            mg.getInstructionList().dispose();
+        }
+    }
+
     protected void emitConstructor() {
-        contextClassGen.addEmptyConstructor(Constants.ACC_PUBLIC);
+        if (classWriter == null) {
+            contextClassGen.addEmptyConstructor(Constants.ACC_PUBLIC);
+            return;
+        }
+        // as ClassGen.addEmptyConstructor, but left as a MethodGen so the class writer needn't convert it back
+        InstructionList il = new InstructionList();
+        il.append(InstructionConstants.THIS);
+        il.append(new INVOKESPECIAL(contextCP.addMethodref(contextClassGen.getSuperclassName(), "<init>", "()V")));
+        il.append(InstructionConstants.RETURN);
+        MethodGen mg = new MethodGen(Constants.ACC_PUBLIC, Type.VOID, Type.NO_ARGS, null, "<init>", contextClassGen.getClassName(), il, contextCP);
+        mg.setMaxStack(1);
+        addFinishedMethod(mg);
     }
 
-    // PERF:addr:blocks:instructions:flow:initBlock:emitMethods:getJavaClass:createClass
+    // PERF:addr:blocks:instructions:flow:initBlock:emitMethods:serialize
 
-    // can return null if not on execution thread for garbage looking code
-    public JavaClass createJavaClass(CodeUnit unit, boolean executionThread) {
-        return createJavaClass(unit, getClassName(getClassNamePrefix(unit), unit.getBase()), executionThread);
+    // returns the class file bytes; can return null if not on execution thread for garbage looking code
+    public byte[] createClass(CodeUnit unit, boolean executionThread) {
+        return createClass(unit, getClassName(unit), executionThread);
     }
 
-    // can return null if not on execution thread for garbage looking code
-    public JavaClass createJavaClass(CodeUnit unit, String classname, boolean executionThread) {
+    // returns the class file bytes; can return null if not on execution thread for garbage looking code
+    public byte[] createClass(CodeUnit unit, String classname, boolean executionThread) {
         assert executionThread == this.intendedForExecutionThread;
+        contextMethods.clear();
         contextUnit = unit;
         contextBase = unit.getBase();
         contextClassGen = new ClassGen(classname, "java.lang.Object",
@@ -482,14 +603,14 @@ public class Stage1Generator implements CompilationContext {
             perf.append(t1);
             t0 = Timing.nanos();
         }
-        JavaClass jclass = contextClassGen.getJavaClass();
+        byte[] classData = getClassBytes();
         if (MultiStageCompiler.Settings.statistics) {
             long t1 = Timing.nanos() - t0;
             perf.append(':');
             perf.append(t1);
         }
         if (MultiStageCompiler.Settings.printCode && shouldPrintCode()) {
-            ConstantPool cp = jclass.getConstantPool();
+            ConstantPool cp = contextCP.getConstantPool();
             codeWriter.println(getClassNamePrefix(unit) + " unit at " + MiscUtil.toHex(contextBase, 8));
             InstructionHandle h = printCodeIL.getStart();
             InstructionHandle hLast = null;
@@ -533,11 +654,34 @@ public class Stage1Generator implements CompilationContext {
 
         if (MultiStageCompiler.Settings.saveClasses) {
             try {
-                jclass.dump(codeFilename + classname + ".class");
+                FileOutputStream out = new FileOutputStream(codeFilename + classname + ".class");
+                try {
+                    out.write(classData);
+                } finally {
+                    out.close();
+                }
             } catch (IOException ioe) {
             }
         }
-        return jclass;
+        return classData;
+    }
+
+    /**
+     * Set the address space tags that generating the class would have set, for use when
+     * the class bytes are instead loaded from the {@link ClassCache}
+     */
+    public void tagDelaySlots(FlowAnalyzer.FlowInfo flowInfo) {
+        for (FlowAnalyzer.BasicBlock block = flowInfo.root; block != null; block = block.next) {
+            if (block.type == FlowAnalyzer.BasicBlock.NORMAL) {
+                for (int offset = block.offset; offset < block.offset + block.size; offset++) {
+                    int address = flowInfo.base + offset * 4;
+                    int ci = addressSpace.internalRead32(address);
+                    if (0 != (r3000.decodeInstruction(ci).getFlags() & CPUInstruction.FLAG_BRANCH)) {
+                        addressSpace.orTag(address + 4, MultiStageCompiler.TAG_DELAY_SLOT);
+                    }
+                }
+            }
+        }
     }
 
     protected int getSizeWithoutBranch(FlowAnalyzer.BasicBlock b) {
@@ -671,6 +815,16 @@ public class Stage1Generator implements CompilationContext {
             il.append(new PUSH(contextCP, contextAddress));
             il.append(new INVOKESTATIC(contextCP.addMethodref(COMPILER_CLASS, MultiStageCompiler.INTERRUPTED_METHOD, "(I)V")));
             ieq.setTarget(il.append(new NOP()));
+            if (instructionCounting) {
+                il.append(new GETSTATIC(contextCP.addFieldref(R3000_CLASS, "instructionCount", "J")));
+                il.append(new GETSTATIC(contextCP.addFieldref(R3000_CLASS, "instructionDeadline", "J")));
+                il.append(new LCMP());
+                IFLT ilt = new IFLT(null);
+                il.append(ilt);
+                il.append(new PUSH(contextCP, contextAddress));
+                il.append(new INVOKESTATIC(contextCP.addMethodref(COMPILER_CLASS, MultiStageCompiler.INTERRUPTED_METHOD, "(I)V")));
+                ilt.setTarget(il.append(new NOP()));
+            }
         }
     }
 
@@ -790,12 +944,32 @@ public class Stage1Generator implements CompilationContext {
 
     public void emitJump(InstructionList il, int address) {
         il.append(new PUSH(contextCP, address));
-        emitJump(il);
+        emitJump(il, false);
     }
 
     public void emitJump(InstructionList il) {
+        emitJump(il, true);
+    }
+
+    private void emitJump(InstructionList il, boolean indirect) {
         // this is decompilable (uses local var target)
         il.append(new ISTORE(LOCAL_PRIVATE_TEMP));
+        IF_ICMPEQ firstIcmpeq = null;
+        IFNE firstIne = null;
+        if (indirect) {
+            // the target of the jr itself is dispatched here; the loop below only follows the addresses returned by c_jump
+            il.append(new ILOAD(LOCAL_PRIVATE_TEMP));
+            il.append(new ILOAD(LOCAL_RETADDR));
+            firstIcmpeq = new IF_ICMPEQ(null);
+            il.append(firstIcmpeq);
+            il.append(new ILOAD(LOCAL_JUMP));
+            firstIne = new IFNE(null);
+            il.append(firstIne);
+            il.append(new ILOAD(LOCAL_PRIVATE_TEMP));
+            il.append(new ILOAD(LOCAL_RETADDR));
+            emitIndirectJump(il);
+            il.append(new ISTORE(LOCAL_PRIVATE_TEMP));
+        }
         InstructionHandle loop = il.append(new ILOAD(LOCAL_PRIVATE_TEMP));
         il.append(new ILOAD(LOCAL_RETADDR));
         if (R3000Impl.Settings.traceExecutionFlow) {
@@ -811,6 +985,10 @@ public class Stage1Generator implements CompilationContext {
         il.append(ieq);
 
         icmpeq.setTarget(il.append(new ILOAD(LOCAL_PRIVATE_TEMP)));
+        if (indirect) {
+            firstIcmpeq.setTarget(icmpeq.getTarget());
+            firstIne.setTarget(icmpeq.getTarget());
+        }
         if (R3000Impl.Settings.traceExecutionFlow) {
             il.append(new PUSH(contextCP, contextBase));
             il.append(new INVOKESTATIC(contextCP.addMethodref(COMPILER_CLASS, "traceLeaveUnit", "(I)V")));
@@ -823,6 +1001,37 @@ public class Stage1Generator implements CompilationContext {
         il.append(new GOTO(loop));
     }
 
+    /**
+     * Used for a JR whose target isn't known at compile time; the target (also in LOCAL_PRIVATE_TEMP) and
+     * return address are at the top of the JVM stack, and are replaced by the address to continue at.
+     * <p/>
+     * The stage 1 code records the target, so that stage 2 code can be built with an inline cache.
+     */
+    protected void emitIndirectJump(InstructionList il) {
+        il.append(new ILOAD(LOCAL_PRIVATE_TEMP));
+        emitRecordIndirectTarget(il);
+        il.append(new INVOKESTATIC(contextCP.addMethodref(COMPILER_CLASS, MultiStageCompiler.JUMP_METHOD, "(II)I")));
+    }
+
+    /**
+     * Record the target at the top of the JVM stack (which is consumed) for the current jalr/jr, unless the
+     * unit has stopped recording targets
+     */
+    private void emitRecordIndirectTarget(InstructionList il) {
+        il.append(new GETSTATIC(contextCP.addFieldref(contextClassGen.getClassName(), "unit", CODEUNIT_SIGNATURE)));
+        il.append(new DUP());
+        il.append(new GETFIELD(contextCP.addFieldref(CODEUNIT_CLASS, "recordIndirectTargets", "Z")));
+        IFEQ ieq = new IFEQ(null);
+        il.append(ieq);
+        il.append(new SWAP());
+        il.append(new PUSH(contextCP, contextOffset));
+        il.append(new INVOKEVIRTUAL(contextCP.addMethodref(CODEUNIT_CLASS, "recordIndirectTarget", "(II)V")));
+        GOTO done = new GOTO(null);
+        il.append(done);
+        ieq.setTarget(il.append(new POP2()));
+        done.setTarget(il.append(new NOP()));
+    }
+
     public InstructionHandle getBranchTarget(int address) {
         if (!intendedForExecutionThread && contextBlock.branchOut == null) {
             contextUnitIsGarbage = true;
@@ -883,6 +1092,9 @@ public class Stage1Generator implements CompilationContext {
 			il.append( new INVOKESTATIC( contextCP.addMethodref( COMPILER_CLASS, MultiStageCompiler.INTERPRETER_TO_COMPILER_METHOD, "()V" ) ) );
 		}*/
         il.append(new INVOKESTATIC(contextCP.addMethodref(ADDRESS_SPACE_CLASS, "_tagClearPollCounters", "()V")));
+        // record the target, so that stage 2 code can be built with an inline cache
+        il.append(new DUP());
+        emitRecordIndirectTarget(il);
         il.append(new PUSH(contextCP, retAddr));
         il.append(new INVOKESTATIC(contextCP.addMethodref(COMPILER_CLASS, MultiStageCompiler.CALL_METHOD, "(II)V")));
     }
@@ -903,8 +1115,10 @@ public class Stage1Generator implements CompilationContext {
             il.append(new PUSH(contextCP, rr.offset));
             il.append(new IALOAD());
         } else if (rr.tag == AddressSpace.TAG_HW) {
-            il.append(new PUSH(contextCP, address));
-            il.append(new INVOKESTATIC(contextCP.addMethodref(HW_CLASS, "read8", "(I)I")));
+            if (!addressSpace.emitHardwareRead(contextCP, il, address, 1)) {
+                il.append(new PUSH(contextCP, address));
+                il.append(new INVOKESTATIC(contextCP.addMethodref(HW_CLASS, "read8", "(I)I")));
+            }
             return;
         } else {
             il.append(new PUSH(contextCP, address));
@@ -980,8 +1194,10 @@ public class Stage1Generator implements CompilationContext {
                 il.append(new PUSH(contextCP, rr.offset));
                 il.append(new IALOAD());
             } else if (rr.tag == AddressSpace.TAG_HW) {
-                il.append(new PUSH(contextCP, address));
-                il.append(new INVOKESTATIC(contextCP.addMethodref(HW_CLASS, "read16", "(I)I")));
+                if (!addressSpace.emitHardwareRead(contextCP, il, address, 2)) {
+                    il.append(new PUSH(contextCP, address));
+                    il.append(new INVOKESTATIC(contextCP.addMethodref(HW_CLASS, "read16", "(I)I")));
+                }
                 return;
             } else {
                 il.append(new PUSH(contextCP, address));
@@ -1044,8 +1260,10 @@ public class Stage1Generator implements CompilationContext {
                 il.append(new PUSH(contextCP, rr.offset));
                 il.append(new IALOAD());
             } else if (rr.tag == AddressSpace.TAG_HW) {
-                il.append(new PUSH(contextCP, address));
-                il.append(new INVOKESTATIC(contextCP.addMethodref(HW_CLASS, "_read32", "(I)I")));
+                if (!addressSpace.emitHardwareRead(contextCP, il, address, 4)) {
+                    il.append(new PUSH(contextCP, address));
+                    il.append(new INVOKESTATIC(contextCP.addMethodref(HW_CLASS, "read32", "(I)I")));
+                }
             } else {
                 il.append(new PUSH(contextCP, address));
                 il.append(new INVOKESTATIC(contextCP.addMethodref(ADDRESS_SPACE_CLASS, "_read32", "(I)I")));
@@ -1199,6 +1417,7 @@ public class Stage1Generator implements CompilationContext {
         if (0 == (address & 3)) {
             addressSpace.resolve(address, rr);
             if (rr.tag == AddressSpace.TAG_RAM) {
+                emitRAMPageWriteCheck(il, rr.offset >> (AddressSpace.RAM_PAGE_SHIFT - 2));
                 il.append(new GETSTATIC(contextCP.addFieldref(ADDRESS_SPACE_CLASS, "ramD", "[I")));
                 il.append(new PUSH(contextCP, rr.offset));
                 il.append(il2);
@@ -1215,9 +1434,11 @@ public class Stage1Generator implements CompilationContext {
                     il.append( il2);
                     il.append( new IASTORE());*/
             } else if (rr.tag == AddressSpace.TAG_HW) {
-                il.append(new PUSH(contextCP, address));
-                il.append(il2);
-                il.append(new INVOKESTATIC(contextCP.addMethodref(HW_CLASS, "write32", "(II)V")));
+                if (!addressSpace.emitHardwareWrite(contextCP, il, address, il2)) {
+                    il.append(new PUSH(contextCP, address));
+                    il.append(il2);
+                    il.append(new INVOKESTATIC(contextCP.addMethodref(HW_CLASS, "write32", "(II)V")));
+                }
             } else {
                 il.append(new PUSH(contextCP, address));
                 il.append(il2);
@@ -1251,6 +1472,21 @@ public class Stage1Generator implements CompilationContext {
         il.append(new INVOKESTATIC(contextCP.addMethodref(ADDRESS_SPACE_CLASS, "_write32", "(II)V")));
     }
 
+    /**
+     * Emit the check which must precede a direct store to RAM, so that the address space sees the
+     * first write to a watched page
+     */
+    protected void emitRAMPageWriteCheck(InstructionList il, int page) {
+        il.append(new GETSTATIC(contextCP.addFieldref(ADDRESS_SPACE_CLASS, "ramPagesWatched", "[B")));
+        il.append(new PUSH(contextCP, page));
+        il.append(new BALOAD());
+        IFEQ skip = new IFEQ(null);
+        il.append(skip);
+        il.append(new PUSH(contextCP, page));
+        il.append(new INVOKESTATIC(contextCP.addMethodref(ADDRESS_SPACE_CLASS, "_ramPageWritten", "(I)V")));
+        skip.setTarget(il.append(new NOP()));
+    }
+
     public void emitDelaySlot(InstructionList il) {
         contextOffset++;
         contextIsDelaySlot = true;
@@ -1273,5 +1509,10 @@ public class Stage1Generator implements CompilationContext {
         return rc;
     }
 
+    public int getLiveCoprocessorState() {
+        // no analysis is done in stage 1, so anything may be read
+        return ALL_COPROCESSOR_STATE;
+    }
+
     // ----
 }
\ No newline at end of file
@@ -23,10 +23,14 @@ import org.apache.bcel.generic.*;
 import org.jpsx.api.components.core.addressspace.AddressSpace;
 import org.jpsx.api.components.core.cpu.CPUInstruction;
 import org.jpsx.api.components.core.cpu.R3000;
+import org.jpsx.bootstrap.util.CollectionsFactory;
 import org.jpsx.runtime.components.core.CoreComponentConnections;
 import org.jpsx.runtime.components.core.R3000Impl;
+import org.jpsx.runtime.components.hardware.r3000.R3000InstructionSet;
+import org.jpsx.runtime.util.ClassUtil;
 import org.jpsx.runtime.util.MiscUtil;
 
+import java.util.List;
 import java.util.Stack;
 
 // todo is this true now?
@@ -49,6 +53,8 @@ import java.util.Stack;
 // point, and write all of those back
 public class Stage2Generator extends Stage1Generator {
     protected static String CLASS_NAME_PREFIX = "_2";
+    private static final String MISPREDICT_EXCEPTION_CLASS = MemoryMispredictException.class.getName();
+    private static final String MISPREDICT_EXCEPTION_SIGNATURE = ClassUtil.signatureOfClass(MISPREDICT_EXCEPTION_CLASS);
 
     private static final int READ_TAG_MASK = (AddressSpace.TAG_RAM |
             AddressSpace.TAG_SCRATCH |
@@ -56,6 +62,16 @@ public class Stage2Generator extends Stage1Generator {
             AddressSpace.TAG_BIOS |
             AddressSpace.TAG_PAR |
             AddressSpace.TAG_POLL) & 0xff;
+    // more than one region, so that no prediction is made
+    private static final int GENERIC_TAG = AddressSpace.TAG_RAM | AddressSpace.TAG_HW;
+    private static final int JR_RA = 0x03e00008;
+    // an inlined instruction must not leave compiled code, other than via a memory misprediction
+    private static final int NON_INLINABLE_FLAGS = CPUInstruction.FLAG_BRANCH |
+            CPUInstruction.FLAG_LINK |
+            CPUInstruction.FLAG_REFERENCES_PC |
+            CPUInstruction.FLAG_MAY_RESTORE_INTERPRETER_STATE |
+            CPUInstruction.FLAG_REQUIRES_COMPLETE_INTERPRETER_STATE |
+            CPUInstruction.FLAG_INVALID;
 
     private int getRegsOffset = -1;
     private int[] regsAtOffset = new int[32];
@@ -67,18 +83,22 @@ public class Stage2Generator extends Stage1Generator {
         super(codeFilename, intendedForExecutionThread);
     }
 
-    protected String getClassNamePrefix(CodeUnit unit) {
-        return "_" + (2 + unit.stage2Version);
+    public Stage2Generator(String codeFilename, boolean intendedForExecutionThread, boolean instructionCounting) {
+        super(codeFilename, intendedForExecutionThread, instructionCounting);
     }
 
-    protected String getNextClassNamePrefix(CodeUnit unit) {
-        return "_" + (3 + unit.stage2Version);
+    protected String getClassNamePrefix(CodeUnit unit) {
+        // each version is defined by a class loader of its own, so they can all share a name
+        return CLASS_NAME_PREFIX;
     }
 
     protected void emitBreakoutCheck(InstructionList il) {
         // write back regs before the breakout check
         writeBackRegs(il, ALL_REGS);
+        flushRegLocals(il);
         super.emitBreakoutCheck(il);
+        // the interrupt handling may have run other code
+        forgetRegLocals(ALL_REGS);
     }
 
     protected void emitMethodHeader(InstructionList il) {
@@ -91,7 +111,8 @@ public class Stage2Generator extends Stage1Generator {
         il.append(ifeq);
         il.append(new ILOAD(0));
         il.append(new ILOAD(1));
-        il.append(new INVOKESTATIC(contextCP.addMethodref(getClassName(getNextClassNamePrefix(contextUnit), contextBase), STATIC_METHOD, "(IZ)I")));
+        // this version has been replaced; the stage 1 code knows what to run instead
+        il.append(new INVOKESTATIC(contextCP.addMethodref(getClassName(Stage1Generator.CLASS_NAME_PREFIX, contextBase), STATIC_METHOD, "(IZ)I")));
         il.append(new IRETURN());
         ifeq.setTarget(il.append(new NOP()));
         if (R3000Impl.Settings.traceExecutionFlow) {
@@ -114,6 +135,10 @@ public class Stage2Generator extends Stage1Generator {
      * output can be determined by simulation
      */
     protected boolean[] simulated = new boolean[MultiStageCompiler.Settings.maxR3000InstructionsPerUnit];
+    /**
+     * Coprocessor result state which may be read after each instruction
+     */
+    protected int[] liveCoprocessorState = new int[MultiStageCompiler.Settings.maxR3000InstructionsPerUnit];
     protected Stack<BlockInfo> dirtyBlocks = new Stack<BlockInfo>();
     protected int visitCount;
 
@@ -128,8 +153,28 @@ public class Stage2Generator extends Stage1Generator {
 
         int ICR;
         int OCR;
+        /**
+         * coprocessor result state which may be read on entry to the block
+         */
+        int liveCoprocessorState;
         int[] incomingRegValues = new int[32];
         int[] outgoingRegValues = new int[32];
+        /**
+         * blocks whose emitted code branches to, or flows into, the start of this block
+         */
+        List<BlockInfo> branchingIn = CollectionsFactory.newArrayList();
+        List<BlockInfo> flowingIn = CollectionsFactory.newArrayList();
+        /**
+         * true if the block may be entered other than from a block in the unit, e.g. at the start of the unit
+         */
+        boolean externalEntry;
+        /**
+         * true once the block's code has been emitted, at which point the register locals it leaves valid
+         * when branching and when flowing out are known
+         */
+        boolean emitted;
+        int branchRegLocals;
+        int flowRegLocals;
 
         public String toString() {
             return "visited " + visited + " dirty " + dirty + " ICR " + MiscUtil.toHex(ICR, 8) + " OCR " + MiscUtil.toHex(OCR, 8) + " " + bb;
@@ -165,6 +210,26 @@ public class Stage2Generator extends Stage1Generator {
             assert 1 == (ICR & 1);
         }
 
+        /**
+         * @return the registers held in locals on every path into the block; back edges (whose target is
+         *         emitted first) pass through a breakout check, which forgets the locals anyway
+         */
+        public int getRegLocalsOnEntry() {
+            if (externalEntry || (branchingIn.isEmpty() && flowingIn.isEmpty())) {
+                return 0;
+            }
+            int regs = ALL_REGS;
+            for (BlockInfo info : branchingIn) {
+                if (!info.emitted) return 0;
+                regs &= info.branchRegLocals;
+            }
+            for (BlockInfo info : flowingIn) {
+                if (!info.emitted) return 0;
+                regs &= info.flowRegLocals;
+            }
+            return regs;
+        }
+
         public void visit() {
             if (dirty) {
                 if (debugCR) {
@@ -303,6 +368,12 @@ public class Stage2Generator extends Stage1Generator {
         while (!dirtyBlocks.isEmpty()) {
             ((BlockInfo) dirtyBlocks.pop()).visit();
         }
+        if (MultiStageCompiler.Settings.stage2CoprocessorLiveness) {
+            analyzeCoprocessorLiveness(flowInfo);
+        }
+        if (MultiStageCompiler.Settings.stage2RegisterLocals) {
+            findRegLocalPredecessors(flowInfo);
+        }
         if (MultiStageCompiler.Settings.printCode && shouldPrintCode()) {
             if (debugCR) {
                 codeWriter.println("CR took " + visitCount + " iterations for " + flowInfo.blockCount + " blocks: " + (visitCount / (double) flowInfo.blockCount));
@@ -323,6 +394,106 @@ public class Stage2Generator extends Stage1Generator {
         }
     }
 
+    /**
+     * Record for each block the blocks whose emitted code continues into it, so that registers held in locals
+     * at the end of all of them may stay in locals. Note a block whose branch doesn't include its delay slot
+     * skips the delay slot's own block when it flows out
+     */
+    protected void findRegLocalPredecessors(FlowAnalyzer.FlowInfo flowInfo) {
+        blockInfo[flowInfo.root.offset].externalEntry = true;
+        for (FlowAnalyzer.BasicBlock block = flowInfo.root; block != null; block = block.next) {
+            if (block.type != FlowAnalyzer.BasicBlock.NORMAL) {
+                if (block.flowOut != null && block.flowOut.type == FlowAnalyzer.BasicBlock.NORMAL) {
+                    blockInfo[block.flowOut.offset].externalEntry = true;
+                }
+                continue;
+            }
+            BlockInfo info = blockInfo[block.offset];
+            if (block.branchOut != null && block.branchOut.type == FlowAnalyzer.BasicBlock.NORMAL) {
+                blockInfo[block.branchOut.offset].branchingIn.add(info);
+            }
+            FlowAnalyzer.BasicBlock flowOut = block.flowOut;
+            if (flowOut != null && block.branchOut != null && !block.includesDelaySlot) {
+                flowOut = flowOut.flowOut;
+            }
+            if (flowOut != null && flowOut.type == FlowAnalyzer.BasicBlock.NORMAL) {
+                blockInfo[flowOut.offset].flowingIn.add(info);
+            }
+        }
+    }
+
+    /**
+     * Backwards liveness analysis of coprocessor result state (e.g. the GTE FLAG register) over the unit, so that
+     * coprocessor instructions can avoid computing results which are always overwritten before being read.
+     * <p/>
+     * Anything which leaves the unit (a call, a return, a jump elsewhere, or an exception) is assumed to read
+     * all state. Interrupts are not considered; a handler may save and restore state which we didn't bother to
+     * compute, but has no reason to look at it.
+     */
+    protected void analyzeCoprocessorLiveness(FlowAnalyzer.FlowInfo flowInfo) {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (FlowAnalyzer.BasicBlock block = flowInfo.root; block != null; block = block.next) {
+                if (block.type == FlowAnalyzer.BasicBlock.NORMAL) {
+                    int live;
+                    if (block.flowOut == null && block.branchOut == null) {
+                        // e.g. jr
+                        live = ALL_COPROCESSOR_STATE;
+                    } else {
+                        live = getLiveCoprocessorStateOnEntry(block.flowOut) | getLiveCoprocessorStateOnEntry(block.branchOut);
+                    }
+                    for (int offset = block.offset + block.size - 1; offset >= block.offset; offset--) {
+                        if (offset > block.offset && 0 != (flags[offset - 1] & CPUInstruction.FLAG_BRANCH)) {
+                            // the branch takes effect after its delay slot
+                            live = updateLiveCoprocessorState(offset - 1, live);
+                            live = updateLiveCoprocessorState(offset, live);
+                            offset--;
+                        } else {
+                            live = updateLiveCoprocessorState(offset, live);
+                        }
+                    }
+                    BlockInfo info = blockInfo[block.offset];
+                    if (live != info.liveCoprocessorState) {
+                        info.liveCoprocessorState = live;
+                        changed = true;
+                    }
+                }
+            }
+        }
+    }
+
+    private int getLiveCoprocessorStateOnEntry(FlowAnalyzer.BasicBlock block) {
+        if (block == null) {
+            return 0;
+        }
+        if (block.type != FlowAnalyzer.BasicBlock.NORMAL) {
+            return ALL_COPROCESSOR_STATE;
+        }
+        return blockInfo[block.offset].liveCoprocessorState;
+    }
+
+    /**
+     * @return the coprocessor state live before the instruction, given that live after it
+     */
+    private int updateLiveCoprocessorState(int offset, int live) {
+        liveCoprocessorState[offset] = live;
+        // an exception (e.g. syscall or break) leaves the unit for the handler, which may look at anything
+        if (0 != (flags[offset] & (CPUInstruction.FLAG_LINK | CPUInstruction.FLAG_MAY_SIGNAL_EXCEPTION | CPUInstruction.FLAG_MAY_RESTORE_INTERPRETER_STATE | CPUInstruction.FLAG_REQUIRES_COMPLETE_INTERPRETER_STATE))) {
+            return ALL_COPROCESSOR_STATE;
+        }
+        CPUInstruction inst = instructions[offset];
+        int ci = opCodes[offset];
+        return (live & ~inst.getCoprocessorStateWritten(ci)) | inst.getCoprocessorStateRead(ci);
+    }
+
+    public int getLiveCoprocessorState() {
+        if (!MultiStageCompiler.Settings.stage2CoprocessorLiveness) {
+            return ALL_COPROCESSOR_STATE;
+        }
+        return liveCoprocessorState[contextOffset];
+    }
+
     protected void emitBlockHeader(InstructionList il) {
         if (contextBlock.type == FlowAnalyzer.BasicBlock.NORMAL) {
             BlockInfo blockInfo = this.blockInfo[contextBlock.offset];
@@ -335,15 +506,44 @@ public class Stage2Generator extends Stage1Generator {
             assert 1 == (contextCR & 1);
             contextUnwrittenRegs = 0;
         }
+        forgetRegLocals(ALL_REGS);
+        if (MultiStageCompiler.Settings.stage2RegisterLocals && contextBlock.type == FlowAnalyzer.BasicBlock.NORMAL) {
+            // locals are valid at the start of a block if every block which continues into it left them valid
+            contextCachedRegs = blockInfo[contextBlock.offset].getRegLocalsOnEntry();
+        }
         super.emitBlockHeader(il);
     }
 
     protected void emitBlockFooter(InstructionList il) {
         writeBackRegs(il, ALL_REGS);
+        flushRegLocals(il);
+        if (contextBlock.type == FlowAnalyzer.BasicBlock.NORMAL) {
+            BlockInfo blockInfo = this.blockInfo[contextBlock.offset];
+            blockInfo.flowRegLocals = contextCachedRegs;
+            blockInfo.emitted = true;
+        }
         super.emitBlockFooter(il);
     }
 
+    protected void emitCode(InstructionList il, int startOffset, int endOffset) {
+        // an uninlined method can't see the locals of the unit's method, nor they its register writes
+        boolean uninlined = contextMethodGen.getName().startsWith(UNINLINED_METHOD_PREFIX);
+        if (uninlined) {
+            forgetRegLocals(ALL_REGS);
+        }
+        super.emitCode(il, startOffset, endOffset);
+        if (uninlined) {
+            flushRegLocals(il);
+            forgetRegLocals(ALL_REGS);
+        }
+    }
+
     protected void emitContextInstructionGuts(InstructionList il) {
+        // we may be emitting the delay slot from within the branch instruction
+        boolean outerCacheRegWrites = contextCacheRegWrites;
+        boolean outerDeferredWriteBack = contextDeferredWriteBack;
+        contextCacheRegWrites = false;
+        contextDeferredWriteBack = false;
         if (0 != (flags[contextOffset] & (CPUInstruction.FLAG_MAY_RESTORE_INTERPRETER_STATE))) {
             writeBackRegs(il, ALL_REGS);
         }
@@ -359,15 +559,34 @@ public class Stage2Generator extends Stage1Generator {
 			}*/
             contextUnwrittenRegs |= regsWritten[contextOffset];
             contextCR |= regsWritten[contextOffset];
+            // any value held in a local is superseded by the constant
+            forgetRegLocals(regsWritten[contextOffset]);
         } else {
             // todo fix this; we only need to write back regs which aren't constant (unless the instruction
             // doesn't observe constant regs)
             writeBackRegs(il, regsRead[contextOffset]);
+            if (MultiStageCompiler.Settings.stage2RegisterLocals && 0 != (flags[contextOffset] & CPUInstruction.FLAG_SIMULATABLE)) {
+                // simple ALU instruction; it can neither throw nor call out, so the reg_N fields needn't be up to date
+                contextCacheRegWrites = true;
+            } else if (MultiStageCompiler.Settings.stage2RegisterLocals && 0 != (flags[contextOffset] & CPUInstruction.FLAG_MEM)) {
+                // load or store; the memory access emitter writes back the locals unless the access can only fail
+                // via a misprediction handler, which writes them back itself
+                contextDeferredWriteBack = true;
+            } else {
+                // the instruction may throw (in which case the interpreter picks up the reg_N fields), or call other code
+                flushRegLocals(il);
+            }
             if (contextUnwrittenRegs != 0) {
                 // record the fact that we have unwritten regs
                 addressSpace.orTag(contextAddress, MultiStageCompiler.TAG_UNWRITTEN_REGS);
             }
             instructions[contextOffset].compile(this, contextAddress, opCodes[contextOffset], il);
+            contextCacheRegWrites = false;
+            contextDeferredWriteBack = false;
+            if (0 != (flags[contextOffset] & (CPUInstruction.FLAG_LINK | CPUInstruction.FLAG_MAY_RESTORE_INTERPRETER_STATE | CPUInstruction.FLAG_REQUIRES_COMPLETE_INTERPRETER_STATE))) {
+                // registers may have been changed behind our back
+                forgetRegLocals(ALL_REGS);
+            }
             contextUnwrittenRegs &= ~regsWritten[contextOffset];
             assert 0 == (regsWritten[contextOffset] & 1);
             contextCR &= ~regsWritten[contextOffset];
@@ -375,9 +594,130 @@ public class Stage2Generator extends Stage1Generator {
         // write back registers before call/branch
         if (contextIsDelaySlot) {
             writeBackRegs(il, ALL_REGS);
+            flushRegLocals(il);
+            if (contextBlock.branchOut != null && contextOffset == contextBlock.branchOffset + 1) {
+                // the block's branch follows
+                blockInfo[contextBlock.offset].branchRegLocals = contextCachedRegs;
+            }
+        }
+        contextCacheRegWrites = outerCacheRegWrites;
+        contextDeferredWriteBack = outerDeferredWriteBack;
+    }
+
+    /**
+     * Called by each memory access emitter before it emits anything
+     *
+     * @param handled true if the access can't fail, or can only fail via a misprediction handler
+     */
+    protected void prepareMemoryAccess(InstructionList il, boolean handled) {
+        if (contextDeferredWriteBack && !handled) {
+            flushRegLocals(il);
+        }
+    }
+
+    /**
+     * @return true if a register based access with the specified tag gets a misprediction handler
+     */
+    protected static boolean hasMispredictHandler(int tag) {
+        return tag == AddressSpace.TAG_RAM || tag == AddressSpace.TAG_SCRATCH || tag == AddressSpace.TAG_BIOS;
+    }
+
+    /**
+     * @return true if an access to the specified constant address is compiled to a plain array access, which
+     *         can't fail; the tag is that of the instruction, since an untagged or polled access calls out first
+     */
+    protected boolean isArrayAccess(int address, int tag) {
+        if (tag == 0 || 0 != (tag & AddressSpace.TAG_POLL)) {
+            return false;
+        }
+        addressSpace.resolve(address, arrayCheckResult);
+        return hasMispredictHandler(arrayCheckResult.tag);
+    }
+
+    /**
+     * Write back to the reg_N fields any registers whose current value is only held in a local
+     */
+    protected void flushRegLocals(InstructionList il) {
+        if (contextDirtyRegs != 0) {
+            for (int reg = 1; reg < 32; reg++) {
+                if (0 != (contextDirtyRegs & (1 << reg))) {
+                    il.append(new ILOAD(getRegLocal(reg)));
+                    il.append(new PUTSTATIC(contextCP.addFieldref(COMPILER_CLASS, "reg_" + reg, "I")));
+                    staticRegWrites++;
+                    localRegReads++;
+                }
+            }
+            contextDirtyRegs = 0;
         }
     }
 
+    /**
+     * Stop using the locals for the specified registers; note this doesn't write anything back
+     */
+    protected void forgetRegLocals(int regs) {
+        contextCachedRegs &= ~regs;
+        contextDirtyRegs &= ~regs;
+    }
+
+    protected final int getRegLocal(int reg) {
+        return LOCAL_LAST + reg;
+    }
+
+    protected int getMaxLocals() {
+        return LOCAL_LAST + 32;
+    }
+
+    public void emitGetReg(InstructionList il, int reg) {
+        if (0 != (contextCachedRegs & (1 << reg))) {
+            il.append(new ILOAD(getRegLocal(reg)));
+            localRegReads++;
+        } else {
+            super.emitGetReg(il, reg);
+            staticRegReads++;
+            // only fill the local from an ALU instruction, since their reads are never conditional
+            if (contextCacheRegWrites && reg != 0) {
+                il.append(new DUP());
+                il.append(new ISTORE(getRegLocal(reg)));
+                contextCachedRegs |= 1 << reg;
+                localRegWrites++;
+            }
+        }
+    }
+
+    public void emitSetReg(InstructionList il, int reg) {
+        // a load's memory access has already been made by the time its result is written
+        if (contextCacheRegWrites || contextDeferredWriteBack) {
+            assert reg != 0;
+            il.append(new ISTORE(getRegLocal(reg)));
+            contextCachedRegs |= 1 << reg;
+            contextDirtyRegs |= 1 << reg;
+            localRegWrites++;
+        } else {
+            super.emitSetReg(il, reg);
+            forgetRegLocals(1 << reg);
+            staticRegWrites++;
+        }
+    }
+
+    public void emitInterpretedInstruction(InstructionList il, int ci, String clazz, String method) {
+        // the interpreter only sees the reg_N fields
+        flushRegLocals(il);
+        contextCacheRegWrites = false;
+        super.emitInterpretedInstruction(il, ci, clazz, method);
+    }
+
+    public byte[] createClass(CodeUnit unit, String classname, boolean executionThread) {
+        staticRegReads = staticRegWrites = localRegReads = localRegWrites = 0;
+        byte[] rc = super.createClass(unit, classname, executionThread);
+        if (MultiStageCompiler.Settings.statistics && rc != null) {
+            if (log.isDebugEnabled()) {
+                log.debug("REGS:" + classname + ":static " + staticRegReads + "/" + staticRegWrites + ":local " + localRegReads + "/" + localRegWrites);
+            }
+            MultiStageCompiler.addRegAccessStatistics(staticRegReads + staticRegWrites, localRegReads + localRegWrites);
+        }
+        return rc;
+    }
+
     protected void writeBackRegs(InstructionList il, int regs) {
         int toWrite = contextUnwrittenRegs & regs;
         if (toWrite != 0) {
@@ -394,6 +734,35 @@ public class Stage2Generator extends Stage1Generator {
     protected int[] contextRegValues;
     protected int contextCR;
     protected int contextUnwrittenRegs;
+    /**
+     * registers whose current value is held in a local
+     */
+    protected int contextCachedRegs;
+    /**
+     * registers whose current value is held only in a local, and not yet in the reg_N field
+     */
+    protected int contextDirtyRegs;
+    /**
+     * true while compiling an instruction whose register writes may be left in locals
+     */
+    protected boolean contextCacheRegWrites;
+    /**
+     * true while compiling a load or store for which locals have not yet been written back
+     */
+    protected boolean contextDeferredWriteBack;
+    private final AddressSpace.ResolveResult arrayCheckResult = new AddressSpace.ResolveResult();
+    /**
+     * true while compiling the instructions of an inlined function
+     */
+    protected boolean contextInlining;
+    protected int contextInlinedRegsRead;
+    protected int contextInlinedRegsWritten;
+
+    // emitted bytecode counts, for statistics
+    private int staticRegReads;
+    private int staticRegWrites;
+    private int localRegReads;
+    private int localRegWrites;
 
     public int getRegValue(int reg) {
         assert 0 != (contextCR & (1 << reg));
@@ -437,6 +806,9 @@ public class Stage2Generator extends Stage1Generator {
     }
 
     public void emitCall(InstructionList il, int address, int retAddr) {
+        // the delay slot has already written everything back
+        assert contextDirtyRegs == 0;
+        forgetRegLocals(ALL_REGS);
         if (R3000Impl.Settings.traceExecutionFlow) {
             il.append(new PUSH(contextCP, address));
             il.append(new PUSH(contextCP, retAddr));
@@ -449,7 +821,7 @@ public class Stage2Generator extends Stage1Generator {
             il.append(new PUSH(contextCP, address));
             il.append(new PUSH(contextCP, retAddr));
             il.append(new INVOKESTATIC(contextCP.addMethodref(COMPILER_CLASS, MultiStageCompiler.CALL_METHOD, "(II)V")));
-        } else {
+        } else if (R3000Impl.Settings.traceExecutionFlow || !emitInlinedCall(il, address)) {
             il.append(new PUSH(contextCP, retAddr));
             il.append(new PUSH(contextCP, 0));
             il.append(new INVOKESTATIC(contextCP.addMethodref(getClassName(Stage1Generator.CLASS_NAME_PREFIX, address), STATIC_METHOD, "(IZ)I")));
@@ -457,17 +829,327 @@ public class Stage2Generator extends Stage1Generator {
         }
     }
 
+    /**
+     * Emit the code of a small, hot leaf function in place of a call to it, so that the JVM sees a hot call
+     * chain as a single method.
+     * <p/>
+     * Only straight line functions ending in "jr ra" are inlined; since they don't modify ra, the jr simply
+     * falls through to the code after the call. If an inlined memory access mispredicts, the exception carries
+     * the address of the callee's instruction, so the interpreter resumes there and returns to the caller as usual.
+     *
+     * @return false if the function was not inlined, in which case nothing has been emitted
+     */
+    protected boolean emitInlinedCall(InstructionList il, int address) {
+        int length = getInlinableLength(address);
+        if (length == 0 || !MultiStageCompiler.addInlinedCode(contextUnit, address, address + (length << 2))) {
+            return false;
+        }
+        if (instructionCounting) {
+            // the caller's block only counts the call and its delay slot
+            emitInstructionCount(il, length);
+        }
+        int callAddress = contextAddress;
+        int callCR = contextCR;
+        // none of our constant registers are written back to the reg_N fields in the callee
+        assert contextUnwrittenRegs == 0;
+        contextCR = 1;
+        contextInlining = true;
+        for (int i = 0; i < length; i++) {
+            if (i == length - 2) {
+                // the jr ra; its delay slot follows
+                continue;
+            }
+            contextAddress = address + (i << 2);
+            int ci = addressSpace.internalRead32(contextAddress);
+            CPUInstruction inst = r3000.decodeInstruction(ci);
+            contextInlinedRegsRead = getRegsRead(inst.getFlags(), ci);
+            contextInlinedRegsWritten = getRegsWritten(inst.getFlags(), ci);
+            if (MultiStageCompiler.Settings.stage2RegisterLocals && 0 != (inst.getFlags() & CPUInstruction.FLAG_SIMULATABLE)) {
+                contextCacheRegWrites = true;
+            } else {
+                flushRegLocals(il);
+            }
+            inst.compile(this, contextAddress, ci, il);
+            contextCacheRegWrites = false;
+        }
+        flushRegLocals(il);
+        contextInlining = false;
+        contextCR = callCR;
+        contextAddress = callAddress;
+        return true;
+    }
+
+    /**
+     * @return the number of instructions (including the final jr ra and its delay slot) in the leaf function
+     * at the specified address if we are able to inline it, or 0
+     */
+    private int getInlinableLength(int address) {
+        for (int i = 0; i < MultiStageCompiler.Settings.stage2InlineSize; i++) {
+            int instructionAddress = address + (i << 2);
+            if (addressSpace.internalRead32(instructionAddress) == JR_RA) {
+                return isInlinable(instructionAddress + 4) ? i + 2 : 0;
+            }
+            if (!isInlinable(instructionAddress)) {
+                return 0;
+            }
+        }
+        return 0;
+    }
+
+    private boolean isInlinable(int address) {
+        int ci = addressSpace.internalRead32(address);
+        CPUInstruction inst = r3000.decodeInstruction(ci);
+        int iFlags = inst.getFlags();
+        if (inst.getInterpreterClass() != R3000InstructionSet.class || 0 != (iFlags & NON_INLINABLE_FLAGS)) {
+            return false;
+        }
+        // the caller's code assumes these are preserved (and we need ra to be the return address)
+        if (0 != (getRegsWritten(iFlags, ci) & (MultiStageCompiler.Settings.savedOnCallRegs | (1 << R3000.R_RETADDR)))) {
+            return false;
+        }
+        if (0 != (iFlags & CPUInstruction.FLAG_MEM)) {
+            // only accesses which will be compiled to a memory array, with a misprediction handler
+            int rs = R3000.Util.bits_rs(ci);
+            if (rs == 0 || contextUnit.isGenericMemoryAccess(address)) {
+                return false;
+            }
+            int tag = addressSpace.getTag(address) & READ_TAG_MASK;
+            if (tag == 0 && (0 != ((1 << rs) & MultiStageCompiler.Settings.usuallyRAMRegs))) {
+                tag = AddressSpace.TAG_RAM;
+            }
+            return tag == AddressSpace.TAG_RAM || tag == AddressSpace.TAG_SCRATCH || tag == AddressSpace.TAG_BIOS;
+        }
+        return true;
+    }
+
+    private static int getRegsRead(int iFlags, int ci) {
+        int rc = 0;
+        if (0 != (iFlags & CPUInstruction.FLAG_READS_RS)) {
+            rc |= 1 << R3000.Util.bits_rs(ci);
+        }
+        if (0 != (iFlags & CPUInstruction.FLAG_READS_RT)) {
+            rc |= 1 << R3000.Util.bits_rt(ci);
+        }
+        return rc;
+    }
+
+    private static int getRegsWritten(int iFlags, int ci) {
+        int rc = 0;
+        if (0 != (iFlags & CPUInstruction.FLAG_WRITES_RT)) {
+            rc |= 1 << R3000.Util.bits_rt(ci);
+        }
+        if (0 != (iFlags & CPUInstruction.FLAG_WRITES_RD)) {
+            rc |= 1 << R3000.Util.bits_rd(ci);
+        }
+        return rc & WRITABLE_REGS;
+    }
+
+    public int getReadsReg() {
+        return contextInlining ? contextInlinedRegsRead : super.getReadsReg();
+    }
+
+    public int getWritesReg() {
+        return contextInlining ? contextInlinedRegsWritten : super.getWritesReg();
+    }
+
     /**
      * Used for JALR etc where the address to call is at the top
      * of the JVM stack
      */
     public void emitCall(InstructionList il, int retAddr) {
+        assert contextDirtyRegs == 0;
+        forgetRegLocals(ALL_REGS);
+        int[] targets = getInlineCacheTargets();
+        if (targets == null) {
+            il.append(new PUSH(contextCP, retAddr));
+            il.append(new INVOKESTATIC(contextCP.addMethodref(COMPILER_CLASS, MultiStageCompiler.CALL_METHOD, "(II)V")));
+            return;
+        }
+        // call the targets seen by the stage 1 code directly
+        il.append(new ISTORE(LOCAL_PRIVATE_TEMP));
+        GOTO[] hits = new GOTO[targets.length];
+        for (int i = 0; i < targets.length; i++) {
+            il.append(new ILOAD(LOCAL_PRIVATE_TEMP));
+            il.append(new PUSH(contextCP, targets[i]));
+            IF_ICMPNE icmpne = new IF_ICMPNE(null);
+            il.append(icmpne);
+            emitInlineCacheCount(il, "inlineCacheHits");
+            // same nesting account as c_call
+            il.append(new PUSH(contextCP, targets[i]));
+            il.append(new INVOKESTATIC(contextCP.addMethodref(COMPILER_CLASS, MultiStageCompiler.ENTER_NATIVE_METHOD, "(I)V")));
+            il.append(new PUSH(contextCP, retAddr));
+            il.append(new PUSH(contextCP, 0));
+            il.append(new INVOKESTATIC(contextCP.addMethodref(getClassName(Stage1Generator.CLASS_NAME_PREFIX, targets[i]), STATIC_METHOD, "(IZ)I")));
+            il.append(new POP());
+            il.append(new INVOKESTATIC(contextCP.addMethodref(COMPILER_CLASS, MultiStageCompiler.LEAVE_NATIVE_METHOD, "()V")));
+            hits[i] = new GOTO(null);
+            il.append(hits[i]);
+            icmpne.setTarget(il.append(new NOP()));
+        }
+        emitInlineCacheCount(il, "inlineCacheMisses");
+        il.append(new ILOAD(LOCAL_PRIVATE_TEMP));
         il.append(new PUSH(contextCP, retAddr));
         il.append(new INVOKESTATIC(contextCP.addMethodref(COMPILER_CLASS, MultiStageCompiler.CALL_METHOD, "(II)V")));
+        InstructionHandle done = il.append(new NOP());
+        for (GOTO hit : hits) {
+            hit.setTarget(done);
+        }
+    }
+
+    protected void emitIndirectJump(InstructionList il) {
+        int[] targets = getInlineCacheTargets();
+        if (targets == null) {
+            il.append(new INVOKESTATIC(contextCP.addMethodref(COMPILER_CLASS, MultiStageCompiler.JUMP_METHOD, "(II)I")));
+            return;
+        }
+        // jump to the targets seen by the stage 1 code directly; the target and return address are also in locals
+        il.append(new POP2());
+        GOTO[] hits = new GOTO[targets.length];
+        for (int i = 0; i < targets.length; i++) {
+            il.append(new ILOAD(LOCAL_PRIVATE_TEMP));
+            il.append(new PUSH(contextCP, targets[i]));
+            IF_ICMPNE icmpne = new IF_ICMPNE(null);
+            il.append(icmpne);
+            emitInlineCacheCount(il, "inlineCacheHits");
+            // same nesting account as c_jump
+            il.append(new PUSH(contextCP, targets[i]));
+            il.append(new INVOKESTATIC(contextCP.addMethodref(COMPILER_CLASS, MultiStageCompiler.ENTER_NATIVE_METHOD, "(I)V")));
+            il.append(new ILOAD(LOCAL_RETADDR));
+            il.append(new PUSH(contextCP, 1));
+            il.append(new INVOKESTATIC(contextCP.addMethodref(getClassName(Stage1Generator.CLASS_NAME_PREFIX, targets[i]), STATIC_METHOD, "(IZ)I")));
+            il.append(new INVOKESTATIC(contextCP.addMethodref(COMPILER_CLASS, MultiStageCompiler.LEAVE_NATIVE_METHOD, "()V")));
+            hits[i] = new GOTO(null);
+            il.append(hits[i]);
+            icmpne.setTarget(il.append(new NOP()));
+        }
+        emitInlineCacheCount(il, "inlineCacheMisses");
+        il.append(new ILOAD(LOCAL_PRIVATE_TEMP));
+        il.append(new ILOAD(LOCAL_RETADDR));
+        il.append(new INVOKESTATIC(contextCP.addMethodref(COMPILER_CLASS, MultiStageCompiler.JUMP_METHOD, "(II)I")));
+        InstructionHandle done = il.append(new NOP());
+        for (GOTO hit : hits) {
+            hit.setTarget(done);
+        }
+    }
+
+    /**
+     * @return the targets for an inline cache at the current jalr/jr, or null if there are none
+     */
+    protected int[] getInlineCacheTargets() {
+        int[] targets = contextUnit.getIndirectTargets(contextOffset);
+        if (targets != null && AddressSpace.Util.isBIOS(contextAddress)) {
+            // calling from bios to ram must be indirect
+            int count = 0;
+            for (int target : targets) {
+                if (AddressSpace.Util.isBIOS(target)) {
+                    count++;
+                }
+            }
+            if (count != targets.length) {
+                int[] biosTargets = new int[count];
+                count = 0;
+                for (int target : targets) {
+                    if (AddressSpace.Util.isBIOS(target)) {
+                        biosTargets[count++] = target;
+                    }
+                }
+                targets = biosTargets;
+            }
+        }
+        return targets == null || targets.length == 0 ? null : targets;
+    }
+
+    private void emitInlineCacheCount(InstructionList il, String field) {
+        if (MultiStageCompiler.Settings.statistics) {
+            il.append(new GETSTATIC(contextCP.addFieldref(COMPILER_CLASS, field, "I")));
+            il.append(new PUSH(contextCP, 1));
+            il.append(new IADD());
+            il.append(new PUTSTATIC(contextCP.addFieldref(COMPILER_CLASS, field, "I")));
+        }
+    }
+
+    /**
+     * As {@link Stage1Generator#emitRAMPageWriteCheck}, for a store whose address is in a register
+     */
+    protected void emitRAMPageWriteCheck(InstructionList il, int reg, int offset) {
+        il.append(new GETSTATIC(contextCP.addFieldref(ADDRESS_SPACE_CLASS, "ramPagesWatched", "[B")));
+        emitRAMPage(il, reg, offset);
+        il.append(new BALOAD());
+        IFEQ skip = new IFEQ(null);
+        il.append(skip);
+        emitRAMPage(il, reg, offset);
+        il.append(new INVOKESTATIC(contextCP.addMethodref(ADDRESS_SPACE_CLASS, "_ramPageWritten", "(I)V")));
+        skip.setTarget(il.append(new NOP()));
+    }
+
+    private void emitRAMPage(InstructionList il, int reg, int offset) {
+        emitGetReg(il, reg);
+        if (offset != 0) {
+            il.append(new PUSH(contextCP, offset));
+            il.append(new IADD());
+        }
+        il.append(new PUSH(contextCP, AddressSpace.RAM_AND));
+        il.append(new IAND());
+        il.append(new PUSH(contextCP, AddressSpace.RAM_PAGE_SHIFT));
+        il.append(new ISHR());
+    }
+
+    /**
+     * If the memory access just emitted (everything after the specified handle) was predicted to be to one
+     * of the memory arrays, catch the ArrayIndexOutOfBoundsException caused by a misprediction right here,
+     * and rethrow it as a {@link MemoryMispredictException} carrying the instruction address, so that
+     * recovery doesn't depend on stack trace line numbers.
+     * <p/>
+     * The handler also writes back any constant registers which haven't yet been written, so that the
+     * interpreter can resume at the instruction with the correct register state.
+     */
+    protected void emitMispredictHandler(InstructionList il, InstructionHandle before, int tag) {
+        if (!hasMispredictHandler(tag)) {
+            return;
+        }
+        InstructionHandle start = before == null ? il.getStart() : before.getNext();
+        InstructionHandle end = il.getEnd();
+        GOTO skip = new GOTO(null);
+        il.append(skip);
+        InstructionHandle handler = il.append(new POP());
+        if (contextUnwrittenRegs != 0) {
+            // note we don't use writeBackRegs, since the registers are still unwritten on the normal path
+            for (int reg = 1; reg < 32; reg++) {
+                if (0 != (contextUnwrittenRegs & (1 << reg))) {
+                    il.append(new PUSH(contextCP, contextRegValues[reg]));
+                    il.append(new PUTSTATIC(contextCP.addFieldref(COMPILER_CLASS, "reg_" + reg, "I")));
+                }
+            }
+        }
+        // likewise for registers only held in locals, which the normal path leaves there
+        for (int reg = 1; reg < 32; reg++) {
+            if (0 != (contextDirtyRegs & (1 << reg))) {
+                il.append(new ILOAD(getRegLocal(reg)));
+                il.append(new PUTSTATIC(contextCP.addFieldref(COMPILER_CLASS, "reg_" + reg, "I")));
+            }
+        }
+        il.append(new PUSH(contextCP, contextBase));
+        il.append(new PUSH(contextCP, contextAddress));
+        il.append(new INVOKESTATIC(contextCP.addMethodref(MISPREDICT_EXCEPTION_CLASS, "get", "(II)" + MISPREDICT_EXCEPTION_SIGNATURE)));
+        il.append(new ATHROW());
+        skip.setTarget(il.append(new NOP()));
+        contextMethodGen.addExceptionHandler(start, end, handler, new ObjectType(ArrayIndexOutOfBoundsException.class.getName()));
+    }
+
+    /**
+     * @return the memory region tags seen for the register based access being compiled; an access which
+     * has mispredicted too often is given a tag which results in generic code
+     */
+    protected int getMemoryAccessTag() {
+        if (contextUnit.isGenericMemoryAccess(contextAddress)) {
+            return GENERIC_TAG;
+        }
+        return addressSpace.getTag(contextAddress) & READ_TAG_MASK;
     }
 
     public void emitReadMem8(InstructionList il, int address, boolean signed) {
         int tag = addressSpace.getTag(contextAddress) & READ_TAG_MASK;
+        prepareMemoryAccess(il, isArrayAccess(address, tag));
         // we must do tag==0 since this means we haven't executed this statement yet
         if (tag == 0 || 0 != (tag & AddressSpace.TAG_POLL)) {
             il.append(new PUSH(contextCP, address));
@@ -489,8 +1171,10 @@ public class Stage2Generator extends Stage1Generator {
             il.append(new PUSH(contextCP, rr.offset));
             il.append(new IALOAD());
         } else if (rr.tag == AddressSpace.TAG_HW) {
-            il.append(new PUSH(contextCP, address));
-            il.append(new INVOKESTATIC(contextCP.addMethodref(HW_CLASS, "read8", "(I)I")));
+            if (!addressSpace.emitHardwareRead(contextCP, il, address, 1)) {
+                il.append(new PUSH(contextCP, address));
+                il.append(new INVOKESTATIC(contextCP.addMethodref(HW_CLASS, "read8", "(I)I")));
+            }
             return;
         } else {
             il.append(new PUSH(contextCP, address));
@@ -534,11 +1218,12 @@ public class Stage2Generator extends Stage1Generator {
     }
 
     public void emitReadMem8(InstructionList il, int reg, int offset) {
-        int tag = addressSpace.getTag(contextAddress) & READ_TAG_MASK;
+        int tag = getMemoryAccessTag();
         // todo note that right now we don't tag usuallyRAMRegs, but we could in the future so this tag == 0 check is there for that
         if (tag == 0 && (0 != ((1 << reg) & MultiStageCompiler.Settings.usuallyRAMRegs))) {
             tag = AddressSpace.TAG_RAM;
         }
+        prepareMemoryAccess(il, hasMispredictHandler(tag));
         if (0 == tag || 0 != (tag & AddressSpace.TAG_POLL)) {
             emitGetReg(il, reg);
             if (offset != 0) {
@@ -549,6 +1234,7 @@ public class Stage2Generator extends Stage1Generator {
             il.append(new INVOKESTATIC(contextCP.addMethodref(ADDRESS_SPACE_CLASS, "_checkPoll8", "(I)V")));
             tag &= ~AddressSpace.TAG_POLL;
         }
+        InstructionHandle before = il.getEnd();
         switch (tag) {
             case AddressSpace.TAG_RAM:
                 emitGetReg(il, reg);
@@ -590,10 +1276,12 @@ public class Stage2Generator extends Stage1Generator {
                 }
                 il.append(new INVOKESTATIC(contextCP.addMethodref(ADDRESS_SPACE_CLASS, "_read8", "(I)I")));
         }
+        emitMispredictHandler(il, before, tag);
     }
 
     public void emitReadMem16(InstructionList il, int address, boolean signed) {
         int tag = addressSpace.getTag(contextAddress) & READ_TAG_MASK;
+        prepareMemoryAccess(il, 0 == (address & 1) && isArrayAccess(address, tag));
         // we must do tag==0 since this means we haven't executed this statement yet
         if (tag == 0 || 0 != (tag & AddressSpace.TAG_POLL)) {
             il.append(new PUSH(contextCP, address));
@@ -616,8 +1304,10 @@ public class Stage2Generator extends Stage1Generator {
                 il.append(new PUSH(contextCP, rr.offset));
                 il.append(new IALOAD());
             } else if (rr.tag == AddressSpace.TAG_HW) {
-                il.append(new PUSH(contextCP, address));
-                il.append(new INVOKESTATIC(contextCP.addMethodref(HW_CLASS, "read16", "(I)I")));
+                if (!addressSpace.emitHardwareRead(contextCP, il, address, 2)) {
+                    il.append(new PUSH(contextCP, address));
+                    il.append(new INVOKESTATIC(contextCP.addMethodref(HW_CLASS, "read16", "(I)I")));
+                }
                 return;
             } else {
                 il.append(new PUSH(contextCP, address));
@@ -645,11 +1335,12 @@ public class Stage2Generator extends Stage1Generator {
     }
 
     public void emitReadMem16(InstructionList il, int reg, int offset) {
-        int tag = addressSpace.getTag(contextAddress) & READ_TAG_MASK;
+        int tag = getMemoryAccessTag();
         // todo note that right now we don't tag usuallyRAMRegs, but we could in the future so this tag == 0 check is there for that
         if (tag == 0 && (0 != ((1 << reg) & MultiStageCompiler.Settings.usuallyRAMRegs))) {
             tag = AddressSpace.TAG_RAM;
         }
+        prepareMemoryAccess(il, hasMispredictHandler(tag));
         if (0 == tag || 0 != (tag & AddressSpace.TAG_POLL)) {
             emitGetReg(il, reg);
             if (offset != 0) {
@@ -660,6 +1351,7 @@ public class Stage2Generator extends Stage1Generator {
             il.append(new INVOKESTATIC(contextCP.addMethodref(ADDRESS_SPACE_CLASS, "_checkPoll16", "(I)V")));
             tag &= ~AddressSpace.TAG_POLL;
         }
+        InstructionHandle before = il.getEnd();
         switch (tag) {
             case AddressSpace.TAG_RAM:
                 emitGetReg(il, reg);
@@ -701,10 +1393,12 @@ public class Stage2Generator extends Stage1Generator {
                 }
                 il.append(new INVOKESTATIC(contextCP.addMethodref(ADDRESS_SPACE_CLASS, "_read16", "(I)I")));
         }
+        emitMispredictHandler(il, before, tag);
     }
 
     public void emitReadMem32(InstructionList il, int address, boolean forceAlign) {
         int tag = addressSpace.getTag(contextAddress) & READ_TAG_MASK;
+        prepareMemoryAccess(il, (forceAlign || 0 == (address & 3)) && isArrayAccess(address & ~3, tag));
         // we must do tag==0 since this means we haven't executed this statement yet
         if (tag == 0) {
             // this only calls _checkPoll32 sometimes
@@ -735,8 +1429,10 @@ public class Stage2Generator extends Stage1Generator {
                 il.append(new PUSH(contextCP, rr.offset));
                 il.append(new IALOAD());
             } else if (rr.tag == AddressSpace.TAG_HW) {
-                il.append(new PUSH(contextCP, address));
-                il.append(new INVOKESTATIC(contextCP.addMethodref(HW_CLASS, "read32", "(I)I")));
+                if (!addressSpace.emitHardwareRead(contextCP, il, address, 4)) {
+                    il.append(new PUSH(contextCP, address));
+                    il.append(new INVOKESTATIC(contextCP.addMethodref(HW_CLASS, "read32", "(I)I")));
+                }
             } else {
                 il.append(new PUSH(contextCP, address));
                 il.append(new INVOKESTATIC(contextCP.addMethodref(ADDRESS_SPACE_CLASS, "_read32", "(I)I")));
@@ -748,11 +1444,12 @@ public class Stage2Generator extends Stage1Generator {
     }
 
     public void emitReadMem32(InstructionList il, int reg, int offset, boolean forceAlign) {
-        int tag = addressSpace.getTag(contextAddress) & READ_TAG_MASK;
+        int tag = getMemoryAccessTag();
         // todo note that right now we don't tag usuallyRAMRegs, but we could in the future so this tag == 0 check is there for that
         if (tag == 0 && (0 != ((1 << reg) & MultiStageCompiler.Settings.usuallyRAMRegs))) {
             tag = AddressSpace.TAG_RAM;
         }
+        prepareMemoryAccess(il, hasMispredictHandler(tag));
         // we must do tag==0 since this means we haven't executed this statement yet
         if (tag == 0) {
             il.append(new PUSH(contextCP, contextAddress));
@@ -773,6 +1470,7 @@ public class Stage2Generator extends Stage1Generator {
             il.append(new INVOKESTATIC(contextCP.addMethodref(ADDRESS_SPACE_CLASS, "_checkPoll32", "(I)V")));
             tag &= ~AddressSpace.TAG_POLL;
         }
+        InstructionHandle before = il.getEnd();
         switch (tag) {
             case AddressSpace.TAG_RAM:
                 il.append(new GETSTATIC(contextCP.addFieldref(ADDRESS_SPACE_CLASS, "ramD", "[I")));
@@ -837,6 +1535,7 @@ public class Stage2Generator extends Stage1Generator {
                 }
                 il.append(new INVOKESTATIC(contextCP.addMethodref(ADDRESS_SPACE_CLASS, "_read32", "(I)I")));
         }
+        emitMispredictHandler(il, before, tag);
     }
 
     public void emitWriteMem8(InstructionList il, int address, InstructionList il2) {
@@ -884,11 +1583,13 @@ public class Stage2Generator extends Stage1Generator {
     }
 
     public void emitWriteMem8(InstructionList il, int reg, int offset) {
-        int tag = addressSpace.getTag(contextAddress) & READ_TAG_MASK;
+        int tag = getMemoryAccessTag();
         // todo note that right now we don't tag usuallyRAMRegs, but we could in the future so this tag == 0 check is there for that
         if (tag == 0 && (0 != ((1 << reg) & MultiStageCompiler.Settings.usuallyRAMRegs))) {
             tag = AddressSpace.TAG_RAM;
         }
+        prepareMemoryAccess(il, hasMispredictHandler(tag));
+        InstructionHandle before = il.getEnd();
         switch (tag) {
             case AddressSpace.TAG_RAM:
                 emitGetReg(il, reg);
@@ -935,10 +1636,12 @@ public class Stage2Generator extends Stage1Generator {
                 il.append(new SWAP());
                 il.append(new INVOKESTATIC(contextCP.addMethodref(ADDRESS_SPACE_CLASS, "_write8", "(II)V")));
         }
+        emitMispredictHandler(il, before, tag);
     }
 
     public void emitWriteMem16(InstructionList il, int address, InstructionList il2) {
         if ((address & 1) != 0) {
+            prepareMemoryAccess(il, false);
             il.append(new PUSH(contextCP, address));
             il.append(il2);
             il.append(new INVOKESTATIC(contextCP.addMethodref(ADDRESS_SPACE_CLASS, "_write16", "(II)V")));
@@ -975,11 +1678,13 @@ public class Stage2Generator extends Stage1Generator {
     }
 
     public void emitWriteMem16(InstructionList il, int reg, int offset) {
-        int tag = addressSpace.getTag(contextAddress) & READ_TAG_MASK;
+        int tag = getMemoryAccessTag();
         // todo note that right now we don't tag usuallyRAMRegs, but we could in the future so this tag == 0 check is there for that
         if (tag == 0 && (0 != ((1 << reg) & MultiStageCompiler.Settings.usuallyRAMRegs))) {
             tag = AddressSpace.TAG_RAM;
         }
+        prepareMemoryAccess(il, hasMispredictHandler(tag));
+        InstructionHandle before = il.getEnd();
         switch (tag) {
             case AddressSpace.TAG_RAM:
                 emitGetReg(il, reg);
@@ -1026,9 +1731,12 @@ public class Stage2Generator extends Stage1Generator {
                 il.append(new SWAP());
                 il.append(new INVOKESTATIC(contextCP.addMethodref(ADDRESS_SPACE_CLASS, "_write16", "(II)V")));
         }
+        emitMispredictHandler(il, before, tag);
     }
 
     public void emitWriteMem32(InstructionList il, int address, InstructionList il2, boolean forceAlign) {
+        // there's no polling check for writes, so any tag will do
+        prepareMemoryAccess(il, (forceAlign || 0 == (address & 3)) && isArrayAccess(address & ~3, AddressSpace.TAG_RAM));
         rr.mem = null;
         if (forceAlign) {
             address &= ~3;
@@ -1036,6 +1744,7 @@ public class Stage2Generator extends Stage1Generator {
         if (0 == (address & 3)) {
             addressSpace.resolve(address, rr);
             if (rr.tag == AddressSpace.TAG_RAM) {
+                emitRAMPageWriteCheck(il, rr.offset >> (AddressSpace.RAM_PAGE_SHIFT - 2));
                 il.append(new GETSTATIC(contextCP.addFieldref(ADDRESS_SPACE_CLASS, "ramD", "[I")));
                 il.append(new PUSH(contextCP, rr.offset));
                 il.append(il2);
@@ -1053,9 +1762,11 @@ public class Stage2Generator extends Stage1Generator {
                 il.append(new IALOAD());
                 il.append(new POP());
             } else if (rr.tag == AddressSpace.TAG_HW) {
-                il.append(new PUSH(contextCP, address));
-                il.append(il2);
-                il.append(new INVOKESTATIC(contextCP.addMethodref(HW_CLASS, "write32", "(II)V")));
+                if (!addressSpace.emitHardwareWrite(contextCP, il, address, il2)) {
+                    il.append(new PUSH(contextCP, address));
+                    il.append(il2);
+                    il.append(new INVOKESTATIC(contextCP.addMethodref(HW_CLASS, "write32", "(II)V")));
+                }
             } else {
                 il.append(new PUSH(contextCP, address));
                 il.append(il2);
@@ -1069,13 +1780,17 @@ public class Stage2Generator extends Stage1Generator {
     }
 
     public void emitWriteMem32(InstructionList il, int reg, int offset, InstructionList il2, boolean forceAlign) {
-        int tag = addressSpace.getTag(contextAddress) & READ_TAG_MASK;
+        int tag = getMemoryAccessTag();
         // todo note that right now we don't tag usuallyRAMRegs, but we could in the future so this tag == 0 check is there for that
         if (tag == 0 && (0 != ((1 << reg) & MultiStageCompiler.Settings.usuallyRAMRegs))) {
             tag = AddressSpace.TAG_RAM;
         }
+        prepareMemoryAccess(il, hasMispredictHandler(tag));
+        InstructionHandle before = il.getEnd();
         switch (tag) {
             case AddressSpace.TAG_RAM:
+                // note a non RAM address fails the page check with the same exception as the store itself would
+                emitRAMPageWriteCheck(il, reg, offset);
                 il.append(new GETSTATIC(contextCP.addFieldref(ADDRESS_SPACE_CLASS, "ramD", "[I")));
                 emitGetReg(il, reg);
                 if (offset != 0) {
@@ -1145,6 +1860,7 @@ public class Stage2Generator extends Stage1Generator {
                 il.append(il2);
                 il.append(new INVOKESTATIC(contextCP.addMethodref(ADDRESS_SPACE_CLASS, "_write32", "(II)V")));
         }
+        emitMispredictHandler(il, before, tag);
     }
 
     protected boolean shouldPrintCode() {
@@ -23,6 +23,7 @@ import org.jpsx.api.components.hardware.cd.CDDrive;
 import org.jpsx.api.components.hardware.gpu.Display;
 import org.jpsx.api.components.hardware.gpu.DisplayManager;
 import org.jpsx.api.components.hardware.sio.SerialPort;
+import org.jpsx.bootstrap.connection.MultipleConnection;
 import org.jpsx.bootstrap.connection.SimpleConnection;
 
 /**
@@ -35,4 +36,8 @@ public class HardwareComponentConnections {
     public static final SimpleConnection<SerialPort> RIGHT_PORT_INSTANCE = SimpleConnection.create("Right Serial Port", SerialPort.class);
     public static final SimpleConnection<Display> DISPLAY = SimpleConnection.create("JPSX GPU Display", Display.class);
     public static final SimpleConnection<DisplayManager> DISPLAY_MANAGER = SimpleConnection.create("JPXS GPU Display Manager", DisplayManager.class);
+    /**
+     * Run each time the VSync interrupt is raised, i.e. once per emulated frame
+     */
+    public static final MultipleConnection<Runnable> VSYNC_LISTENERS = MultipleConnection.create("VSync Listeners", Runnable.class);
 }
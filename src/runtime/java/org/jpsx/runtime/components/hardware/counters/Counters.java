@@ -68,6 +68,7 @@ public class Counters extends SingletonJPSXComponent implements MemoryMapped {
     private static IRQController irqController;
     private static Quartz quartz;
     private static Scheduler scheduler;
+    private static Runnable vsyncListeners;
 
     public Counters() {
         super("JPSX Hardware Counters");
@@ -95,6 +96,7 @@ public class Counters extends SingletonJPSXComponent implements MemoryMapped {
         irqController = CoreComponentConnections.IRQ_CONTROLLER.resolve();
         quartz = CoreComponentConnections.QUARTZ.resolve();
         scheduler = CoreComponentConnections.SCHEDULER.resolve();
+        vsyncListeners = HardwareComponentConnections.VSYNC_LISTENERS.resolve();
     }
 
     public void begin() {
@@ -343,6 +345,7 @@ public class Counters extends SingletonJPSXComponent implements MemoryMapped {
 
         public long run(long currentTime) {
             irqController.raiseIRQ(IRQController.IRQ_VSYNC);
+            vsyncListeners.run();
             // if we missed some vsyncs, then skip them
             while (currentTime >= nextTime) {
                 if (bandicootUS && currentTime > Quartz.SEC * 22) {
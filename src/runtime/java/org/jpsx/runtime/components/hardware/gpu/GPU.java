@@ -8661,11 +8661,14 @@ public class GPU extends SingletonJPSXComponent implements ClassGenerator, Memor
                 base &= 0xffffff;
                 int end = base >> 2;
                 int addr = end - count + 1;
-                int[] mainRAM = addressSpace.getMainRAM();
-                mainRAM[addr] = 0x00ffffff;
+                // resolved for write (rather than using main RAM directly), so the address space sees the change
+                AddressSpace.ResolveResult rr = new AddressSpace.ResolveResult();
+                addressSpace.resolve(addr << 2, count << 2, true, rr);
+                int[] mainRAM = rr.mem;
+                int index = rr.offset;
+                mainRAM[index] = 0x00ffffff;
                 while (addr < end) {
-                    int tmp = addr;
-                    mainRAM[++addr] = (tmp << 2);
+                    mainRAM[++index] = (addr++ << 2);
                 }
 
             }
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2003, 2014 Graham Sanderson
+ *
+ * This file is part of JPSX.
+ *
+ * JPSX is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JPSX is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JPSX.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.jpsx.runtime.components.hardware.gpu;
+
+import org.jpsx.api.components.hardware.gpu.Display;
+import org.jpsx.runtime.JPSXComponent;
+import org.jpsx.runtime.components.hardware.HardwareComponentConnections;
+
+/**
+ * Display which never shows anything; it just provides the video RAM, so that
+ * the emulator can run without a window (e.g. on a headless machine)
+ */
+public class NullDisplay extends JPSXComponent implements Display {
+    private int[] ram;
+
+    public NullDisplay() {
+        super("JPSX Null (no output) Display");
+    }
+
+    @Override
+    public void init() {
+        super.init();
+        HardwareComponentConnections.DISPLAY.set(this);
+    }
+
+    public void initDisplay() {
+        ram = new int[1024 * 513];
+    }
+
+    public int[] acquireDisplayBuffer() {
+        return ram;
+    }
+
+    public void releaseDisplayBuffer() {
+    }
+
+    public void refresh() {
+    }
+}
@@ -129,6 +129,11 @@ public final class GTE extends JPSXComponent implements InstructionProvider {
 
     private static final int GTE_ALL_MASKS = (GTE_SF_MASK | GTE_MX_MASK | GTE_V_MASK | GTE_CV_MASK | GTE_LM_MASK);
 
+    // result state tracked by the compiler's liveness analysis (see CPUInstruction.getCoprocessorStateRead)
+    private static final int STATE_FLAG = 1;
+    private static final int STATE_MAC0 = 2;
+    private static final int STATE_IR0 = 4;
+
 //    public static void setFlag( int bits)
 //    {
 //        reg_flag |= bits;
@@ -624,6 +629,46 @@ public final class GTE extends JPSXComponent implements InstructionProvider {
         }
     }
 
+    private static void emitReadLong(InstructionList il, ConstantPoolGen cp, String field) {
+        il.append(new GETSTATIC(cp.addFieldref(CLASS, field, "I")));
+        il.append(new I2L());
+    }
+
+    private static void emitReadVectorLong(InstructionList il, ConstantPoolGen cp, String field) {
+        il.append(new GETSTATIC(cp.addFieldref(CLASS, field, VECTOR_SIGNATURE)));
+        il.append(new GETFIELD(cp.addFieldref(VECTOR_CLASS, "x", "I")));
+        il.append(new I2L());
+        il.append(new GETSTATIC(cp.addFieldref(CLASS, field, VECTOR_SIGNATURE)));
+        il.append(new GETFIELD(cp.addFieldref(VECTOR_CLASS, "y", "I")));
+        il.append(new I2L());
+        il.append(new GETSTATIC(cp.addFieldref(CLASS, field, VECTOR_SIGNATURE)));
+        il.append(new GETFIELD(cp.addFieldref(VECTOR_CLASS, "z", "I")));
+        il.append(new I2L());
+    }
+
+    /**
+     * Emit a call to rtps or rtpt, or to the variant which doesn't maintain FLAG if it is never read
+     */
+    private static void emitRTPCall(InstructionList il, CompilationContext context, String method) {
+        ConstantPoolGen cp = context.getConstantPoolGen();
+        int live = context.getLiveCoprocessorState();
+        if (0 != (live & STATE_FLAG)) {
+            il.append(new INVOKESTATIC(cp.addMethodref(CLASS, method, "()V")));
+        } else {
+            il.append(new PUSH(cp, 0 != (live & (STATE_MAC0 | STATE_IR0))));
+            il.append(new INVOKESTATIC(cp.addMethodref(CLASS, method + "NoFlags", "(Z)V")));
+        }
+    }
+
+    /**
+     * Emit a call to a GTE command whose only field is sf
+     */
+    private static void emitSFCall(InstructionList il, CompilationContext context, int ci, String method) {
+        ConstantPoolGen cp = context.getConstantPoolGen();
+        il.append(new PUSH(cp, 0 != (ci & GTE_SF_MASK)));
+        il.append(new INVOKESTATIC(cp.addMethodref(CLASS, method, "(Z)V")));
+    }
+
     private static void emitWriteReg(InstructionList il, CompilationContext context, int reg) {
         ConstantPoolGen cp = context.getConstantPoolGen();
         int temp = context.getTempLocal(0);
@@ -1147,6 +1192,10 @@ public final class GTE extends JPSXComponent implements InstructionProvider {
     public void addInstructions(InstructionRegistrar registrar) {
         log.info("Adding COP2 instructions...");
         i_mfc2 = new CPUInstruction("mfc2", GTE.class, 0, CPUInstruction.FLAG_WRITES_RT) {
+            public int getCoprocessorStateRead(int ci) {
+                return getState(R3000.Util.bits_rd(ci));
+            }
+
             public void compile(CompilationContext context, int address, int ci, InstructionList il) {
                 int rd = R3000.Util.bits_rd(ci);
                 int rt = R3000.Util.bits_rt(ci);
@@ -1158,6 +1207,10 @@ public final class GTE extends JPSXComponent implements InstructionProvider {
             }
         };
         i_cfc2 = new CPUInstruction("cfc2", GTE.class, 0, CPUInstruction.FLAG_WRITES_RT) {
+            public int getCoprocessorStateRead(int ci) {
+                return getState(R3000.Util.bits_rd(ci) + 32);
+            }
+
             public void compile(CompilationContext context, int address, int ci, InstructionList il) {
                 int rd = R3000.Util.bits_rd(ci);
                 int rt = R3000.Util.bits_rt(ci);
@@ -1170,6 +1223,10 @@ public final class GTE extends JPSXComponent implements InstructionProvider {
         };
 
         i_mtc2 = new CPUInstruction("mtc2", GTE.class, 0, CPUInstruction.FLAG_READS_RT) {
+            public int getCoprocessorStateWritten(int ci) {
+                return getState(R3000.Util.bits_rd(ci));
+            }
+
             public void compile(CompilationContext context, int address, int ci, InstructionList il) {
                 int rt = R3000.Util.bits_rt(ci);
                 int rd = R3000.Util.bits_rd(ci);
@@ -1187,6 +1244,10 @@ public final class GTE extends JPSXComponent implements InstructionProvider {
         };
 
         i_ctc2 = new CPUInstruction("ctc2", GTE.class, 0, CPUInstruction.FLAG_READS_RT) {
+            public int getCoprocessorStateWritten(int ci) {
+                return getState(R3000.Util.bits_rd(ci) + 32);
+            }
+
             public void compile(CompilationContext context, int address, int ci, InstructionList il) {
                 int rt = R3000.Util.bits_rt(ci);
                 int rd = R3000.Util.bits_rd(ci);
@@ -1202,6 +1263,10 @@ public final class GTE extends JPSXComponent implements InstructionProvider {
             }
         };
         i_lwc2 = new CPUInstruction("lwc2", GTE.class, 0, CPUInstruction.FLAG_READS_RS | CPUInstruction.FLAG_MEM32) {
+            public int getCoprocessorStateWritten(int ci) {
+                return getState(R3000.Util.bits_rt(ci));
+            }
+
             public void compile(CompilationContext context, int address, int ci, InstructionList il) {
                 int base = R3000.Util.bits_rs(ci);
                 int rt = R3000.Util.bits_rt(ci);
@@ -1216,6 +1281,10 @@ public final class GTE extends JPSXComponent implements InstructionProvider {
             }
         };
         i_swc2 = new CPUInstruction("swc2", GTE.class, 0, CPUInstruction.FLAG_READS_RS | CPUInstruction.FLAG_MEM32) {
+            public int getCoprocessorStateRead(int ci) {
+                return getState(R3000.Util.bits_rt(ci));
+            }
+
             public void compile(CompilationContext context, int address, int ci, InstructionList il) {
                 int base = R3000.Util.bits_rs(ci);
                 int rt = R3000.Util.bits_rt(ci);
@@ -1231,28 +1300,136 @@ public final class GTE extends JPSXComponent implements InstructionProvider {
                 il2.dispose();
             }
         };
-        i_rtpt = new CPUInstruction("rtpt", GTE.class, 0, 0);
-        i_rtps = new CPUInstruction("rtps", GTE.class, 0, 0);
-        i_mvmva = new CPUInstruction("mvmva", GTE.class, 0, 0);
-        i_op = new CPUInstruction("op", GTE.class, 0, 0);
-        i_avsz3 = new CPUInstruction("avsz3", GTE.class, 0, 0);
-        i_avsz4 = new CPUInstruction("avsz4", GTE.class, 0, 0);
-        i_nclip = new CPUInstruction("nclip", GTE.class, 0, 0);
-        i_ncct = new CPUInstruction("ncct", GTE.class, 0, 0);
-        i_gpf = new CPUInstruction("gpf", GTE.class, 0, 0);
-        i_dcpl = new CPUInstruction("dcpl", GTE.class, 0, 0);
-        i_dpcs = new CPUInstruction("dpcs", GTE.class, 0, 0);
-        i_intpl = new CPUInstruction("intpl", GTE.class, 0, 0);
-        i_sqr = new CPUInstruction("sqr", GTE.class, 0, 0);
-        i_ncs = new CPUInstruction("ncs", GTE.class, 0, 0);
-        i_nct = new CPUInstruction("nct", GTE.class, 0, 0);
-        i_ncds = new CPUInstruction("ncds", GTE.class, 0, 0);
-        i_ncdt = new CPUInstruction("ncdt", GTE.class, 0, 0);
-        i_dpct = new CPUInstruction("dpct", GTE.class, 0, 0);
-        i_nccs = new CPUInstruction("nccs", GTE.class, 0, 0);
-        i_cdp = new CPUInstruction("cdp", GTE.class, 0, 0);
-        i_cc = new CPUInstruction("cc", GTE.class, 0, 0);
-        i_gpl = new CPUInstruction("gpl", GTE.class, 0, 0);
+        // commands with fields (sf, mx, v, cv, lm) are compiled to calls with the fields already decoded, so that
+        // HotSpot can fold them when it inlines the call; the rest don't look at the instruction word at all
+        i_rtpt = new Command("rtpt", 0, STATE_MAC0 | STATE_IR0) {
+            public void compile(CompilationContext context, int address, int ci, InstructionList il) {
+                if (0 == (ci & GTE_SF_MASK)) {
+                    log.warn("RTPT with SF field!");
+                }
+                emitRTPCall(il, context, "rtpt");
+            }
+        };
+        i_rtps = new Command("rtps", 0, STATE_MAC0 | STATE_IR0) {
+            public void compile(CompilationContext context, int address, int ci, InstructionList il) {
+                if (0 == (ci & GTE_SF_MASK)) {
+                    log.warn("RTPS with SF field!");
+                }
+                emitRTPCall(il, context, "rtps");
+            }
+        };
+        i_mvmva = new Command("mvmva", 0, 0) {
+            public void compile(CompilationContext context, int address, int ci, InstructionList il) {
+                ConstantPoolGen cp = context.getConstantPoolGen();
+                switch (ci & GTE_MX_MASK) {
+                    case GTE_MX_LIGHT:
+                        il.append(new GETSTATIC(cp.addFieldref(CLASS, "reg_ls", MATRIX_SIGNATURE)));
+                        break;
+                    case GTE_MX_COLOR:
+                        il.append(new GETSTATIC(cp.addFieldref(CLASS, "reg_lc", MATRIX_SIGNATURE)));
+                        break;
+                    default:
+                        il.append(new GETSTATIC(cp.addFieldref(CLASS, "reg_rot", MATRIX_SIGNATURE)));
+                        break;
+                }
+                switch (ci & GTE_V_MASK) {
+                    case GTE_V_IR:
+                        emitReadLong(il, cp, "reg_ir1");
+                        emitReadLong(il, cp, "reg_ir2");
+                        emitReadLong(il, cp, "reg_ir3");
+                        break;
+                    case GTE_V_V2:
+                        emitReadVectorLong(il, cp, "reg_v2");
+                        break;
+                    case GTE_V_V1:
+                        emitReadVectorLong(il, cp, "reg_v1");
+                        break;
+                    default:
+                        emitReadVectorLong(il, cp, "reg_v0");
+                        break;
+                }
+                switch (ci & GTE_CV_MASK) {
+                    case GTE_CV_TR:
+                        emitReadLong(il, cp, "reg_trx");
+                        emitReadLong(il, cp, "reg_try");
+                        emitReadLong(il, cp, "reg_trz");
+                        break;
+                    case GTE_CV_BK:
+                        emitReadLong(il, cp, "reg_rbk");
+                        emitReadLong(il, cp, "reg_gbk");
+                        emitReadLong(il, cp, "reg_bbk");
+                        break;
+                    case GTE_CV_FC:
+                        emitReadLong(il, cp, "reg_rfc");
+                        emitReadLong(il, cp, "reg_gfc");
+                        emitReadLong(il, cp, "reg_bfc");
+                        break;
+                    default:
+                        il.append(new LCONST(0));
+                        il.append(new LCONST(0));
+                        il.append(new LCONST(0));
+                        break;
+                }
+                il.append(new PUSH(cp, 0 != (ci & GTE_SF_MASK)));
+                il.append(new PUSH(cp, 0 != (ci & GTE_LM_MASK)));
+                String method = 0 != (context.getLiveCoprocessorState() & STATE_FLAG) ? "mvmva" : "mvmvaNoFlags";
+                il.append(new INVOKESTATIC(cp.addMethodref(CLASS, method, "(" + MATRIX_SIGNATURE + "JJJJJJZZ)V")));
+            }
+        };
+        i_op = new Command("op", 0, 0) {
+            public void compile(CompilationContext context, int address, int ci, InstructionList il) {
+                ConstantPoolGen cp = context.getConstantPoolGen();
+                il.append(new PUSH(cp, 0 != (ci & GTE_SF_MASK)));
+                il.append(new PUSH(cp, 0 != (ci & GTE_LM_MASK)));
+                il.append(new INVOKESTATIC(cp.addMethodref(CLASS, "op", "(ZZ)V")));
+            }
+        };
+        i_avsz3 = new Command("avsz3", 0, STATE_MAC0) {
+            public void compile(CompilationContext context, int address, int ci, InstructionList il) {
+                if (0 != (context.getLiveCoprocessorState() & STATE_FLAG)) {
+                    super.compile(context, address, ci, il);
+                } else {
+                    il.append(new INVOKESTATIC(context.getConstantPoolGen().addMethodref(CLASS, "avsz3NoFlags", "()V")));
+                }
+            }
+        };
+        i_avsz4 = new Command("avsz4", 0, STATE_MAC0) {
+            public void compile(CompilationContext context, int address, int ci, InstructionList il) {
+                if (0 != (context.getLiveCoprocessorState() & STATE_FLAG)) {
+                    super.compile(context, address, ci, il);
+                } else {
+                    il.append(new INVOKESTATIC(context.getConstantPoolGen().addMethodref(CLASS, "avsz4NoFlags", "()V")));
+                }
+            }
+        };
+        i_nclip = new Command("nclip", 0, STATE_MAC0);
+        i_ncct = new Command("ncct", 0, 0);
+        i_gpf = new Command("gpf", STATE_IR0, 0) {
+            public void compile(CompilationContext context, int address, int ci, InstructionList il) {
+                emitSFCall(il, context, ci, "gpf");
+            }
+        };
+        i_dcpl = new Command("dcpl", STATE_IR0, 0);
+        i_dpcs = new Command("dpcs", STATE_IR0, 0);
+        i_intpl = new Command("intpl", STATE_IR0, 0);
+        i_sqr = new Command("sqr", 0, 0) {
+            public void compile(CompilationContext context, int address, int ci, InstructionList il) {
+                emitSFCall(il, context, ci, "sqr");
+            }
+        };
+        i_ncs = new Command("ncs", 0, 0);
+        i_nct = new Command("nct", 0, 0);
+        i_ncds = new Command("ncds", STATE_IR0, 0);
+        i_ncdt = new Command("ncdt", STATE_IR0, 0);
+        i_dpct = new Command("dpct", STATE_IR0, 0);
+        i_nccs = new Command("nccs", 0, 0);
+        i_cdp = new Command("cdp", STATE_IR0, 0);
+        i_cc = new Command("cc", 0, 0);
+        i_gpl = new Command("gpl", STATE_IR0, 0) {
+            public void compile(CompilationContext context, int address, int ci, InstructionList il) {
+                emitSFCall(il, context, ci, "gpl");
+            }
+        };
         CPUInstruction i_cop2 = new CPUInstruction("cop2", GTE.class, 0, 0) {
             public CPUInstruction subDecode(int ci) {
                 switch (R3000.Util.bits_rs(ci)) {
@@ -1325,6 +1502,43 @@ public final class GTE extends JPSXComponent implements InstructionProvider {
         registrar.setInstruction(58, i_swc2);
     }
 
+    /**
+     * A GTE command, as opposed to a register transfer; all commands reset FLAG
+     */
+    private static class Command extends CPUInstruction {
+        private final int stateRead;
+        private final int stateWritten;
+
+        public Command(String name, int stateRead, int stateWritten) {
+            super(name, GTE.class, 0, 0);
+            this.stateRead = stateRead;
+            this.stateWritten = stateWritten | STATE_FLAG;
+        }
+
+        public int getCoprocessorStateRead(int ci) {
+            return stateRead;
+        }
+
+        public int getCoprocessorStateWritten(int ci) {
+            return stateWritten;
+        }
+    }
+
+    /**
+     * @return the result state corresponding to a GTE register (control registers are numbered from 32)
+     */
+    private static int getState(int reg) {
+        switch (reg) {
+            case R_IR0:
+                return STATE_IR0;
+            case R_MAC0:
+                return STATE_MAC0;
+            case R_FLAG:
+                return STATE_FLAG;
+        }
+        return 0;
+    }
+
     private static CPUInstruction i_mfc2;
     private static CPUInstruction i_cfc2;
     private static CPUInstruction i_mtc2;
@@ -1958,12 +2172,15 @@ public final class GTE extends JPSXComponent implements InstructionProvider {
     }
 
     public static void interpret_rtpt(final int ci) {
-        reg_flag = 0;
-
         // todo is no SF bit allowed?
         if (0 == (ci & GTE_SF_MASK)) {
             log.warn("RTPS with SF field!");
         }
+        rtpt();
+    }
+
+    public static void rtpt() {
+        reg_flag = 0;
 
         long vx = reg_v0.x;
         long vy = reg_v0.y;
@@ -2042,6 +2259,51 @@ public final class GTE extends JPSXComponent implements InstructionProvider {
         reg_ir0 = LiH(reg_mac0);
     }
 
+    /**
+     * rtpt for use when FLAG is known not to be read; MAC0/IR0 are only needed if depthCue is set,
+     * and then only for the last vertex
+     */
+    public static void rtptNoFlags(boolean depthCue) {
+        transformNoFlags(reg_v0);
+        reg_sz0 = clamp(reg_mac3, 0, 0xffff);
+        long hsz = Math.min(divide(reg_h, reg_sz0), 0x1ffff);
+        reg_sx0 = clamp((int) ((reg_ofx + reg_ir1 * hsz) >> 16), -0x400, 0x3ff);
+        reg_sy0 = clamp((int) ((reg_ofy + reg_ir2 * hsz) >> 16), -0x400, 0x3ff);
+
+        transformNoFlags(reg_v1);
+        reg_sz1 = clamp(reg_mac3, 0, 0xffff);
+        hsz = Math.min(divide(reg_h, reg_sz1), 0x1ffff);
+        reg_sx1 = clamp((int) ((reg_ofx + reg_ir1 * hsz) >> 16), -0x400, 0x3ff);
+        reg_sy1 = clamp((int) ((reg_ofy + reg_ir2 * hsz) >> 16), -0x400, 0x3ff);
+
+        transformNoFlags(reg_v2);
+        reg_sz2 = clamp(reg_mac3, 0, 0xffff);
+        hsz = Math.min(divide(reg_h, reg_sz2), 0x1ffff);
+        reg_sx2 = clamp((int) ((reg_ofx + reg_ir1 * hsz) >> 16), -0x400, 0x3ff);
+        reg_sy2 = clamp((int) ((reg_ofy + reg_ir2 * hsz) >> 16), -0x400, 0x3ff);
+        if (depthCue) {
+            reg_mac0 = (int) ((reg_dqb + reg_dqa * hsz) >> 16);
+            reg_ir0 = clamp(reg_mac0, 0, 0xfff);
+        }
+    }
+
+    /**
+     * MAC1-3 and IR1-3 for the rotation/translation of a vertex, without FLAG
+     */
+    private static void transformNoFlags(Vector v) {
+        long vx = v.x;
+        long vy = v.y;
+        long vz = v.z;
+
+        reg_mac1 = (int) ((reg_rot.m11 * vx + reg_rot.m12 * vy + reg_rot.m13 * vz + (((long) reg_trx) << 12)) >> 12);
+        reg_mac2 = (int) ((reg_rot.m21 * vx + reg_rot.m22 * vy + reg_rot.m23 * vz + (((long) reg_try) << 12)) >> 12);
+        reg_mac3 = (int) ((reg_rot.m31 * vx + reg_rot.m32 * vy + reg_rot.m33 * vz + (((long) reg_trz) << 12)) >> 12);
+
+        reg_ir1 = clamp(reg_mac1, -0x8000, 0x7fff);
+        reg_ir2 = clamp(reg_mac2, -0x8000, 0x7fff);
+        reg_ir3 = clamp(reg_mac3, -0x8000, 0x7fff);
+    }
+
     public static void interpret_rtps(final int ci) {
 //        In: V0 Vector to transform. [1,15,0]
 //        R Rotation matrix [1,3,12]
@@ -2085,16 +2347,20 @@ public final class GTE extends JPSXComponent implements InstructionProvider {
 //        MAC0=(((H*20000h/SZ3)+1)/2)*IR2+OFY, SY2=MAC0/10000h ;ScrY FIFO -400h..+3FFh
 //        MAC0=(((H*20000h/SZ3)+1)/2)*DQA+DQB, IR0=MAC0/1000h  ;Depth cueing 0..+1000h
 
+        // todo is no SF bit allowed?
+        if (0 == (ci & GTE_SF_MASK)) {
+            log.warn("RTPS with SF field!");
+        }
+        rtps();
+    }
+
+    public static void rtps() {
         reg_flag = 0;
 
         long vx = reg_v0.x;
         long vy = reg_v0.y;
         long vz = reg_v0.z;
 
-        // todo is no SF bit allowed?
-        if (0 == (ci & GTE_SF_MASK)) {
-            log.warn("RTPS with SF field!");
-        }
         reg_mac1 = A1(reg_rot.m11 * vx + reg_rot.m12 * vy + reg_rot.m13 * vz + (((long) reg_trx) << 12));
         reg_mac2 = A2(reg_rot.m21 * vx + reg_rot.m22 * vy + reg_rot.m23 * vz + (((long) reg_try) << 12));
         reg_mac3 = A3(reg_rot.m31 * vx + reg_rot.m32 * vy + reg_rot.m33 * vz + (((long) reg_trz) << 12));
@@ -2129,6 +2395,31 @@ public final class GTE extends JPSXComponent implements InstructionProvider {
         reg_ir0 = LiH(reg_mac0);
     }
 
+    /**
+     * rtps for use when FLAG is known not to be read; MAC0/IR0 are only computed if depthCue is set
+     */
+    public static void rtpsNoFlags(boolean depthCue) {
+        transformNoFlags(reg_v0);
+
+        reg_szx = reg_sz0;
+        reg_sz0 = reg_sz1;
+        reg_sz1 = reg_sz2;
+        reg_sz2 = clamp(reg_mac3, 0, 0xffff);
+
+        reg_sx0 = reg_sx1;
+        reg_sy0 = reg_sy1;
+        reg_sx1 = reg_sx2;
+        reg_sy1 = reg_sy2;
+
+        long hsz = Math.min(divide(reg_h, reg_sz2), 0x1ffff);
+        reg_sx2 = clamp((int) ((reg_ofx + reg_ir1 * hsz) >> 16), -0x400, 0x3ff);
+        reg_sy2 = clamp((int) ((reg_ofy + reg_ir2 * hsz) >> 16), -0x400, 0x3ff);
+        if (depthCue) {
+            reg_mac0 = (int) ((reg_dqb + reg_dqa * hsz) >> 16);
+            reg_ir0 = clamp(reg_mac0, 0, 0xfff);
+        }
+    }
+
     public static long SIGNED_BIG(int src) {
         if (src == 0)
             return 0;
@@ -2157,8 +2448,6 @@ public final class GTE extends JPSXComponent implements InstructionProvider {
 
 // NOTE: int64/A1,A2,A3 can only happen with IR I think
 
-        reg_flag = 0;
-
         Matrix matrix;
         switch (ci & GTE_MX_MASK) {
             case GTE_MX_LIGHT:
@@ -2198,44 +2487,60 @@ public final class GTE extends JPSXComponent implements InstructionProvider {
                 break;
         }
 
+        long cx;
+        long cy;
+        long cz;
+        switch (ci & GTE_CV_MASK) {
+            case GTE_CV_TR:
+                cx = reg_trx;
+                cy = reg_try;
+                cz = reg_trz;
+                break;
+            case GTE_CV_BK:
+                cx = reg_rbk;
+                cy = reg_gbk;
+                cz = reg_bbk;
+                break;
+            case GTE_CV_FC:
+                cx = reg_rfc;
+                cy = reg_gfc;
+                cz = reg_bfc;
+                break;
+            default:
+                cx = cy = cz = 0;
+                break;
+        }
+        mvmva(matrix, vx, vy, vz, cx, cy, cz, 0 != (ci & GTE_SF_MASK), 0 != (ci & GTE_LM_MASK));
+    }
+
+    /**
+     * mvmva with the instruction fields already decoded; called directly by compiled code
+     */
+    public static void mvmva(Matrix matrix, long vx, long vy, long vz, long cx, long cy, long cz, boolean sf, boolean lm) {
+        reg_flag = 0;
+
         // v values s15.0 or s31.0 (s19.12 in SF case?)
 
         long ssx = matrix.m11 * vx + matrix.m12 * vy + matrix.m13 * vz;
         long ssy = matrix.m21 * vx + matrix.m22 * vy + matrix.m23 * vz;
         long ssz = matrix.m31 * vx + matrix.m32 * vy + matrix.m33 * vz;
 
-        if (0 != (ci & GTE_SF_MASK)) {
+        if (sf) {
             ssx >>= 12;
             ssy >>= 12;
             ssz >>= 12;
         }
 
         // ss values are up to about s36.12
-        switch (ci & GTE_CV_MASK) {
-            case GTE_CV_TR:
-                ssx += reg_trx;
-                ssy += reg_try;
-                ssz += reg_trz;
-                break;
-            case GTE_CV_BK:
-                ssx += reg_rbk;
-                ssy += reg_gbk;
-                ssz += reg_bbk;
-                break;
-            case GTE_CV_FC:
-                ssx += reg_rfc;
-                ssy += reg_gfc;
-                ssz += reg_bfc;
-                break;
-            default:
-                break;
-        }
+        ssx += cx;
+        ssy += cy;
+        ssz += cz;
 
         reg_mac1 = A1(ssx << 12);
         reg_mac2 = A2(ssy << 12);
         reg_mac3 = A3(ssz << 12);
 
-        if (0 != (ci & GTE_LM_MASK)) {
+        if (lm) {
             reg_ir1 = LiB1_1(reg_mac1);
             reg_ir2 = LiB2_1(reg_mac2);
             reg_ir3 = LiB3_1(reg_mac3);
@@ -2246,6 +2551,37 @@ public final class GTE extends JPSXComponent implements InstructionProvider {
         }
     }
 
+    /**
+     * mvmva for use when FLAG is known not to be read
+     */
+    public static void mvmvaNoFlags(Matrix matrix, long vx, long vy, long vz, long cx, long cy, long cz, boolean sf, boolean lm) {
+        long ssx = matrix.m11 * vx + matrix.m12 * vy + matrix.m13 * vz;
+        long ssy = matrix.m21 * vx + matrix.m22 * vy + matrix.m23 * vz;
+        long ssz = matrix.m31 * vx + matrix.m32 * vy + matrix.m33 * vz;
+
+        if (sf) {
+            ssx >>= 12;
+            ssy >>= 12;
+            ssz >>= 12;
+        }
+
+        reg_mac1 = (int) (ssx + cx);
+        reg_mac2 = (int) (ssy + cy);
+        reg_mac3 = (int) (ssz + cz);
+
+        int min = lm ? 0 : -0x8000;
+        reg_ir1 = clamp(reg_mac1, min, 0x7fff);
+        reg_ir2 = clamp(reg_mac2, min, 0x7fff);
+        reg_ir3 = clamp(reg_mac3, min, 0x7fff);
+    }
+
+    /**
+     * Saturation for the flag-free command variants
+     */
+    private static int clamp(int src, int min, int max) {
+        return src < min ? min : (src > max ? max : src);
+    }
+
     public static int LiB1_0(int src) {
         if (src >= 0x8000) {
             reg_flag |= FLAG_B1;
@@ -2474,6 +2810,10 @@ public final class GTE extends JPSXComponent implements InstructionProvider {
 //        IR1=Lm_B1[MAC0]
 //        IR2=Lm_B2[MAC1]
 //        IR3=Lm_B3[MAC2]
+        op(0 != (ci & GTE_SF_MASK), 0 != (ci & GTE_LM_MASK));
+    }
+
+    public static void op(boolean sf, boolean lm) {
         reg_flag = 0;
 
         long a1 = reg_rot.m11;
@@ -2484,7 +2824,7 @@ public final class GTE extends JPSXComponent implements InstructionProvider {
         long ss2 = a3 * reg_ir1 - a1 * reg_ir3;
         long ss3 = a1 * reg_ir2 - a2 * reg_ir1;
 
-        if (0 == (ci & GTE_SF_MASK)) {
+        if (!sf) {
             ss1 <<= 12;
             ss2 <<= 12;
             ss3 <<= 12;
@@ -2493,7 +2833,7 @@ public final class GTE extends JPSXComponent implements InstructionProvider {
         reg_mac1 = A1(ss1);
         reg_mac2 = A2(ss2);
         reg_mac3 = A3(ss3);
-        if (0 != (ci & GTE_LM_MASK)) {
+        if (lm) {
             reg_ir1 = LiB1_1(reg_mac1);
             reg_ir2 = LiB2_1(reg_mac2);
             reg_ir3 = LiB3_1(reg_mac3);
@@ -2519,6 +2859,11 @@ public final class GTE extends JPSXComponent implements InstructionProvider {
         reg_otz = LiD(reg_mac0);
     }
 
+    public static void avsz3NoFlags() {
+        reg_mac0 = (int) ((reg_zsf3 * (long)((reg_sz0 + reg_sz1 + reg_sz2)<<4)) >> 16);
+        reg_otz = clamp(reg_mac0, 0, 0xffff);
+    }
+
     public static void interpret_avsz4(final int ci) {
         // checked
 //        Fields:
@@ -2535,6 +2880,11 @@ public final class GTE extends JPSXComponent implements InstructionProvider {
         reg_otz = LiD(reg_mac0);
     }
 
+    public static void avsz4NoFlags() {
+        reg_mac0 = (int) ((reg_zsf4 * (long)((reg_sz0 + reg_sz1 + reg_sz2 + reg_szx)<<4)) >> 16);
+        reg_otz = clamp(reg_mac0, 0, 0xffff);
+    }
+
     public static void interpret_nclip(final int ci) {
         /*
               NOTE: I don't think nclip should clear the FLAG register.
@@ -2701,6 +3051,10 @@ public final class GTE extends JPSXComponent implements InstructionProvider {
     }
 
     public static void interpret_gpf(final int ci) {
+        gpf(0 != (ci & GTE_SF_MASK));
+    }
+
+    public static void gpf(boolean sf) {
         reg_flag = 0;
         //   MAC1=A1[IR0 * IR1]
         //   MAC2=A2[IR0 * IR2]
@@ -2714,7 +3068,7 @@ public final class GTE extends JPSXComponent implements InstructionProvider {
         //[0,8,0]   B0<-B1<-B2<- LC3[MAC3]
 
         long m = reg_ir0;
-        if (0 != (ci & GTE_SF_MASK)) {
+        if (sf) {
             reg_mac1 = A1(m * reg_ir1);
             reg_mac2 = A2(m * reg_ir2);
             reg_mac3 = A3(m * reg_ir3);
@@ -2859,7 +3213,10 @@ public final class GTE extends JPSXComponent implements InstructionProvider {
 //        [1,15,0][1,3,12] IR1=Lm_B1[MAC1] [1,31,0][1,19,12][lm=1]
 //        [1,15,0][1,3,12] IR2=Lm_B2[MAC2] [1,31,0][1,19,12][lm=1]
 //        [1,15,0][1,3,12] IR3=Lm_B3[MAC3] [1,31,0][1,19,12][lm=1]
+        sqr(0 != (ci & GTE_SF_MASK));
+    }
 
+    public static void sqr(boolean sf) {
         reg_flag = 0;
 
         // [1,31,0] MAC1=A1[IR1*IR1]                     [1,43,0]
@@ -2873,7 +3230,7 @@ public final class GTE extends JPSXComponent implements InstructionProvider {
         int i2 = reg_ir2 * reg_ir2;
         int i3 = reg_ir3 * reg_ir3;
 
-        if (0 != (ci & GTE_SF_MASK)) {
+        if (sf) {
             i1 >>= 12;
             i2 >>= 12;
             i3 >>= 12;
@@ -3506,10 +3863,14 @@ public final class GTE extends JPSXComponent implements InstructionProvider {
     }
 
     public static void interpret_gpl(final int ci) {
+        gpl(0 != (ci & GTE_SF_MASK));
+    }
+
+    public static void gpl(boolean sf) {
         reg_flag = 0;
 
         long i = reg_ir0;
-        if (0 != (ci & GTE_SF_MASK)) {
+        if (sf) {
             reg_mac1 = A1((((long) reg_mac1) << 12) + i * reg_ir1);
             reg_mac2 = A2((((long) reg_mac2) << 12) + i * reg_ir2);
             reg_mac3 = A3((((long) reg_mac3) << 12) + i * reg_ir3);
@@ -265,7 +265,7 @@ public class MDEC extends JPSXComponent implements MemoryMapped {
             int mbcount = size / mbsize;
 
             AddressSpace.ResolveResult target = new AddressSpace.ResolveResult();
-            addressSpace.resolve(base, size, false, target);
+            addressSpace.resolve(base, size, true, target);
 
             int dword = source.mem[source.offset];
 
@@ -482,7 +482,7 @@ public class SPU extends SingletonJPSXComponent implements MemoryMapped, CDAudio
                 System.out.println("begin DMA transfer from " + getName() + " " + MiscUtil.toHex(base, 8) + " 0x" + Integer.toHexString(blocks) + "*0x" + Integer.toHexString(blockSize) + " ctrl " + MiscUtil.toHex(ctrl, 8));
             int srcIndex = m_transferOffset << 1;
             int size = blocks * blockSize;
-            addressSpace.resolve(base, size * 4, false, rr);
+            addressSpace.resolve(base, size * 4, true, rr);
             int destIndex = rr.offset;
             int[] dest = rr.mem;
             for (size = size - 1; size >= 0; size--) {
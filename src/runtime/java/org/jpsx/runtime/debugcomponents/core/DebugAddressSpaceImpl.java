@@ -19,6 +19,8 @@
 package org.jpsx.runtime.debugcomponents.core;
 
 import org.apache.bcel.generic.ClassGen;
+import org.apache.bcel.generic.ConstantPoolGen;
+import org.apache.bcel.generic.InstructionList;
 import org.apache.log4j.Logger;
 import org.jpsx.api.CPUListener;
 import org.jpsx.api.components.core.addressspace.AddressSpace;
@@ -47,6 +49,7 @@ public final class DebugAddressSpaceImpl  extends SingletonJPSXComponent impleme
     public static int[] ramD = realAddressSpace.ramD;
     public static final int[] scratch = realAddressSpace.scratch;
     public static final int[] bios = realAddressSpace.bios;
+    public static final byte[] ramPagesWatched = AddressSpaceImpl.ramPagesWatched;
 
     public DebugAddressSpaceImpl() {
         super("Debug JPSX Address Space");
@@ -189,6 +192,11 @@ public final class DebugAddressSpaceImpl  extends SingletonJPSXComponent impleme
         realAddressSpace.orTag(pc, val);
     }
 
+    @Override
+    public void clearTags(int address, int size, byte mask) {
+        realAddressSpace.clearTags(address, size, mask);
+    }
+
     @Override
     public void resolve(int address, ResolveResult result) {
         realAddressSpace.resolve(address, result);
@@ -205,6 +213,20 @@ public final class DebugAddressSpaceImpl  extends SingletonJPSXComponent impleme
         return realAddressSpace.getMainRAM();
     }
 
+    @Override
+    public void watchRAMPage(int address) {
+        realAddressSpace.watchRAMPage(address);
+    }
+
+    @Override
+    public boolean isRAMPageWritten(int address) {
+        return realAddressSpace.isRAMPageWritten(address);
+    }
+
+    public static void _ramPageWritten(int page) {
+        AddressSpaceImpl._ramPageWritten(page);
+    }
+
     @Override
     public void tagAddressAccessWrite(int pc, int address) {
         processAddressWrite(address);
@@ -262,6 +284,21 @@ public final class DebugAddressSpaceImpl  extends SingletonJPSXComponent impleme
         return HARDWARE_CLASS;
     }
 
+    @Override
+    public boolean emitHardwareRead(ConstantPoolGen cp, InstructionList il, int address, int size) {
+        return realAddressSpace.emitHardwareRead(cp, il, address, size);
+    }
+
+    @Override
+    public boolean emitHardwareWrite(ConstantPoolGen cp, InstructionList il, int address, InstructionList value) {
+        return realAddressSpace.emitHardwareWrite(cp, il, address, value);
+    }
+
+    @Override
+    public String getHardwareCallbackDigest() {
+        return realAddressSpace.getHardwareCallbackDigest();
+    }
+
     @Override
     public void registerRead8Callback(int address, Class clazz, String methodName) {
         realAddressSpace.registerRead8Callback(address, clazz, methodName);
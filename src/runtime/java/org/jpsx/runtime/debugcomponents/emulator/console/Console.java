@@ -23,6 +23,7 @@ import org.jpsx.api.CPUListener;
 import org.jpsx.api.components.core.addressspace.AddressSpace;
 import org.jpsx.api.components.core.cpu.R3000;
 import org.jpsx.api.components.core.scheduler.Quartz;
+import org.jpsx.api.components.core.scheduler.VariableRateQuartz;
 import org.jpsx.runtime.JPSXComponent;
 import org.jpsx.runtime.RuntimeConnections;
 import org.jpsx.runtime.components.core.CoreComponentConnections;
@@ -95,6 +96,23 @@ public class Console extends JPSXComponent implements Runnable, CPUListener {
                         msBase = System.currentTimeMillis();
                         clockBase = quartz.nanoTime();
                         break;
+                    // quartz rate, e.g. x0.5 for half speed
+                    case'x':
+                        if (quartz instanceof VariableRateQuartz) {
+                            VariableRateQuartz variableRateQuartz = (VariableRateQuartz) quartz;
+                            String rate = line.substring(1).trim();
+                            if (rate.length() > 0) {
+                                try {
+                                    variableRateQuartz.setRate(Double.parseDouble(rate));
+                                } catch (Throwable t) {
+                                    System.out.println("Failed to set rate: " + t);
+                                }
+                            }
+                            System.out.println("Quartz rate: " + variableRateQuartz.getRate() + "x");
+                        } else {
+                            System.out.println("You must use a VariableRateQuartz in order to use this feature. Currently using: " + quartz.getClass().getName());
+                        }
+                        break;
                     case'g':
                         cpuControl.go();
                         break;